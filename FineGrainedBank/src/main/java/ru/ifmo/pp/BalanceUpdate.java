@@ -0,0 +1,61 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+
+/**
+ * Committed update of one or more accounts with their amounts after the update, see {@link ChangeSubscription}.
+ * This class is immutable.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class BalanceUpdate {
+    /**
+     * The operation that has made the update.
+     */
+    public enum Type {
+        DEPOSIT, WITHDRAW, TRANSFER, TRANSACT, APPLY
+    }
+
+    private final Type type;
+    private final int[] indices;
+    private final long[] amounts;
+
+    /**
+     * Creates new update, the arrays are not copied.
+     */
+    BalanceUpdate(Type type, int[] indices, long[] amounts) {
+        this.type = type;
+        this.indices = indices;
+        this.amounts = amounts;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of updated accounts. A transfer updates two accounts, the one it withdraws from first.
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Returns the index of k-th updated account.
+     */
+    public int getIndex(int k) {
+        return indices[k];
+    }
+
+    /**
+     * Returns the amount of k-th updated account after the update.
+     */
+    public long getAmount(int k) {
+        return amounts[k];
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + Arrays.toString(indices) + " -> " + Arrays.toString(amounts);
+    }
+}
@@ -34,6 +34,14 @@ public interface Bank {
      */
     public long getTotalAmount();
 
+    /**
+     * Returns a read-only view of all accounts as of a single instant.
+     * Operations that complete after this method returns do not change the view.
+     *
+     * @return snapshot of all accounts, it should be closed when it is not needed anymore.
+     */
+    public BankSnapshot snapshot();
+
     /**
      * Deposits specified amount to account.
      *
@@ -58,6 +66,32 @@ public interface Bank {
      */
     public long withdraw(int index, long amount);
 
+    /**
+     * Deposits specified amount to account without returning the resulting amount.
+     * Unlike {@link #deposit(int, long) deposit}, it does not need to read the whole account,
+     * so a split account can serve it from a part of its funds.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     * @throws IllegalStateException when deposit will overflow account above {@link #MAX_AMOUNT}.
+     */
+    public void credit(int index, long amount);
+
+    /**
+     * Withdraws specified amount from account without returning the resulting amount.
+     * Unlike {@link #withdraw(int, long) withdraw}, it does not need to read the whole account,
+     * so a split account can serve it from a part of its funds.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     * @throws IllegalStateException when account does not enough to withdraw.
+     */
+    public void debit(int index, long amount);
+
     /**
      * Transfers specified amount from one account to another account.
      *
@@ -69,4 +103,17 @@ public interface Bank {
      * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
      */
     public void transfer(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Atomically changes amounts in several accounts, so that either all changes or none of them take effect.
+     *
+     * @param indices distinct account indices.
+     * @param amounts non-zero amounts to change the corresponding accounts by,
+     *     negative amounts are withdrawn and positive ones are deposited.
+     * @throws IllegalArgumentException when the arrays have different lengths, some amount is 0,
+     *     or some account index repeats.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     * @throws IllegalStateException when there is not enough funds in some account or too much in another one.
+     */
+    public void transact(int[] indices, long[] amounts);
 }
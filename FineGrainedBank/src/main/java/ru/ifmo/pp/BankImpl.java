@@ -1,30 +1,111 @@
 package ru.ifmo.pp;
 
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Bank implementation.
  *
- * <p>:TODO: This implementation has to be made thread-safe.
+ * <p>Each account is guarded by a {@link StampedLock}. Updates take its write lock, while
+ * {@link #getAmount(int) getAmount} and {@link #getTotalAmount() getTotalAmount} first try to read accounts
+ * optimistically without locking and lock them only when accounts change concurrently.
+ *
+ * <p>In flat-combining mode, {@link #deposit(int, long) deposit} and {@link #withdraw(int, long) withdraw}
+ * publish their requests in a per-account list and the thread that gets the account lock applies
+ * all pending requests at once, so that a single lock acquisition serves many operations on a hot account.
+ *
+ * <p>Accounts can be designated as split when the bank is created. {@link #credit(int, long) credit},
+ * {@link #debit(int, long) debit}, {@link #withdraw(int, long) withdraw} and {@link #transfer(int, int, long)
+ * transfer} from a split account lock only a cell of the current thread, and other operations, or those that
+ * the cell cannot serve, lock all cells. See {@link SplitAccount}.
+ *
+ * <p>Account locks are taken with {@link #lock(Account)}, which counts how often and how long threads wait
+ * for locks. The counters are read through {@link BankImplMXBean}.
  *
  * @author Курбонзода Абдукодири
  */
-public class BankImpl implements Bank {
+public class BankImpl implements Bank, BankImplMXBean {
     /**
      * An array of accounts by index.
      */
     private final Account[] accounts;
 
+    /**
+     * Requests of threads for flat-combining mode, each thread reuses its own request.
+     * It is null when flat-combining mode is off.
+     */
+    private final ThreadLocal<Request> requests;
+
+    /**
+     * The number of attempts to read all accounts optimistically in {@link #getTotalAmount()}
+     * before falling back to locking all of them.
+     */
+    private static final int MAX_SCAN_ATTEMPTS = 4;
+
+    /**
+     * The number of cells in a split account.
+     */
+    private static final int SPLIT_CELLS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of stamps to read all accounts optimistically, see {@link Account#stampCount()}.
+     */
+    private final int stampCount;
+
+    /**
+     * Lock contention counters, see {@link BankImplMXBean}.
+     */
+    private final StripedCounter lockWaits = new StripedCounter();
+    private final StripedCounter lockWaitNanos = new StripedCounter();
+
     /**
      * Creates new bank instance.
      * @param n the number of accounts (numbered from 0 to n-1).
      */
     public BankImpl(int n) {
+        this(n, false);
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param flatCombining true to turn on flat-combining mode for deposits and withdrawals.
+     */
+    public BankImpl(int n, boolean flatCombining) {
+        this(n, flatCombining, new int[0]);
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param flatCombining true to turn on flat-combining mode for deposits and withdrawals.
+     * @param splitIndices indices of accounts to split.
+     */
+    public BankImpl(int n, boolean flatCombining, int[] splitIndices) {
         accounts = new Account[n];
         for (int i = 0; i < n; i++) {
             accounts[i] = new Account();
         }
+        for (int index : splitIndices) {
+            accounts[index] = new SplitAccount();
+        }
+        int stampCount = 0;
+        for (Account account : accounts) {
+            stampCount += account.stampCount();
+        }
+        this.stampCount = stampCount;
+        if (flatCombining) {
+            for (Account account : accounts) {
+                account.published = new AtomicReference<>();
+            }
+        }
+        requests = flatCombining ? new ThreadLocal<Request>() {
+            @Override
+            protected Request initialValue() {
+                return new Request();
+            }
+        } : null;
     }
 
     /**
@@ -37,81 +118,178 @@ public class BankImpl implements Bank {
 
     /**
      * {@inheritDoc}
-     * <p>:TODO: This method has to be made thread-safe.
      */
     @Override
     public long getAmount(int index) {
-        Account account = accounts[index];
-        account.lock.lock();
-
-        long result = account.amount;
-
-        account.lock.unlock();
-        return result;
+        return accounts[index].getAmount();
     }
 
     /**
      * {@inheritDoc}
-     * <p>:TODO: This method has to be made thread-safe.
      */
     @Override
     public long getTotalAmount() {
+        return readAll(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The amounts are copied the same way as they are summed by {@link #getTotalAmount()}.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] amounts = new long[accounts.length];
+        readAll(amounts);
+        return new ArrayBankSnapshot(amounts);
+    }
+
+    /**
+     * Reads all accounts at a single instant and returns their sum.
+     * @param amounts the array to copy amounts to, or null.
+     */
+    private long readAll(long[] amounts) {
+        /*
+         * First, try to read all accounts optimistically. If all stamps are still valid after all accounts
+         * were read, then no account has changed since its stamp was taken, so all of them had the read
+         * amounts at the moment between the two scans.
+         */
+        long[] stamps = new long[stampCount];
+        for (int attempt = 0; attempt < MAX_SCAN_ATTEMPTS; attempt++) {
+            long sum = scan(stamps, amounts);
+            if (sum >= 0)
+                return sum;
+        }
+        // Accounts keep changing, so fall back to locking all of them
         long sum = 0;
+        for (int i = 0; i < accounts.length; i++) {
+            lock(accounts[i]);
+
+            sum += accounts[i].amount;
+            if (amounts != null)
+                amounts[i] = accounts[i].amount;
+        }
         for (Account account : accounts) {
-            account.lock.lock();
+            unlock(account);
+        }
+        return sum;
+    }
 
-            sum += account.amount;
+    /**
+     * Reads all accounts optimistically and returns their sum or -1 if some account was changed
+     * or cannot be read optimistically.
+     * @param amounts the array to copy amounts to, or null.
+     */
+    private long scan(long[] stamps, long[] amounts) {
+        long sum = 0;
+        int offset = 0;
+        for (int i = 0; i < accounts.length; i++) {
+            long amount = accounts[i].tryOptimisticRead(stamps, offset);
+            if (amount < 0)
+                return -1;
+            offset += accounts[i].stampCount();
+            sum += amount;
+            if (amounts != null)
+                amounts[i] = amount;
         }
+        offset = 0;
         for (Account account : accounts) {
-            account.lock.unlock();
+            if (!account.validate(stamps, offset))
+                return -1;
+            offset += account.stampCount();
         }
         return sum;
     }
 
     /**
      * {@inheritDoc}
-     * <p>:TODO: This method has to be made thread-safe.
      */
     @Override
     public long deposit(int index, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
-        account.lock.lock();
+        if (account.published != null) {
+            if (amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            return combine(account, amount);
+        }
+        lock(account);
 
-        if (amount > MAX_AMOUNT || account.amount + amount > MAX_AMOUNT)
+        if (amount > MAX_AMOUNT || account.amount + amount > MAX_AMOUNT) {
+            unlock(account);
             throw new IllegalStateException("Overflow");
+        }
         account.amount += amount;
 
         long result = account.amount;
 
-        account.lock.unlock();
+        unlock(account);
         return result;
     }
 
     /**
      * {@inheritDoc}
-     * <p>:TODO: This method has to be made thread-safe.
+     * <p>A split account is updated in a cell of the current thread when the cell has enough funds.
      */
     @Override
     public long withdraw(int index, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
-        account.lock.lock();
+        if (account instanceof SplitAccount && amount <= MAX_AMOUNT) {
+            long result = ((SplitAccount) account).withdraw(amount);
+            if (result >= 0)
+                return result;
+        }
+        if (account.published != null) {
+            if (amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow");
+            return combine(account, -amount);
+        }
+        lock(account);
 
-        if (account.amount - amount < 0)
+        if (account.amount - amount < 0) {
+            unlock(account);
             throw new IllegalStateException("Underflow");
+        }
         account.amount -= amount;
         long result = account.amount;
 
-        account.lock.unlock();
+        unlock(account);
         return result;
     }
 
     /**
      * {@inheritDoc}
-     * <p>:TODO: This method has to be made thread-safe.
+     * <p>A split account is updated in a cell of the current thread. When the cell cannot fit the amount,
+     * the amount is deposited to the account as a whole.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        Account account = accounts[index];
+        if (!(account instanceof SplitAccount) || amount > MAX_AMOUNT || !((SplitAccount) account).update(amount))
+            deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>A split account is updated in a cell of the current thread. When the cell does not have enough funds,
+     * the amount is withdrawn from the account as a whole.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        Account account = accounts[index];
+        if (!(account instanceof SplitAccount) || amount > MAX_AMOUNT || !((SplitAccount) account).update(-amount))
+            withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The amount is taken from a split account in a cell of the current thread when the cell has enough funds.
      */
     @Override
     public void transfer(int fromIndex, int toIndex, long amount) {
@@ -121,32 +299,499 @@ public class BankImpl implements Bank {
             throw new IllegalArgumentException("fromIndex == toIndex");
         Account from = accounts[fromIndex];
         Account to = accounts[toIndex];
+        if (from instanceof SplitAccount && amount <= MAX_AMOUNT
+            && transferFromCell(((SplitAccount) from).cell(), fromIndex < toIndex, to, amount))
+            return;
 
         Account firstToLock = fromIndex < toIndex ? from : to;
         Account lastToLock = fromIndex < toIndex ? to : from;
 
-        firstToLock.lock.lock();
-        lastToLock.lock.lock();
+        lock(firstToLock);
+        lock(lastToLock);
 
+        String errorMessage = null;
         if (amount > from.amount)
-            throw new IllegalStateException("Underflow");
+            errorMessage = "Underflow";
         else if (amount > MAX_AMOUNT || to.amount + amount > MAX_AMOUNT)
-            throw new IllegalStateException("Overflow");
+            errorMessage = "Overflow";
+        if (errorMessage != null) {
+            unlock(firstToLock);
+            unlock(lastToLock);
+            throw new IllegalStateException(errorMessage);
+        }
         from.amount -= amount;
         to.amount += amount;
 
-        firstToLock.lock.unlock();
-        lastToLock.lock.unlock();
+        unlock(firstToLock);
+        unlock(lastToLock);
+    }
+
+    /**
+     * Transfers amount from the cell of a split account if the cell has enough funds, otherwise returns false.
+     * The cell is locked in the place of its account in the order of indices, so a transfer that locks
+     * a single cell never deadlocks with the ones that lock all cells.
+     */
+    private boolean transferFromCell(Cell cell, boolean cellFirst, Account to, long amount) {
+        if (cellFirst) {
+            cell.lock.lock();
+            lock(to);
+        } else {
+            lock(to);
+            cell.lock.lock();
+        }
+        try {
+            if (cell.amount < amount)
+                return false;
+            if (to.amount + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            cell.amount -= amount;
+            to.amount += amount;
+            return true;
+        } finally {
+            if (cellFirst) {
+                unlock(to);
+                cell.lock.unlock();
+            } else {
+                cell.lock.unlock();
+                unlock(to);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Locks of all accounts are taken in the order of increasing indices, the same way as in
+     * {@link #transfer(int, int, long) transfer}, so concurrent operations never deadlock.
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        int[] order = IndexOrder.of(indices, accounts.length);
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+
+        int locked = 0;
+        try {
+            for (; locked < order.length; locked++) {
+                lock(accounts[indices[order[locked]]]);
+            }
+
+            for (int k = 0; k < indices.length; k++) {
+                long newAmount = accounts[indices[k]].amount + amounts[k];
+                if (newAmount < 0)
+                    throw new IllegalStateException("Underflow");
+                if (newAmount > MAX_AMOUNT)
+                    throw new IllegalStateException("Overflow");
+            }
+            for (int k = 0; k < indices.length; k++) {
+                accounts[indices[k]].amount += amounts[k];
+            }
+        } finally {
+            while (--locked >= 0) {
+                unlock(accounts[indices[order[locked]]]);
+            }
+        }
+    }
+
+    /**
+     * Publishes request to change amount in the account and waits until some thread applies it while
+     * holding the account lock. The thread that gets the lock applies all requests published so far.
+     * @param amount positive amount to deposit or negative amount to withdraw.
+     * @return resulting amount in account.
+     */
+    private long combine(Account account, long amount) {
+        Request request = requests.get();
+        request.amount = amount;
+        request.errorMessage = null;
+        request.done = false;
+        do {
+            request.next = account.published.get();
+        } while (!account.published.compareAndSet(request.next, request));
+
+        while (!request.done) {
+            if (tryLock(account)) {
+                try {
+                    Request r = account.published.getAndSet(null);
+                    while (r != null) {
+                        Request next = r.next; // read it before r is done and can be reused by its thread
+                        long newAmount = account.amount + r.amount;
+                        if (newAmount < 0)
+                            r.errorMessage = "Underflow";
+                        else if (newAmount > MAX_AMOUNT)
+                            r.errorMessage = "Overflow";
+                        else
+                            account.amount = newAmount;
+                        r.result = account.amount;
+                        r.done = true;
+                        r = next;
+                    }
+                } finally {
+                    unlock(account);
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        if (request.errorMessage != null)
+            throw new IllegalStateException(request.errorMessage);
+        return request.result;
+    }
+
+    /**
+     * Takes the lock of the account, or locks of all cells of a split account. When the lock is taken by
+     * another thread, the time spent waiting for it is counted.
+     */
+    private void lock(Account account) {
+        if (tryLock(account))
+            return;
+        long start = System.nanoTime();
+        if (account instanceof SplitAccount)
+            ((SplitAccount) account).lockAll();
+        else
+            account.lock.lock();
+        lockWaitNanos.add(System.nanoTime() - start);
+        lockWaits.add(1);
+    }
+
+    /**
+     * Takes the lock of the account, or locks of all cells of a split account, only if it is free.
+     */
+    private static boolean tryLock(Account account) {
+        if (account instanceof SplitAccount)
+            return ((SplitAccount) account).tryLockAll();
+        return account.lock.tryLock();
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock(Account)} or {@link #tryLock(Account)}.
+     */
+    private static void unlock(Account account) {
+        if (account instanceof SplitAccount)
+            ((SplitAccount) account).unlockAll();
+        else
+            account.lock.unlock();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLockWaits() {
+        return lockWaits.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
     }
 
     /**
      * Private account data structure.
      */
     private static class Account {
+        final StampedLock stampedLock = new StampedLock();
+
+        /**
+         * The write lock of {@link #stampedLock} that guards {@link #amount}, it is not used for split accounts.
+         */
+        final Lock lock = stampedLock.asWriteLock();
+
         /**
          * Amount of funds in this account.
          */
-        Lock lock = new ReentrantLock();
         long amount;
+
+        /**
+         * The list of requests waiting to be applied in flat-combining mode, null when the mode is off.
+         */
+        AtomicReference<Request> published;
+
+        /**
+         * Reads the amount optimistically and falls back to the read lock when the account is changed
+         * concurrently, so that readers never exclude each other.
+         */
+        long getAmount() {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp != 0) {
+                long result = amount;
+                if (stampedLock.validate(stamp))
+                    return result;
+            }
+            stamp = stampedLock.readLock();
+            try {
+                return amount;
+            } finally {
+                stampedLock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Returns the number of stamps that {@link #tryOptimisticRead(long[], int)} puts.
+         */
+        int stampCount() {
+            return 1;
+        }
+
+        /**
+         * Reads the amount optimistically and puts the stamps to validate it at the offset.
+         * Returns -1 when the account is locked.
+         * @see StampedLock#tryOptimisticRead()
+         */
+        long tryOptimisticRead(long[] stamps, int offset) {
+            long stamp = stampedLock.tryOptimisticRead();
+            if (stamp == 0)
+                return -1;
+            stamps[offset] = stamp;
+            return amount;
+        }
+
+        /**
+         * Returns true if the account has not been locked since the stamps at the offset were put.
+         * @see StampedLock#validate(long)
+         */
+        boolean validate(long[] stamps, int offset) {
+            return stampedLock.validate(stamps[offset]);
+        }
+    }
+
+    /**
+     * Account which funds are split into cells with their own locks, so that threads update their own cells in
+     * {@link #credit(int, long) credit} and {@link #debit(int, long) debit}.
+     *
+     * <p>The sum of cell capacities is {@link #MAX_AMOUNT}, so a cell update that fits into
+     * [0, capacity] of the cell never underflows or overflows the account. {@link #lockAll()} locks all
+     * cells and collects their sum into {@link Account#amount}, which {@link #unlockAll()} spreads back to the cells.
+     * Thus, other operations work with a split account the same way as with a regular one.
+     *
+     * <p>The account is read as the sum of its cells, each read optimistically with a stamp of its own,
+     * so reads fall back to the read locks of the cells. {@link #withdraw(long) withdraw} reads the other cells
+     * the same way while it holds the lock of its cell.
+     */
+    private static class SplitAccount extends Account {
+        final Cell[] cells = new Cell[SPLIT_CELLS];
+
+        SplitAccount() {
+            for (int i = 0; i < SPLIT_CELLS; i++) {
+                cells[i] = new Cell();
+            }
+            spread();
+        }
+
+        @Override
+        long getAmount() {
+            long result = sumOfCells(null);
+            if (result >= 0)
+                return result;
+            result = 0;
+            for (Cell cell : cells) {
+                cell.stampedLock.asReadLock().lock();
+                result += cell.amount;
+            }
+            for (int i = cells.length - 1; i >= 0; i--) {
+                cells[i].stampedLock.tryUnlockRead();
+            }
+            return result;
+        }
+
+        /**
+         * Reads the sum of cells other than the skipped one optimistically, returns -1 when some cell is locked
+         * or changes concurrently. The stamp of a cell grows each time the cell is written, so all cells are
+         * validated at once by the sum of their stamps, and no array of stamps is needed.
+         */
+        long sumOfCells(Cell skipped) {
+            long result = 0;
+            long stamps = 0;
+            for (Cell cell : cells) {
+                if (cell == skipped)
+                    continue;
+                long stamp = cell.stampedLock.tryOptimisticRead();
+                result += cell.amount;
+                if (!cell.stampedLock.validate(stamp))
+                    return -1;
+                stamps += stamp;
+            }
+            for (Cell cell : cells) {
+                if (cell == skipped)
+                    continue;
+                long stamp = cell.stampedLock.tryOptimisticRead();
+                if (stamp == 0)
+                    return -1;
+                stamps -= stamp;
+            }
+            return stamps == 0 ? result : -1;
+        }
+
+        @Override
+        int stampCount() {
+            return cells.length;
+        }
+
+        @Override
+        long tryOptimisticRead(long[] stamps, int offset) {
+            long result = 0;
+            for (int i = 0; i < cells.length; i++) {
+                long stamp = cells[i].stampedLock.tryOptimisticRead();
+                if (stamp == 0)
+                    return -1;
+                stamps[offset + i] = stamp;
+                result += cells[i].amount;
+            }
+            return result;
+        }
+
+        @Override
+        boolean validate(long[] stamps, int offset) {
+            for (int i = 0; i < cells.length; i++) {
+                if (!cells[i].stampedLock.validate(stamps[offset + i]))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the cell of the current thread.
+         */
+        Cell cell() {
+            return cells[(int) (Thread.currentThread().getId() % SPLIT_CELLS)];
+        }
+
+        /**
+         * Adds amount to the cell of the current thread.
+         * Returns false when the result does not fit into [0, capacity] of the cell.
+         */
+        boolean update(long amount) {
+            Cell cell = cell();
+            cell.lock.lock();
+            try {
+                long updated = cell.amount + amount;
+                if (updated < 0 || updated > cell.capacity)
+                    return false;
+                cell.amount = updated;
+                return true;
+            } finally {
+                cell.lock.unlock();
+            }
+        }
+
+        /**
+         * Withdraws amount from the cell of the current thread and returns the resulting amount of the account.
+         * Returns -1 when the cell does not have enough funds or other cells cannot be read without locking them.
+         * The other cells are not changed between the moment when they are read and when they are validated,
+         * while the cell is locked all along, so the withdrawal takes effect at some moment in between.
+         */
+        long withdraw(long amount) {
+            Cell cell = cell();
+            cell.lock.lock();
+            try {
+                if (cell.amount < amount)
+                    return -1;
+                long others = sumOfCells(cell);
+                if (others < 0)
+                    return -1;
+                cell.amount -= amount;
+                return others + cell.amount;
+            } finally {
+                cell.lock.unlock();
+            }
+        }
+
+        /**
+         * Spreads amount and the rest of capacity evenly between cells, must be called with all cells locked.
+         */
+        void spread() {
+            long headroom = MAX_AMOUNT - amount;
+            for (int i = 0; i < SPLIT_CELLS; i++) {
+                Cell cell = cells[i];
+                cell.amount = amount / SPLIT_CELLS + (i == 0 ? amount % SPLIT_CELLS : 0);
+                cell.capacity = cell.amount + headroom / SPLIT_CELLS + (i == 0 ? headroom % SPLIT_CELLS : 0);
+            }
+        }
+
+        /**
+         * Collects amounts of all cells into the account, must be called with all cells locked.
+         */
+        void collect() {
+            amount = 0;
+            for (Cell cell : cells) {
+                amount += cell.amount;
+            }
+        }
+
+        /**
+         * Locks all cells in the order of their indices and collects their amounts.
+         */
+        void lockAll() {
+            for (Cell cell : cells) {
+                cell.lock.lock();
+            }
+            collect();
+        }
+
+        /**
+         * Locks all cells and collects their amounts only if none of the cells is locked.
+         */
+        boolean tryLockAll() {
+            for (int i = 0; i < cells.length; i++) {
+                if (!cells[i].lock.tryLock()) {
+                    while (--i >= 0) {
+                        cells[i].lock.unlock();
+                    }
+                    return false;
+                }
+            }
+            collect();
+            return true;
+        }
+
+        /**
+         * Spreads the amount back to the cells and unlocks all of them.
+         */
+        void unlockAll() {
+            spread();
+            for (int i = cells.length - 1; i >= 0; i--) {
+                cells[i].lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A part of split account. Cells are padded, so that they do not share cache lines.
+     */
+    private static class Cell {
+        final StampedLock stampedLock = new StampedLock();
+        final Lock lock = stampedLock.asWriteLock();
+        long amount;
+        long capacity;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Deposit or withdraw request in flat-combining mode.
+     * A request is in at most one list at a time, because its thread waits until the request is done.
+     */
+    private static class Request {
+        /**
+         * Positive amount to deposit or negative amount to withdraw.
+         */
+        long amount;
+        Request next;
+
+        long result;
+        String errorMessage;
+
+        /**
+         * True when the request is applied, result and errorMessage are written before it.
+         */
+        volatile boolean done;
     }
 }
@@ -0,0 +1,19 @@
+package ru.ifmo.pp;
+
+/**
+ * Management interface of {@link BankImpl} with its lock contention counters.
+ * Counters are summed over all threads and are not reset.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public interface BankImplMXBean {
+    /**
+     * Returns the number of times a thread has found a lock of an account taken and has waited for it.
+     */
+    public long getLockWaits();
+
+    /**
+     * Returns the total time in nanoseconds that threads have waited for locks of accounts.
+     */
+    public long getLockWaitNanos();
+}
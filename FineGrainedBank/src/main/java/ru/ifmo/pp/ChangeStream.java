@@ -0,0 +1,69 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+
+/**
+ * Subscriptions to the committed updates of a bank. The bank publishes every update while it holds
+ * the locks of the updated accounts, so that updates of each account are published in the order of commits.
+ * Publishing does not allocate anything when there are no subscriptions.
+ *
+ * @author Курбонзода Абдукодири
+ */
+class ChangeStream {
+    private static final ChangeSubscription[] NO_SUBSCRIPTIONS = new ChangeSubscription[0];
+
+    /**
+     * Current subscriptions, the array is replaced on every change and never modified.
+     */
+    private volatile ChangeSubscription[] subscriptions = NO_SUBSCRIPTIONS;
+
+    synchronized ChangeSubscription subscribe(int capacity, ChangeSubscription.OverflowPolicy policy) {
+        ChangeSubscription subscription = new ChangeSubscription(this, capacity, policy);
+        ChangeSubscription[] subscriptions = Arrays.copyOf(this.subscriptions, this.subscriptions.length + 1);
+        subscriptions[subscriptions.length - 1] = subscription;
+        this.subscriptions = subscriptions;
+        return subscription;
+    }
+
+    synchronized void unsubscribe(ChangeSubscription subscription) {
+        ChangeSubscription[] subscriptions = this.subscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == subscription) {
+                ChangeSubscription[] updated = new ChangeSubscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, updated, 0, i);
+                System.arraycopy(subscriptions, i + 1, updated, i, updated.length - i);
+                this.subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true when there are subscriptions, so that an update with many accounts is worth building.
+     */
+    boolean isSubscribed() {
+        return subscriptions.length != 0;
+    }
+
+    /**
+     * Publishes update of a single account.
+     */
+    void publish(BalanceUpdate.Type type, int index, long amount) {
+        if (isSubscribed())
+            publish(new BalanceUpdate(type, new int[] {index}, new long[] {amount}));
+    }
+
+    /**
+     * Publishes update of two accounts.
+     */
+    void publish(BalanceUpdate.Type type, int index1, long amount1, int index2, long amount2) {
+        if (isSubscribed())
+            publish(new BalanceUpdate(type, new int[] {index1, index2}, new long[] {amount1, amount2}));
+    }
+
+    void publish(BalanceUpdate update) {
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.offer(update);
+        }
+    }
+}
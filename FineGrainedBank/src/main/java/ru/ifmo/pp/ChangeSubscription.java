@@ -0,0 +1,92 @@
+package ru.ifmo.pp;
+
+import java.util.function.Consumer;
+
+/**
+ * Subscription to the stream of committed updates of a bank,
+ * see {@link StripedBankImpl#subscribe(int, OverflowPolicy)}.
+ *
+ * <p>Updates are put into a bounded {@link MpscRingBuffer} by the threads that commit them, and a single consumer
+ * thread drains them in batches with {@link #drain(Consumer, int) drain}. Updates of each account come in the
+ * order of their commits. Committing threads never wait for the consumer: when the buffer is full, an update
+ * is dropped or the subscription is cancelled, depending on its {@link OverflowPolicy}.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class ChangeSubscription implements AutoCloseable {
+    /**
+     * What happens to the subscription when its buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The update is dropped and counted in {@link #getDropped()}, later updates are still put into the buffer.
+         */
+        DROP,
+
+        /**
+         * The update is dropped and the subscription is cancelled, so that no more updates are put into
+         * the buffer. The consumer drains the rest and starts again from a {@link Bank#snapshot() snapshot}.
+         */
+        CANCEL
+    }
+
+    private final ChangeStream stream;
+    private final MpscRingBuffer<BalanceUpdate> buffer;
+    private final OverflowPolicy policy;
+    private final StripedCounter dropped = new StripedCounter();
+    private volatile boolean cancelled;
+
+    ChangeSubscription(ChangeStream stream, int capacity, OverflowPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        this.stream = stream;
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Puts the update into the buffer, it is called by committing threads.
+     */
+    void offer(BalanceUpdate update) {
+        if (cancelled)
+            return;
+        if (buffer.offer(update))
+            return;
+        dropped.add(1);
+        if (policy == OverflowPolicy.CANCEL)
+            cancelled = true; // it is removed from the stream by close, so that this thread does not wait
+    }
+
+    /**
+     * Passes up to limit first updates to the specified consumer in the order of the buffer,
+     * this method may only be called by a single consumer thread.
+     * @return the number of updates passed to the consumer.
+     */
+    public int drain(Consumer<? super BalanceUpdate> consumer, int limit) {
+        return buffer.drain(consumer, limit);
+    }
+
+    /**
+     * Returns the number of updates that were dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns true when the subscription was cancelled by an overflow or closed, then updates are missing
+     * after those in the buffer.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the subscription and stops publishing to it. Updates that are in the buffer can still be drained.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        stream.unsubscribe(this);
+    }
+}
@@ -0,0 +1,128 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Facade that addresses accounts of a bank by sparse 64-bit identifiers instead of indices.
+ * This class is thread-safe if the underlying bank is thread-safe.
+ *
+ * <p>Accounts of the underlying bank are given to identifiers in the order of opening. Identifiers are
+ * mapped to indices with a {@link LongIntHashMap}, so operations by identifier do not allocate anything
+ * besides what the operations of the underlying bank allocate. With {@link StripedBankImpl} lookups and
+ * transfers are allocation-free end to end.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class IdBank {
+    private final Bank bank;
+
+    /**
+     * Indices of accounts plus one by identifier, zero is a missing identifier.
+     */
+    private final LongIntHashMap index;
+
+    /**
+     * The number of accounts that were given to identifiers.
+     */
+    private final AtomicInteger numberOfOpened = new AtomicInteger();
+
+    /**
+     * Creates new facade over the specified bank, all its accounts are free.
+     * @param bank the bank that keeps the amounts.
+     */
+    public IdBank(Bank bank) {
+        this.bank = bank;
+        index = new LongIntHashMap(bank.getNumberOfAccounts());
+    }
+
+    /**
+     * Returns the underlying bank.
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * Returns the number of accounts that were given to identifiers.
+     */
+    public int getNumberOfOpened() {
+        return numberOfOpened.get();
+    }
+
+    /**
+     * Gives a free account to the specified identifier.
+     *
+     * <p>When the same identifier is opened concurrently, the free account taken by the losing thread is
+     * not given to any identifier.
+     *
+     * @param id any identifier.
+     * @return the index of the account in the underlying bank.
+     * @throws IllegalArgumentException when id was already opened.
+     * @throws IllegalStateException when there are no free accounts.
+     */
+    public int open(long id) {
+        if (index.get(id) != 0)
+            throw new IllegalArgumentException("Repeated id: " + id);
+        int i;
+        do {
+            i = numberOfOpened.get();
+            if (i == bank.getNumberOfAccounts())
+                throw new IllegalStateException("No free accounts");
+        } while (!numberOfOpened.compareAndSet(i, i + 1));
+        if (index.putIfAbsent(id, i + 1) != 0)
+            throw new IllegalArgumentException("Repeated id: " + id);
+        return i;
+    }
+
+    /**
+     * Returns the index of the account with the specified identifier in the underlying bank.
+     * @param id an opened identifier.
+     * @throws IllegalArgumentException when id was not opened.
+     */
+    public int indexOf(long id) {
+        int i = index.get(id);
+        if (i == 0)
+            throw new IllegalArgumentException("Invalid id: " + id);
+        return i - 1;
+    }
+
+    /**
+     * Returns current amount in the account with the specified identifier.
+     * @see Bank#getAmount(int)
+     */
+    public long getAmount(long id) {
+        return bank.getAmount(indexOf(id));
+    }
+
+    /**
+     * Returns total amount deposited in the underlying bank.
+     * @see Bank#getTotalAmount()
+     */
+    public long getTotalAmount() {
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * Deposits the specified amount to the account with the specified identifier.
+     * @see Bank#deposit(int, long)
+     */
+    public long deposit(long id, long amount) {
+        return bank.deposit(indexOf(id), amount);
+    }
+
+    /**
+     * Withdraws the specified amount from the account with the specified identifier.
+     * @see Bank#withdraw(int, long)
+     */
+    public long withdraw(long id, long amount) {
+        return bank.withdraw(indexOf(id), amount);
+    }
+
+    /**
+     * Transfers the specified amount between the accounts with the specified identifiers.
+     * @see Bank#transfer(int, int, long)
+     */
+    public void transfer(long fromId, long toId, long amount) {
+        bank.transfer(indexOf(fromId), indexOf(toId), amount);
+    }
+}
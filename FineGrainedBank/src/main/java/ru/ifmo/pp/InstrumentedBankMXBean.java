@@ -0,0 +1,18 @@
+package ru.ifmo.pp;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link InstrumentedBank}.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public interface InstrumentedBankMXBean {
+    /**
+     * Returns percentiles of latencies of all operations that have been invoked so far, including the ones
+     * that have thrown an exception.
+     *
+     * @return percentiles by the name of the {@link Bank} method.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getLatencies();
+}
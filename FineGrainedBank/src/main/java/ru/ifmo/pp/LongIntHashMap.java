@@ -0,0 +1,273 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe Long-to-Int hash map with open addressing and linear probes.
+ *
+ * <p>This is the design of <code>IntIntHashMap</code> from MPP-HashMap widened to long keys. Keys and values
+ * are kept in two primitive arrays, so {@link #get(long) get} never allocates. Keys cannot be removed,
+ * so a key is always found before the first empty slot of its probe sequence. Any long is a key: zero marks
+ * empty slots, so the value of key zero is kept apart from the arrays.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class LongIntHashMap {
+    private static final long MAGIC = 0x9E3779B97F4A7C15L; // golden ratio
+    private static final int MIN_CAPACITY = 2;
+    private static final int MAX_PROBES = 8; // max number of probes to insert a new key before rehash
+
+    private static final long NULL_KEY = 0; // missing key (initial value)
+    private static final int NULL_VALUE = 0; // missing value (initial value)
+    private static final int NEEDS_REHASH = -1; // returned by getInternal and putInternal to indicate that rehash is needed
+
+    private final AtomicReference<Core> core;
+
+    /**
+     * The value of {@link #NULL_KEY}, that cannot be put into slots.
+     */
+    private final AtomicInteger nullKeyValue = new AtomicInteger(NULL_VALUE);
+
+    /**
+     * Creates new map that holds the expected number of keys without rehash.
+     * @param expectedSize the expected number of keys.
+     */
+    public LongIntHashMap(int expectedSize) {
+        if (expectedSize < 0 || expectedSize > 1 << 28)
+            throw new IllegalArgumentException("Invalid expected size: " + expectedSize);
+        // Keep at most a quarter of slots occupied, so that probe sequences stay short
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, 4 * expectedSize - 1)) << 1);
+        core = new AtomicReference<>(new Core(capacity));
+    }
+
+    /**
+     * Returns value for the corresponding key or zero if this key is not present.
+     * @param key any key.
+     * @return value for the corresponding or zero if this key is not present.
+     */
+    public int get(long key) {
+        if (key == NULL_KEY)
+            return nullKeyValue.get();
+        while (true) {
+            Core currentCore = core.get();
+            int value = currentCore.getInternal(key);
+            if (value != NEEDS_REHASH)
+                return value;
+            rehash(currentCore);
+        }
+    }
+
+    /**
+     * Changes value for the corresponding key and returns old value or zero if key was not present.
+     * @param key any key.
+     * @param value a positive value.
+     * @return old value or zero if this key was not present.
+     * @throws IllegalArgumentException if value is not positive.
+     */
+    public int put(long key, int value) {
+        return putAndRehashWhileNeeded(key, value, false);
+    }
+
+    /**
+     * Sets value for the corresponding key if it is not present yet.
+     * @param key any key.
+     * @param value a positive value.
+     * @return current value or zero if this key was not present and the given value was set.
+     * @throws IllegalArgumentException if value is not positive.
+     */
+    public int putIfAbsent(long key, int value) {
+        return putAndRehashWhileNeeded(key, value, true);
+    }
+
+    private int putAndRehashWhileNeeded(long key, int value, boolean onlyIfAbsent) {
+        if (value <= 0) throw new IllegalArgumentException("Invalid value: " + value);
+        if (key == NULL_KEY) {
+            // Values are never set back to zero, so a present value stays present
+            if (!onlyIfAbsent)
+                return nullKeyValue.getAndSet(value);
+            return nullKeyValue.compareAndSet(NULL_VALUE, value) ? NULL_VALUE : nullKeyValue.get();
+        }
+        while (true) {
+            Core currentCore = core.get();
+            int oldValue = currentCore.putInternal(key, value, onlyIfAbsent);
+            if (oldValue != NEEDS_REHASH)
+                return oldValue;
+            rehash(currentCore);
+        }
+    }
+
+    private void rehash(Core currentCore) {
+        if (core.get() == currentCore) {
+            currentCore.rehash();
+            core.compareAndSet(currentCore, currentCore.next.get());
+        }
+    }
+
+    private static class Core {
+        final AtomicLongArray keys;
+        final AtomicIntegerArray values; // value of the key at the same index
+        final AtomicReference<Core> next;
+        final int shift;
+        final static int TAG_MOVED_VALUE = Integer.MIN_VALUE; // for tagging values that are already moved
+
+        /**
+         * Creates new core with a given capacity for (key, value) pairs.
+         */
+        Core(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicIntegerArray(capacity);
+            next = new AtomicReference<>(null);
+            int mask = capacity - 1;
+            assert mask > 0 && (mask & capacity) == 0 : "Capacity must be power of 2: " + capacity;
+            shift = 64 - Integer.bitCount(mask);
+        }
+
+        int getInternal(long key) {
+            for (int probes = 0, index = index(key); probes < keys.length(); ++probes, index = nextIndex(index)) {
+                // A value is read before its key, and a key is written before its value
+                int aValue = values.get(index);
+                long aKey = keys.get(index);
+
+                if (isMoved(aValue))
+                    return NEEDS_REHASH;
+                if (aKey == key || aKey == NULL_KEY)
+                    return untaggedOf(aValue);
+            }
+            return NULL_VALUE;
+        }
+
+        int putInternal(long key, int value, boolean onlyIfAbsent) {
+            for (int probes = 0, index = index(key); probes < keys.length(); ) {
+                int aValue = values.get(index);
+                long aKey = keys.get(index);
+
+                if (isTagged(aValue))
+                    return NEEDS_REHASH;
+
+                if (aKey == NULL_KEY) {
+                    if (probes >= MAX_PROBES)
+                        return NEEDS_REHASH;
+                    // Reread this slot whether the key was set by this or another thread
+                    keys.compareAndSet(index, NULL_KEY, key);
+                    continue;
+                }
+
+                if (aKey == key) {
+                    if (onlyIfAbsent && aValue != NULL_VALUE)
+                        return aValue;
+                    if (values.compareAndSet(index, aValue, value))
+                        return aValue;
+                    continue;
+                }
+
+                ++probes;
+                index = nextIndex(index);
+            }
+            return NEEDS_REHASH;
+        }
+
+        void rehash() {
+            next.compareAndSet(null, new Core(2 * keys.length()));
+
+            for (int index = 0; index < values.length(); index++) {
+                int aValue = values.get(index);
+
+                if (isMoved(aValue))
+                    continue;
+
+                if (!isTagged(aValue))
+                    if (!values.compareAndSet(index, aValue, taggedOf(aValue))) {
+                        index--;
+                        continue;
+                    }
+
+                if (isValue(untaggedOf(aValue))) {
+                    next.get().moveKeyValue(keys.get(index), untaggedOf(aValue));
+                    values.set(index, TAG_MOVED_VALUE);
+                }
+            }
+        }
+
+        private void moveKeyValue(long key, int value) {
+            assert key != NULL_KEY && isValue(value);
+
+            // Unlike putInternal, the number of probes is not limited, since moved keys must fit
+            for (int probes = 0, index = index(key); probes < keys.length(); ) {
+                long aKey = keys.get(index);
+
+                if (aKey == NULL_KEY) {
+                    if (keys.compareAndSet(index, aKey, key)) {
+                        values.compareAndSet(index, NULL_VALUE, value);
+                        return;
+                    }
+                    continue;
+                }
+
+                if (aKey == key) {
+                    values.compareAndSet(index, NULL_VALUE, value);
+                    return;
+                }
+
+                ++probes;
+                index = nextIndex(index);
+            }
+            throw new AssertionError("Couldn't put (" + key + ", " + value + ") pair during rehash");
+        }
+
+        /**
+         * Returns an initial index in map to look for a given key.
+         */
+        int index(long key) {
+            return (int) ((key * MAGIC) >>> shift);
+        }
+
+        /**
+         * Returns the next index in map to look after given index.
+         */
+        int nextIndex(int index) {
+            if (index == 0)
+                index = keys.length();
+            return index - 1;
+        }
+
+        /**
+         * Returns true if the given value is in the range of allowed values.
+         */
+        boolean isValue(int value) {
+            return value > 0;
+        }
+
+        /**
+         * Returns true if the given value if moved. False otherwise.
+         */
+        boolean isMoved(int value) {
+            return value == TAG_MOVED_VALUE;
+        }
+
+        /**
+         * Returns true if the given value is tagged as being moved or already moved.
+         */
+        boolean isTagged(int value) {
+            return (value & (1 << 31)) != 0;
+        }
+
+        /**
+         * Returns a value which is derived by tagging the given value.
+         * A missing value is tagged as already moved, since there is nothing to move.
+         */
+        int taggedOf(int value) {
+            return value | (1 << 31);
+        }
+
+        /**
+         * Returns the value which was derived to the given value by tagging.
+         * If the given value is not tagged the given value is returned.
+         */
+        int untaggedOf(int value) {
+            return value & (~(1 << 31));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bank implementation that keeps balances in a memory-mapped file.
+ * This class is thread-safe and uses the same table of locks as {@link StripedBankImpl}.
+ *
+ * <p>The file is an array of little-endian amounts by account index. Opening a bank maps the file
+ * without reading it, so an existing file brings back all balances at once and the operating system pages
+ * them in on demand. A new file is sparse, all its amounts are 0.
+ *
+ * <p>The operating system writes changed pages back to the file eventually, {@link #force()} writes them
+ * immediately. Changes of multiple accounts are not written atomically.
+ *
+ * <p>{@link #close()} writes changed pages and releases the mapping at once, instead of waiting until the buffer
+ * is collected, so that a process can open many banks one after another. The bank must not be used after it is
+ * closed or while it is being closed.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class MappedBankImpl extends StripedBankImpl implements Closeable {
+    private final MappedByteBuffer buffer;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Opens bank in the specified file with the default number of locks.
+     * @param file the file of amounts, it is created if it does not exist.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @throws IllegalArgumentException when the file has a different number of accounts or n is too large.
+     * @throws IOException when the file cannot be mapped.
+     */
+    public MappedBankImpl(Path file, int n) throws IOException {
+        this(file, n, defaultStripes(n));
+    }
+
+    /**
+     * Opens bank in the specified file.
+     * @param file the file of amounts, it is created if it does not exist.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param stripes the number of locks, it is rounded up to a power of two.
+     * @throws IllegalArgumentException when the file has a different number of accounts or n is too large.
+     * @throws IOException when the file cannot be mapped.
+     */
+    public MappedBankImpl(Path file, int n, int stripes) throws IOException {
+        this(map(file, n), stripes);
+    }
+
+    private MappedBankImpl(MappedByteBuffer buffer, int stripes) {
+        super(buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(), stripes);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Writes all changed amounts to the file.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Writes all changed amounts to the file and unmaps it. It does nothing when the bank is closed already.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        buffer.force();
+        unmap(buffer);
+    }
+
+    /**
+     * Releases the mapping of the buffer with its cleaner. The JDK has no public method for that, so it is found
+     * by reflection: Unsafe.invokeCleaner since Java 9, and the cleaner of the buffer in Java 8. When neither is
+     * accessible, the mapping is released when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mapping is released when the buffer is collected
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, int n) throws IOException {
+        long size = (long) n * 8;
+        if (n < 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid number of accounts: " + n);
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != 0 && channel.size() != size)
+                throw new IllegalArgumentException("File has " + channel.size() / 8 + " accounts instead of " + n);
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
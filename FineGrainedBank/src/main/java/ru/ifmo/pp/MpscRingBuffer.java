@@ -0,0 +1,121 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ *
+ * <p>Each slot has a sequence number. A slot at position p is free for a producer when its sequence
+ * is p, and it holds an element for the consumer when its sequence is p + 1. Producers claim positions
+ * with a CAS on the tail, the consumer owns the head and needs no CAS at all.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class MpscRingBuffer<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    /**
+     * The next position to offer an element at.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to poll an element from, it is only accessed by the consumer.
+     */
+    private long head;
+
+    /**
+     * Creates new buffer.
+     * @param capacity the maximal number of elements, it is rounded up to a power of two.
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the maximal number of elements.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds the specified element to this buffer if it is not full, this method may be called by any thread.
+     * @return true if the element was added, false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1); // publishes the element
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false; // the consumer has not polled this slot since the previous round
+            }
+            // Otherwise another producer has claimed this position, so retry with a new tail
+        }
+    }
+
+    /**
+     * Removes and returns the first element, this method may only be called by the consumer.
+     * @return the first element or null if the buffer is empty or the first element is not published yet.
+     */
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1)
+            return null;
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, head + mask + 1); // frees the slot for the next round
+        head++;
+        return element;
+    }
+
+    /**
+     * Removes up to limit first elements and passes them to the specified consumer in order,
+     * this method may only be called by the consumer. Slots are freed with lazy writes, which is
+     * cheaper than polling elements one by one.
+     * @return the number of removed elements.
+     */
+    public int drain(Consumer<? super E> consumer, int limit) {
+        int count = 0;
+        for (; count < limit; count++) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break;
+            E element = elements.get(index);
+            elements.lazySet(index, null);
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            consumer.accept(element);
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if there is no element to poll, this method may only be called by the consumer.
+     */
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
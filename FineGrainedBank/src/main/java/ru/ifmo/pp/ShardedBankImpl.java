@@ -0,0 +1,734 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bank implementation that partitions accounts across single-writer shard threads.
+ * This class is thread-safe, but there are no locks or atomic variables guarding the accounts.
+ *
+ * <p>An account with index i belongs to the shard <code>i % k</code>, where k is the number of shards.
+ * Each shard is a thread that owns the amounts of its accounts and applies operations one by one in the order
+ * they arrive to its {@link MpscRingBuffer}. Asynchronous methods return {@link CompletableFuture} that is
+ * completed by a shard thread, so actions that depend on it must not wait for other operations of this bank.
+ * Methods of {@link Bank} wait for the futures.
+ *
+ * <p>Operations on accounts of several shards visit the shards in the order of increasing shard numbers.
+ * Every shard but the last one locks the accounts of the operation, then passes it to the next shard. The last
+ * shard decides the outcome, applies it to its accounts, completes the future, and sends the operation back
+ * to the previous shards, which apply it and unlock the accounts. An operation that meets a locked account
+ * waits in the shard without blocking its thread, and operations on the same account never overtake each other,
+ * so every operation takes effect at a single instant and shards never deadlock. {@link #getTotalAmount()}
+ * and {@link #snapshot()} visit all shards the same way, and they lock all accounts of a shard at once.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class ShardedBankImpl implements Bank, Closeable {
+    /**
+     * The maximal number of operations waiting in the queue of a shard.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final int n;
+    private final Shard[] shards;
+    private volatile boolean closed;
+
+    /**
+     * Creates new bank instance with a shard per available processor.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public ShardedBankImpl(int n) {
+        this(n, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates new bank instance and starts its shard threads.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param numberOfShards the number of shard threads.
+     */
+    public ShardedBankImpl(int n, int numberOfShards) {
+        if (n < 0)
+            throw new IllegalArgumentException("Invalid number of accounts: " + n);
+        if (numberOfShards <= 0)
+            throw new IllegalArgumentException("Invalid number of shards: " + numberOfShards);
+        this.n = n;
+        shards = new Shard[numberOfShards];
+        for (int s = 0; s < numberOfShards; s++) {
+            shards[s] = new Shard(s, (n - s + numberOfShards - 1) / numberOfShards);
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Stops all shard threads. Operations that have not completed yet never complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard);
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        return await(getAmountAsync(index));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return await(getTotalAmountAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        return await(snapshotAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        return await(depositAsync(index, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        return await(withdrawAsync(index, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        await(transferAsync(fromIndex, toIndex, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        await(transactAsync(indices, amounts));
+    }
+
+    /**
+     * Asynchronous version of {@link #getAmount(int)}.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> getAmountAsync(int index) {
+        checkIndex(index);
+        return submit(new AccountOp(AccountOp.GET, index, 0));
+    }
+
+    /**
+     * Asynchronous version of {@link #getTotalAmount()}.
+     */
+    public CompletableFuture<Long> getTotalAmountAsync() {
+        TotalAmountOp op = new TotalAmountOp(null);
+        send(shards[0], op);
+        return op.future;
+    }
+
+    /**
+     * Asynchronous version of {@link #snapshot()}.
+     */
+    public CompletableFuture<BankSnapshot> snapshotAsync() {
+        final TotalAmountOp op = new TotalAmountOp(new long[n]);
+        send(shards[0], op);
+        return op.future.thenApply(sum -> new ArrayBankSnapshot(op.copy));
+    }
+
+    /**
+     * Asynchronous version of {@link #deposit(int, long)}, the future fails with
+     * {@link IllegalStateException} on overflow.
+     * @throws IllegalArgumentException when amount &lt;= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        return submit(new AccountOp(AccountOp.DEPOSIT, index, amount));
+    }
+
+    /**
+     * Asynchronous version of {@link #withdraw(int, long)}, the future fails with
+     * {@link IllegalStateException} on underflow.
+     * @throws IllegalArgumentException when amount &lt;= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        return submit(new AccountOp(AccountOp.WITHDRAW, index, amount));
+    }
+
+    /**
+     * Asynchronous version of {@link #transfer(int, int, long)}, the future fails with
+     * {@link IllegalStateException} on underflow or overflow.
+     * @throws IllegalArgumentException when amount &lt;= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when indices are invalid account indices.
+     */
+    public CompletableFuture<Void> transferAsync(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        return submit(new Transaction(new int[] {fromIndex, toIndex}, new long[] {-amount, amount}));
+    }
+
+    /**
+     * Asynchronous version of {@link #transact(int[], long[])}, the future fails with
+     * {@link IllegalStateException} on underflow or overflow.
+     * @throws IllegalArgumentException when arrays have different lengths, some amount is 0, or some index repeats.
+     * @throws IndexOutOfBoundsException when some index is invalid account index.
+     */
+    public CompletableFuture<Void> transactAsync(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            checkIndex(sorted[i]);
+            if (i > 0 && sorted[i] == sorted[i - 1])
+                throw new IllegalArgumentException("Repeated index: " + sorted[i]);
+        }
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException("Underflow/overflow"));
+                return future;
+            }
+        }
+        if (indices.length == 0)
+            return CompletableFuture.completedFuture(null);
+        return submit(new Transaction(indices.clone(), amounts.clone()));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= n)
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+    }
+
+    private CompletableFuture<Long> submit(AccountOp op) {
+        send(shards[op.index % shards.length], op);
+        return op.future;
+    }
+
+    private CompletableFuture<Void> submit(Transaction op) {
+        send(shards[op.order[0]], op);
+        return op.future;
+    }
+
+    /**
+     * Sends the message from a client thread, waiting while the queue of the shard is full.
+     */
+    private void send(Shard shard, Message message) {
+        while (!shard.queue.offer(message)) {
+            if (closed)
+                break;
+            Thread.yield();
+        }
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+        shard.signal();
+    }
+
+    /**
+     * Waits for the future and throws the exception of a failed operation as is.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an exception for a change of an amount that does not fit into [0, MAX_AMOUNT] or null.
+     */
+    private static IllegalStateException checkChange(long amount, long delta) {
+        if (delta < 0 ? -delta > amount : delta > MAX_AMOUNT - amount)
+            return new IllegalStateException(delta < 0 ? "Underflow" : "Overflow");
+        return null;
+    }
+
+    /**
+     * Thread that owns the accounts i with <code>i % k == id</code>, the account i has local index
+     * <code>i / k</code>. All fields but the queue are only accessed by this thread.
+     */
+    private final class Shard extends Thread {
+        final int id;
+        final long[] amounts;
+        final MpscRingBuffer<Message> queue = new MpscRingBuffer<>(QUEUE_CAPACITY);
+        volatile boolean parked;
+
+        /**
+         * Accounts that are locked by operations that visit more shards.
+         */
+        final boolean[] locked;
+        int lockedCount;
+
+        /**
+         * True when all accounts are locked by {@link TotalAmountOp}.
+         */
+        boolean frozen;
+
+        /**
+         * Messages that wait for locked accounts in the order of arrival.
+         */
+        final ArrayDeque<Message> deferred = new ArrayDeque<>();
+
+        /**
+         * Accounts that are touched by deferred messages are marked with the current scan number,
+         * so that later messages do not overtake the deferred ones.
+         */
+        final int[] blocked;
+        int scan = 1;
+        boolean anyBlocked;
+        boolean allBlocked;
+
+        /**
+         * Messages to other shards with full queues, and their shards.
+         */
+        final ArrayDeque<Message> outbox = new ArrayDeque<>();
+        final ArrayDeque<Shard> outboxTargets = new ArrayDeque<>();
+
+        Shard(int id, int size) {
+            super("Shard-" + id);
+            setDaemon(true);
+            this.id = id;
+            amounts = new long[size];
+            locked = new boolean[size];
+            blocked = new int[size];
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Message message = queue.poll();
+                if (message != null)
+                    process(message);
+                if (!outbox.isEmpty()) {
+                    if (!flush() && message == null)
+                        Thread.yield();
+                    continue;
+                }
+                if (message != null)
+                    continue;
+                if (closed)
+                    return;
+                parked = true;
+                if (queue.isEmpty() && !closed)
+                    LockSupport.park(this);
+                parked = false;
+            }
+        }
+
+        /**
+         * Wakes this shard up after a message was added to its queue.
+         */
+        void signal() {
+            if (parked)
+                LockSupport.unpark(this);
+        }
+
+        /**
+         * Sends the message to another shard. The message waits in the outbox while the queue of that shard
+         * is full, so that shards with full queues keep processing their own messages and never deadlock.
+         */
+        void forward(Shard shard, Message message) {
+            if (outbox.isEmpty() && shard.queue.offer(message)) {
+                shard.signal();
+                return;
+            }
+            outbox.addLast(message);
+            outboxTargets.addLast(shard);
+        }
+
+        /**
+         * Sends messages from the outbox in order and returns true if all of them were sent.
+         */
+        boolean flush() {
+            while (!outbox.isEmpty()) {
+                Shard shard = outboxTargets.peekFirst();
+                if (!shard.queue.offer(outbox.peekFirst()))
+                    return false;
+                outbox.removeFirst();
+                outboxTargets.removeFirst();
+                shard.signal();
+            }
+            return true;
+        }
+
+        void process(Message message) {
+            if (message.releases()) {
+                message.run(this);
+                retry();
+            } else if (message.canRun(this)) {
+                message.run(this);
+            } else {
+                deferred.addLast(message);
+                message.block(this);
+            }
+        }
+
+        /**
+         * Runs deferred messages that do not wait for locked accounts or earlier deferred messages anymore.
+         */
+        void retry() {
+            if (deferred.isEmpty() && !anyBlocked)
+                return;
+            if (++scan == 0) {
+                Arrays.fill(blocked, 0);
+                scan = 1;
+            }
+            anyBlocked = false;
+            allBlocked = false;
+            for (Iterator<Message> it = deferred.iterator(); it.hasNext(); ) {
+                Message message = it.next();
+                if (message.canRun(this)) {
+                    it.remove();
+                    message.run(this);
+                } else {
+                    message.block(this);
+                }
+            }
+        }
+
+        boolean isFree(int local) {
+            return !frozen && !allBlocked && !locked[local] && blocked[local] != scan;
+        }
+
+        boolean canFreeze() {
+            return !frozen && !anyBlocked && lockedCount == 0;
+        }
+
+        void block(int local) {
+            blocked[local] = scan;
+            anyBlocked = true;
+        }
+
+        void blockAll() {
+            anyBlocked = true;
+            allBlocked = true;
+        }
+
+        void lock(int local) {
+            locked[local] = true;
+            lockedCount++;
+        }
+
+        void unlock(int local) {
+            locked[local] = false;
+            lockedCount--;
+        }
+
+        /**
+         * Returns the sum of all accounts of this shard, copying their amounts to the array by global indices
+         * if it is not null.
+         */
+        long sum(long[] copy) {
+            long sum = 0;
+            for (int local = 0; local < amounts.length; local++) {
+                sum += amounts[local];
+                if (copy != null)
+                    copy[local * shards.length + id] = amounts[local];
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Operation or its part sent to a shard.
+     */
+    private abstract static class Message {
+        /**
+         * Returns true if this message unlocks accounts, such messages never wait.
+         */
+        abstract boolean releases();
+
+        /**
+         * Returns true if accounts of this message at the shard are not locked and not blocked.
+         */
+        abstract boolean canRun(Shard shard);
+
+        /**
+         * Marks accounts of this message at the shard as blocked by a deferred message.
+         */
+        abstract void block(Shard shard);
+
+        abstract void run(Shard shard);
+    }
+
+    /**
+     * Operation on a single account.
+     */
+    private final class AccountOp extends Message {
+        static final int GET = 0;
+        static final int DEPOSIT = 1;
+        static final int WITHDRAW = 2;
+
+        final int kind;
+        final int index;
+        final long amount;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        AccountOp(int kind, int index, long amount) {
+            this.kind = kind;
+            this.index = index;
+            this.amount = amount;
+        }
+
+        @Override
+        boolean releases() {
+            return false;
+        }
+
+        @Override
+        boolean canRun(Shard shard) {
+            return shard.isFree(index / shards.length);
+        }
+
+        @Override
+        void block(Shard shard) {
+            shard.block(index / shards.length);
+        }
+
+        @Override
+        void run(Shard shard) {
+            int local = index / shards.length;
+            if (kind == GET) {
+                future.complete(shard.amounts[local]);
+                return;
+            }
+            long delta = kind == DEPOSIT ? amount : -amount;
+            IllegalStateException failure = checkChange(shard.amounts[local], delta);
+            if (failure != null) {
+                future.completeExceptionally(failure);
+                return;
+            }
+            shard.amounts[local] += delta;
+            future.complete(shard.amounts[local]);
+        }
+    }
+
+    /**
+     * Operation that changes several accounts at once, it is used for transfer and transact.
+     * It visits shards in {@link #order}, and then it is sent back to all of them but the last one.
+     */
+    private final class Transaction extends Message {
+        final int[] indices;
+        final long[] deltas;
+        final int[] order;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        int position; // in order
+        IllegalStateException failure;
+        boolean decided;
+
+        Transaction(int[] indices, long[] deltas) {
+            this.indices = indices;
+            this.deltas = deltas;
+            int[] sorted = new int[indices.length];
+            for (int k = 0; k < indices.length; k++) {
+                sorted[k] = indices[k] % shards.length;
+            }
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int k = 0; k < sorted.length; k++) {
+                if (k == 0 || sorted[k] != sorted[k - 1])
+                    sorted[count++] = sorted[k];
+            }
+            order = Arrays.copyOf(sorted, count);
+        }
+
+        @Override
+        boolean releases() {
+            return decided;
+        }
+
+        @Override
+        boolean canRun(Shard shard) {
+            for (int index : indices) {
+                if (index % shards.length == shard.id && !shard.isFree(index / shards.length))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        void block(Shard shard) {
+            for (int index : indices) {
+                if (index % shards.length == shard.id)
+                    shard.block(index / shards.length);
+            }
+        }
+
+        @Override
+        void run(Shard shard) {
+            if (decided) {
+                // Back at a shard that locked its accounts
+                for (int k = 0; k < indices.length; k++) {
+                    if (indices[k] % shards.length == shard.id) {
+                        int local = indices[k] / shards.length;
+                        if (failure == null)
+                            shard.amounts[local] += deltas[k];
+                        shard.unlock(local);
+                    }
+                }
+                return;
+            }
+            boolean last = position == order.length - 1;
+            for (int k = 0; k < indices.length; k++) {
+                if (indices[k] % shards.length == shard.id) {
+                    int local = indices[k] / shards.length;
+                    IllegalStateException f = checkChange(shard.amounts[local], deltas[k]);
+                    // Underflow is reported rather than overflow, as in other implementations
+                    if (f != null && (failure == null || deltas[k] < 0))
+                        failure = f;
+                    if (!last)
+                        shard.lock(local);
+                }
+            }
+            if (!last) {
+                shard.forward(shards[order[++position]], this);
+                return;
+            }
+            decided = true;
+            if (failure == null) {
+                for (int k = 0; k < indices.length; k++) {
+                    if (indices[k] % shards.length == shard.id)
+                        shard.amounts[indices[k] / shards.length] += deltas[k];
+                }
+            }
+            for (int p = 0; p < position; p++) {
+                shard.forward(shards[order[p]], this);
+            }
+            if (failure == null)
+                future.complete(null);
+            else
+                future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Operation that sums all accounts and optionally copies them. It locks all accounts of every shard but
+     * the last one in the order of shards, and then it is sent back to them to unlock the accounts.
+     */
+    private final class TotalAmountOp extends Message {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        /**
+         * The array to copy amounts to, or null.
+         */
+        final long[] copy;
+
+        int position; // shard number
+        long sum;
+        boolean done;
+
+        TotalAmountOp(long[] copy) {
+            this.copy = copy;
+        }
+
+        @Override
+        boolean releases() {
+            return done;
+        }
+
+        @Override
+        boolean canRun(Shard shard) {
+            return shard.canFreeze();
+        }
+
+        @Override
+        void block(Shard shard) {
+            shard.blockAll();
+        }
+
+        @Override
+        void run(Shard shard) {
+            if (done) {
+                shard.frozen = false;
+                return;
+            }
+            sum += shard.sum(copy);
+            if (position < shards.length - 1) {
+                shard.frozen = true;
+                shard.forward(shards[++position], this);
+                return;
+            }
+            done = true;
+            for (int p = 0; p < position; p++) {
+                shard.forward(shards[p], this);
+            }
+            future.complete(sum);
+        }
+    }
+}
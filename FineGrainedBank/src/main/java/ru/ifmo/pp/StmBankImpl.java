@@ -0,0 +1,533 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bank implementation on top of a software transactional memory.
+ * This class is thread-safe, its operations are transactions in the style of TL2.
+ *
+ * <p>This implementation is based on "Transactional Locking II" by D. Dice, O. Shalev, and N. Shavit.
+ * Every account has a versioned lock, that is the version of its last update and a lock bit, and there is
+ * a global version clock. A transaction reads the clock when it starts, and reads an account only if it is not
+ * locked and its version is not newer than that, so that all reads are consistent as of the start. Writes are
+ * buffered until commit, which locks the written accounts, ticks the clock, validates the accounts that were read,
+ * writes the new amounts back, and releases the locks with the new version. A transaction that finds
+ * a conflict is restarted.
+ *
+ * <p>Read-only transactions, like {@link #getTotalAmount() getTotalAmount}, keep no read set and need no
+ * validation at commit. When they keep failing, they fall back to locking all accounts, the same way as
+ * {@link StripedBankImpl#getTotalAmount()} does.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class StmBankImpl implements Bank {
+    /**
+     * The number of attempts to read all accounts in a read-only transaction
+     * before falling back to locking all of them.
+     */
+    private static final int MAX_SCAN_ATTEMPTS = 4;
+
+    /**
+     * The number of restarts of a transaction before it yields to other threads between restarts.
+     */
+    private static final int SPINS = 16;
+
+    /**
+     * The lock bit of a versioned lock, the rest of the bits is the version.
+     */
+    private static final long LOCKED = 1;
+
+    /**
+     * The transaction of the current thread, it is reused by all operations of the thread.
+     */
+    private static final ThreadLocal<Transaction> TRANSACTIONS = ThreadLocal.withInitial(Transaction::new);
+
+    /**
+     * Versioned locks and amounts of accounts: the lock of account i is at 2i and its amount is at 2i+1,
+     * so that both are on the same cache line.
+     */
+    private final AtomicLongArray accounts;
+
+    /**
+     * The global version clock, it ticks when a transaction that writes commits.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public StmBankImpl(int n) {
+        accounts = new AtomicLongArray(2 * n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return accounts.length() / 2;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>A read-only transaction of a single account does not need the clock.
+     */
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        for (int attempt = 1; ; attempt++) {
+            long lock = accounts.get(2 * index);
+            long amount = accounts.get(2 * index + 1);
+            if ((lock & LOCKED) == 0 && accounts.get(2 * index) == lock)
+                return amount;
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return readAll(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The amounts are copied the same way as they are summed by {@link #getTotalAmount()}.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] copy = new long[getNumberOfAccounts()];
+        readAll(copy);
+        return new ArrayBankSnapshot(copy);
+    }
+
+    /**
+     * Reads all accounts in a read-only transaction and returns their sum.
+     * @param copy the array to copy amounts to, or null.
+     */
+    private long readAll(long[] copy) {
+        for (int attempt = 0; attempt < MAX_SCAN_ATTEMPTS; attempt++) {
+            long sum = scan(clock.get(), copy);
+            if (sum >= 0)
+                return sum;
+        }
+        // Accounts keep changing, so fall back to locking all of them, commits that conflict are restarted
+        int n = getNumberOfAccounts();
+        long[] locks = new long[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = lock(i);
+        }
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            long amount = accounts.get(2 * i + 1);
+            sum += amount;
+            if (copy != null)
+                copy[i] = amount;
+        }
+        for (int i = 0; i < n; i++) {
+            accounts.set(2 * i, locks[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Reads all accounts as of the specified version of the clock and returns their sum
+     * or -1 if some account was locked or updated after that.
+     * @param copy the array to copy amounts to, or null.
+     */
+    private long scan(long readVersion, long[] copy) {
+        long sum = 0;
+        for (int i = 0; i < accounts.length(); i += 2) {
+            long lock = accounts.get(i);
+            long amount = accounts.get(i + 1);
+            if ((lock & LOCKED) != 0 || lock >>> 1 > readVersion || accounts.get(i) != lock)
+                return -1;
+            sum += amount;
+            if (copy != null)
+                copy[i / 2] = amount;
+        }
+        return sum;
+    }
+
+    /**
+     * Waits until the account is not locked and locks it.
+     * @return the versioned lock of the account before it was locked.
+     */
+    private long lock(int index) {
+        for (int attempt = 1; ; attempt++) {
+            long lock = accounts.get(2 * index);
+            if ((lock & LOCKED) == 0 && accounts.compareAndSet(2 * index, lock, lock | LOCKED))
+                return lock;
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        checkIndex(index);
+        Transaction tx = Transaction.begin(this);
+        try {
+            while (true) {
+                long current = tx.read(index);
+                if (tx.isValid()) {
+                    if (current + amount > MAX_AMOUNT)
+                        throw new IllegalStateException("Overflow");
+                    tx.write(index, current + amount);
+                    if (tx.commit())
+                        return current + amount;
+                }
+                tx.restart();
+            }
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        Transaction tx = Transaction.begin(this);
+        try {
+            while (true) {
+                long current = tx.read(index);
+                if (tx.isValid()) {
+                    if (current - amount < 0)
+                        throw new IllegalStateException("Underflow");
+                    tx.write(index, current - amount);
+                    if (tx.commit())
+                        return current - amount;
+                }
+                tx.restart();
+            }
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow/overflow");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        Transaction tx = Transaction.begin(this);
+        try {
+            while (true) {
+                long from = tx.read(fromIndex);
+                long to = tx.read(toIndex);
+                // The amounts are consistent as of the start, so an error is reported as of that moment
+                if (tx.isValid()) {
+                    if (amount > from)
+                        throw new IllegalStateException("Underflow");
+                    if (to + amount > MAX_AMOUNT)
+                        throw new IllegalStateException("Overflow");
+                    tx.write(fromIndex, from - amount);
+                    tx.write(toIndex, to + amount);
+                    if (tx.commit())
+                        return;
+                }
+                tx.restart();
+            }
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        checkIndices(indices);
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        Transaction tx = Transaction.begin(this);
+        try {
+            while (true) {
+                for (int k = 0; k < indices.length && tx.isValid(); k++) {
+                    long newAmount = tx.read(indices[k]) + amounts[k];
+                    if (!tx.isValid())
+                        break;
+                    if (newAmount < 0)
+                        throw new IllegalStateException("Underflow");
+                    if (newAmount > MAX_AMOUNT)
+                        throw new IllegalStateException("Overflow");
+                    tx.write(indices[k], newAmount);
+                }
+                if (tx.commit())
+                    return;
+                tx.restart();
+            }
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException when some index repeats.
+     * @throws IndexOutOfBoundsException when some index is invalid.
+     */
+    private void checkIndices(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            checkIndex(sorted[i]);
+            if (i > 0 && sorted[i] == sorted[i - 1])
+                throw new IllegalArgumentException("Repeated index: " + sorted[i]);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= getNumberOfAccounts())
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+    }
+
+    /**
+     * Spins for the first {@link #SPINS} attempts and yields afterwards, so that a preempted thread that holds
+     * a lock can complete its commit.
+     */
+    private static void backOff(int attempt) {
+        if (attempt > SPINS)
+            Thread.yield();
+    }
+
+    /**
+     * Returns the number of attempts of the last transaction of the calling thread, 1 when it was not restarted.
+     */
+    static int lastAttempts() {
+        return TRANSACTIONS.get().attempt;
+    }
+
+    /**
+     * Transaction with a read set and a write set of accounts. It is bound to a bank from
+     * {@link #begin(StmBankImpl) begin} until {@link #end() end}, and is reused afterwards.
+     */
+    private static class Transaction {
+        private StmBankImpl bank;
+        private int attempt;
+
+        /**
+         * The value of the clock when this transaction has started.
+         */
+        private long readVersion;
+
+        /**
+         * False when some read was inconsistent, then the transaction must be restarted.
+         */
+        private boolean valid;
+
+        /**
+         * Indices of accounts that were read before they were written, if at all.
+         */
+        private int[] reads = new int[4];
+        private int readCount;
+
+        /**
+         * Indices of accounts that were written, their new amounts, and their versioned locks before commit
+         * has locked them.
+         */
+        private int[] writes = new int[4];
+        private long[] newAmounts = new long[4];
+        private long[] locks = new long[4];
+        private int writeCount;
+
+        static Transaction begin(StmBankImpl bank) {
+            Transaction tx = TRANSACTIONS.get();
+            tx.bank = bank;
+            tx.attempt = 0;
+            tx.restart();
+            return tx;
+        }
+
+        /**
+         * Unbinds this transaction from its bank, so that the thread does not keep the bank.
+         */
+        void end() {
+            bank = null;
+        }
+
+        /**
+         * Discards the read and write sets and starts again with the current value of the clock.
+         */
+        void restart() {
+            if (attempt > 0)
+                backOff(attempt);
+            attempt++;
+            readVersion = bank.clock.get();
+            valid = true;
+            readCount = 0;
+            writeCount = 0;
+        }
+
+        boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Returns the amount of the account as of the start, or its new amount if it was written.
+         * When the account was locked or updated after the start, the transaction becomes invalid.
+         */
+        long read(int index) {
+            int w = indexOfWrite(index);
+            if (w >= 0)
+                return newAmounts[w];
+            AtomicLongArray accounts = bank.accounts;
+            long lock = accounts.get(2 * index);
+            long amount = accounts.get(2 * index + 1);
+            if ((lock & LOCKED) != 0 || lock >>> 1 > readVersion || accounts.get(2 * index) != lock) {
+                valid = false;
+                return 0;
+            }
+            if (readCount == reads.length)
+                reads = Arrays.copyOf(reads, 2 * readCount);
+            reads[readCount++] = index;
+            return amount;
+        }
+
+        /**
+         * Buffers the new amount of the account until commit.
+         */
+        void write(int index, long amount) {
+            int w = indexOfWrite(index);
+            if (w < 0) {
+                if (writeCount == writes.length) {
+                    writes = Arrays.copyOf(writes, 2 * writeCount);
+                    newAmounts = Arrays.copyOf(newAmounts, 2 * writeCount);
+                    locks = Arrays.copyOf(locks, 2 * writeCount);
+                }
+                w = writeCount++;
+                writes[w] = index;
+            }
+            newAmounts[w] = amount;
+        }
+
+        private int indexOfWrite(int index) {
+            for (int w = 0; w < writeCount; w++) {
+                if (writes[w] == index)
+                    return w;
+            }
+            return -1;
+        }
+
+        /**
+         * Tries to commit this transaction.
+         * @return false when it is invalid or conflicts with another one, so that it must be restarted.
+         */
+        boolean commit() {
+            if (!valid)
+                return false;
+            if (writeCount == 0)
+                return true; // the reads were consistent as of the start
+            AtomicLongArray accounts = bank.accounts;
+            sortWrites();
+            // Locks are not waited for, a transaction that finds a locked account restarts, so there are no deadlocks
+            int locked = 0;
+            for (; locked < writeCount; locked++) {
+                int i = 2 * writes[locked];
+                long lock = accounts.get(i);
+                if ((lock & LOCKED) != 0 || lock >>> 1 > readVersion || !accounts.compareAndSet(i, lock, lock | LOCKED))
+                    break;
+                locks[locked] = lock;
+            }
+            if (locked == writeCount) {
+                long writeVersion = bank.clock.incrementAndGet();
+                // When no other transaction has committed since the start, the reads are still valid
+                if (writeVersion == readVersion + 1 || validateReads()) {
+                    for (int w = 0; w < writeCount; w++) {
+                        accounts.set(2 * writes[w] + 1, newAmounts[w]);
+                        accounts.set(2 * writes[w], writeVersion << 1);
+                    }
+                    return true;
+                }
+            }
+            while (--locked >= 0) {
+                accounts.set(2 * writes[locked], locks[locked]);
+            }
+            return false;
+        }
+
+        /**
+         * Returns true when no account of the read set is locked or was updated after the start.
+         * The accounts of the write set were checked when they were locked, and are locked by this transaction
+         * now, so they are skipped.
+         */
+        private boolean validateReads() {
+            for (int r = 0; r < readCount; r++) {
+                if (indexOfWrite(reads[r]) >= 0)
+                    continue;
+                long lock = bank.accounts.get(2 * reads[r]);
+                if ((lock & LOCKED) != 0 || lock >>> 1 > readVersion)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Sorts the write set by account indices, so that transactions lock accounts in the same order
+         * and do not keep restarting each other.
+         */
+        private void sortWrites() {
+            for (int w = 1; w < writeCount; w++) {
+                int index = writes[w];
+                long amount = newAmounts[w];
+                int v = w;
+                for (; v > 0 && writes[v - 1] > index; v--) {
+                    writes[v] = writes[v - 1];
+                    newAmounts[v] = newAmounts[v - 1];
+                }
+                writes[v] = index;
+                newAmounts[v] = amount;
+            }
+        }
+    }
+}
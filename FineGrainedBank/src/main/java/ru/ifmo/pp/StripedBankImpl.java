@@ -0,0 +1,600 @@
+package ru.ifmo.pp;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongUnaryOperator;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bank implementation for a large number of accounts.
+ * This class is thread-safe and uses a fixed table of locks.
+ *
+ * <p>Unlike {@link BankImpl}, there is no object per account. Amounts are stored in a primitive buffer,
+ * and an account with index i is guarded by the lock at <code>i &amp; (stripes - 1)</code> in a
+ * power-of-two table of locks, so many accounts share the same lock. Operations on multiple accounts
+ * take locks in the order of increasing lock indices and take each lock once, even when several
+ * accounts map to it, so they never deadlock.
+ *
+ * <p>With range sums on, the bank also keeps a Fenwick tree of amounts, so that
+ * {@link #getRangeAmount(int, int) getRangeAmount} and {@link #getTotalAmount() getTotalAmount} read
+ * O(log n) nodes of the tree instead of all accounts. Every update adds its change to O(log n) nodes
+ * while it holds the locks of its accounts, so the tree is consistent whenever no lock is held, and reads
+ * validate the stamps of all locks the same way as {@link #getTotalAmount() getTotalAmount} does.
+ *
+ * <p>{@link #applyToAll(LongUnaryOperator) applyToAll} takes all locks in order once and changes
+ * the accounts in parallel, instead of taking a lock for each account.
+ *
+ * <p>Committed updates with the new amounts of their accounts are published to the subscriptions of
+ * {@link #subscribe(int, ChangeSubscription.OverflowPolicy) subscribe} while the locks are held, so updates
+ * of each account come in the order of commits. Nothing is published when there are no subscriptions.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class StripedBankImpl implements Bank {
+    /**
+     * The number of locks per available processor by default.
+     */
+    private static final int STRIPES_PER_PROCESSOR = 16;
+
+    /**
+     * The number of attempts to read all accounts optimistically in {@link #getTotalAmount()}
+     * before falling back to locking all of them.
+     */
+    private static final int MAX_SCAN_ATTEMPTS = 4;
+
+    /**
+     * The number of accounts below which {@link ApplyTask} does not split its range.
+     */
+    private static final int APPLY_CHUNK = 1 << 12;
+
+    /**
+     * A buffer of account amounts by index.
+     */
+    private final LongBuffer amounts;
+
+    /**
+     * The table of locks, its size is a power of two.
+     */
+    private final PaddedLock[] locks;
+
+    /**
+     * Fenwick tree of amounts: node i, from 1 to n, keeps the sum of amounts with indices from
+     * <code>i - (i &amp; -i)</code> to i-1. Nodes are shared by accounts of different locks, so they are
+     * updated atomically. It is null when range sums are off.
+     */
+    private final AtomicLongArray tree;
+
+    /**
+     * Subscriptions to committed updates.
+     */
+    private final ChangeStream changes = new ChangeStream();
+
+    /**
+     * Creates new bank instance with the default number of locks.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public StripedBankImpl(int n) {
+        this(n, defaultStripes(n));
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param stripes the number of locks, it is rounded up to a power of two.
+     */
+    public StripedBankImpl(int n, int stripes) {
+        this(n, stripes, false);
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param stripes the number of locks, it is rounded up to a power of two.
+     * @param rangeSums true to keep a Fenwick tree of amounts for range sums.
+     */
+    public StripedBankImpl(int n, int stripes, boolean rangeSums) {
+        this(LongBuffer.allocate(n), stripes, rangeSums);
+    }
+
+    /**
+     * Creates new bank instance with amounts in the specified buffer.
+     * @param amounts the buffer of amounts, its capacity is the number of accounts.
+     * @param stripes the number of locks, it is rounded up to a power of two.
+     */
+    protected StripedBankImpl(LongBuffer amounts, int stripes) {
+        this(amounts, stripes, false);
+    }
+
+    /**
+     * Creates new bank instance with amounts in the specified buffer.
+     * @param amounts the buffer of amounts, its capacity is the number of accounts.
+     * @param stripes the number of locks, it is rounded up to a power of two.
+     * @param rangeSums true to keep a Fenwick tree of amounts for range sums, it is built from the buffer.
+     */
+    protected StripedBankImpl(LongBuffer amounts, int stripes, boolean rangeSums) {
+        if (stripes <= 0 || stripes > 1 << 30)
+            throw new IllegalArgumentException("Invalid number of stripes: " + stripes);
+        this.amounts = amounts;
+        locks = new PaddedLock[stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new PaddedLock();
+        }
+        tree = rangeSums ? buildTree(amounts) : null;
+    }
+
+    /**
+     * Builds Fenwick tree of the amounts in linear time, each node adds its sum to its parent.
+     */
+    private static AtomicLongArray buildTree(LongBuffer amounts) {
+        int n = amounts.capacity();
+        long[] nodes = new long[n + 1];
+        for (int i = 1; i <= n; i++) {
+            nodes[i] += amounts.get(i - 1);
+            int parent = i + (i & -i);
+            if (parent <= n)
+                nodes[parent] += nodes[i];
+        }
+        return new AtomicLongArray(nodes);
+    }
+
+    /**
+     * Returns the default number of locks for the specified number of accounts.
+     */
+    protected static int defaultStripes(int n) {
+        return Math.max(1, Math.min(n, STRIPES_PER_PROCESSOR * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return amounts.capacity();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        StampedLock lock = lockFor(index);
+        long stamp = lock.tryOptimisticRead();
+        long result = amounts.get(index);
+        if (lock.validate(stamp))
+            return result;
+        stamp = lock.readLock();
+        try {
+            return amounts.get(index);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return read(0, amounts.capacity(), null);
+    }
+
+    /**
+     * Returns total amount in the accounts with indices from fromIndex inclusive to toIndex exclusive.
+     * Summing takes O(log n) time with range sums on, and O(toIndex - fromIndex) time otherwise.
+     *
+     * <p>Besides, the read takes the stamps of all stripes and validates them, which takes time linear in
+     * the number of stripes however short the range is. An update of any account, even outside the range,
+     * fails the validation, and after {@link #MAX_SCAN_ATTEMPTS} failed reads this method read-locks all
+     * stripes, blocking updates of all accounts while it sums. See {@link #read(int, int, long[])}.
+     *
+     * @param fromIndex the first account index.
+     * @param toIndex the account index after the last one, from fromIndex to {@link #getNumberOfAccounts() n}.
+     * @return total amount in the accounts of the range.
+     * @throws IndexOutOfBoundsException when the range is invalid.
+     */
+    public long getRangeAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || fromIndex > toIndex || toIndex > amounts.capacity())
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        return read(fromIndex, toIndex, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The amounts are copied the same way as they are summed by {@link #getTotalAmount()}.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] copy = new long[amounts.capacity()];
+        read(0, copy.length, copy);
+        return new ArrayBankSnapshot(copy);
+    }
+
+    /**
+     * Reads the accounts of the range at a single instant and returns their sum.
+     * @param copy the array to copy amounts to, or null.
+     */
+    private long read(int fromIndex, int toIndex, long[] copy) {
+        /*
+         * First, try to read all accounts optimistically. If all stamps are still valid after all accounts
+         * were read, then no account has changed since the stamp of its lock was taken, so all of them had
+         * the read amounts at the moment between the two scans.
+         */
+        long[] stamps = new long[locks.length];
+        for (int attempt = 0; attempt < MAX_SCAN_ATTEMPTS; attempt++) {
+            long sum = scan(stamps, fromIndex, toIndex, copy);
+            if (sum >= 0)
+                return sum;
+        }
+        // Accounts keep changing, so fall back to locking all of them
+        int locked = 0;
+        try {
+            for (; locked < locks.length; locked++) {
+                stamps[locked] = locks[locked].readLock();
+            }
+            return sum(fromIndex, toIndex, copy);
+        } finally {
+            while (--locked >= 0) {
+                locks[locked].unlockRead(stamps[locked]);
+            }
+        }
+    }
+
+    /**
+     * Reads the accounts of the range optimistically and returns their sum or -1 if some account was changed.
+     * @param copy the array to copy amounts to, or null.
+     */
+    private long scan(long[] stamps, int fromIndex, int toIndex, long[] copy) {
+        for (int i = 0; i < locks.length; i++) {
+            stamps[i] = locks[i].tryOptimisticRead();
+            if (stamps[i] == 0)
+                return -1;
+        }
+        long sum = sum(fromIndex, toIndex, copy);
+        for (int i = 0; i < locks.length; i++) {
+            if (!locks[i].validate(stamps[i]))
+                return -1;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of amounts in the range, copying them to the array if it is not null.
+     * When nothing is copied, the sum is taken from the Fenwick tree if there is one.
+     */
+    private long sum(int fromIndex, int toIndex, long[] copy) {
+        if (tree != null && copy == null)
+            return prefixSum(toIndex) - prefixSum(fromIndex);
+        long sum = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            long amount = amounts.get(i);
+            sum += amount;
+            if (copy != null)
+                copy[i] = amount;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of amounts with indices from 0 to k-1 from the Fenwick tree.
+     */
+    private long prefixSum(int k) {
+        long sum = 0;
+        for (int i = k; i > 0; i -= i & -i) {
+            sum += tree.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Adds delta to the amount at index and to the Fenwick tree, must be called with the lock of the account.
+     */
+    private void add(int index, long delta) {
+        amounts.put(index, amounts.get(index) + delta);
+        if (tree != null) {
+            for (int i = index + 1; i < tree.length(); i += i & -i) {
+                tree.getAndAdd(i, delta);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        StampedLock lock = lockFor(index);
+        long stamp = lock.writeLock();
+        try {
+            if (amount > MAX_AMOUNT || amounts.get(index) + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            add(index, amount);
+            changes.publish(BalanceUpdate.Type.DEPOSIT, index, amounts.get(index));
+            return amounts.get(index);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        StampedLock lock = lockFor(index);
+        long stamp = lock.writeLock();
+        try {
+            if (amounts.get(index) - amount < 0)
+                throw new IllegalStateException("Underflow");
+            add(index, -amount);
+            changes.publish(BalanceUpdate.Type.WITHDRAW, index, amounts.get(index));
+            return amounts.get(index);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (fromIndex < 0 || fromIndex >= amounts.capacity())
+            throw new IndexOutOfBoundsException("Invalid index: " + fromIndex);
+        if (toIndex < 0 || toIndex >= amounts.capacity())
+            throw new IndexOutOfBoundsException("Invalid index: " + toIndex);
+        int fromStripe = fromIndex & (locks.length - 1);
+        int toStripe = toIndex & (locks.length - 1);
+        // Both accounts may be guarded by the same lock, which must be taken only once
+        StampedLock firstToLock = locks[Math.min(fromStripe, toStripe)];
+        StampedLock lastToLock = fromStripe == toStripe ? null : locks[Math.max(fromStripe, toStripe)];
+
+        long firstStamp = firstToLock.writeLock();
+        long lastStamp = lastToLock == null ? 0 : lastToLock.writeLock();
+        try {
+            if (amount > amounts.get(fromIndex))
+                throw new IllegalStateException("Underflow");
+            if (amount > MAX_AMOUNT || amounts.get(toIndex) + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            add(fromIndex, -amount);
+            add(toIndex, amount);
+            changes.publish(BalanceUpdate.Type.TRANSFER,
+                fromIndex, amounts.get(fromIndex), toIndex, amounts.get(toIndex));
+        } finally {
+            if (lastToLock != null)
+                lastToLock.unlockWrite(lastStamp);
+            firstToLock.unlockWrite(firstStamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Locks of all accounts are taken in the order of increasing lock indices, the same way as in
+     * {@link #transfer(int, int, long) transfer}, so concurrent operations never deadlock.
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        int[] stripes = lockOrder(indices);
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+
+        long[] stamps = new long[stripes.length];
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stamps[locked] = locks[stripes[locked]].writeLock();
+            }
+
+            for (int k = 0; k < indices.length; k++) {
+                long newAmount = this.amounts.get(indices[k]) + amounts[k];
+                if (newAmount < 0)
+                    throw new IllegalStateException("Underflow");
+                if (newAmount > MAX_AMOUNT)
+                    throw new IllegalStateException("Overflow");
+            }
+            for (int k = 0; k < indices.length; k++) {
+                add(indices[k], amounts[k]);
+            }
+            if (changes.isSubscribed())
+                changes.publish(new BalanceUpdate(BalanceUpdate.Type.TRANSACT, indices.clone(), newAmounts(indices)));
+        } finally {
+            while (--locked >= 0) {
+                locks[stripes[locked]].unlockWrite(stamps[locked]);
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the amount of every account with the result of the function.
+     * Either all accounts are changed or none of them is.
+     *
+     * @param f the function of the current amount, it must be free of side effects.
+     * @throws IllegalStateException if the result for some account is negative or exceeds {@link #MAX_AMOUNT}.
+     */
+    public void applyToAll(LongUnaryOperator f) {
+        applyToRange(0, amounts.capacity(), f);
+    }
+
+    /**
+     * Atomically replaces the amount of every account with index from fromIndex inclusive to toIndex exclusive
+     * with the result of the function. Locks of the range are taken in the order of increasing lock indices,
+     * the same way as in {@link #transact(int[], long[]) transact}, then the accounts are checked and changed
+     * in parallel in the common {@link ForkJoinPool}.
+     *
+     * @param fromIndex the first account index.
+     * @param toIndex the account index after the last one, from fromIndex to {@link #getNumberOfAccounts() n}.
+     * @param f the function of the current amount, it must be free of side effects.
+     * @throws IndexOutOfBoundsException when the range is invalid.
+     * @throws IllegalStateException if the result for some account is negative or exceeds {@link #MAX_AMOUNT}.
+     */
+    public void applyToRange(int fromIndex, int toIndex, LongUnaryOperator f) {
+        if (fromIndex < 0 || fromIndex > toIndex || toIndex > amounts.capacity())
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        // A range that is shorter than the table of locks maps to distinct locks, otherwise it needs all of them
+        int[] stripes = new int[Math.min(toIndex - fromIndex, locks.length)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = (fromIndex + i) & (locks.length - 1);
+        }
+        Arrays.sort(stripes);
+
+        long[] stamps = new long[stripes.length];
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stamps[locked] = locks[stripes[locked]].writeLock();
+            }
+            String errorMessage = ForkJoinPool.commonPool().invoke(new ApplyTask(false, f, fromIndex, toIndex));
+            if (errorMessage != null)
+                throw new IllegalStateException(errorMessage);
+            ForkJoinPool.commonPool().invoke(new ApplyTask(true, f, fromIndex, toIndex));
+            if (changes.isSubscribed()) {
+                int[] indices = new int[toIndex - fromIndex];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = fromIndex + i;
+                }
+                changes.publish(new BalanceUpdate(BalanceUpdate.Type.APPLY, indices, newAmounts(indices)));
+            }
+        } finally {
+            while (--locked >= 0) {
+                locks[stripes[locked]].unlockWrite(stamps[locked]);
+            }
+        }
+    }
+
+    /**
+     * Returns amounts of the accounts, must be called with their locks.
+     */
+    private long[] newAmounts(int[] indices) {
+        long[] result = new long[indices.length];
+        for (int k = 0; k < indices.length; k++) {
+            result[k] = amounts.get(indices[k]);
+        }
+        return result;
+    }
+
+    /**
+     * Subscribes to committed updates of this bank.
+     * @param capacity the number of updates the subscription can hold, it is rounded up to a power of two.
+     * @param policy what happens when the subscription is full.
+     * @return new subscription, it has to be closed when it is not needed anymore.
+     */
+    public ChangeSubscription subscribe(int capacity, ChangeSubscription.OverflowPolicy policy) {
+        return changes.subscribe(capacity, policy);
+    }
+
+    /**
+     * Returns distinct indices of locks that guard the accounts in increasing order.
+     * @throws IllegalArgumentException when some index repeats.
+     * @throws IndexOutOfBoundsException when some index is invalid.
+     */
+    private int[] lockOrder(int[] indices) {
+        IndexOrder.of(indices, amounts.capacity());
+        int[] sorted = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            sorted[i] = indices[i] & (locks.length - 1);
+        }
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[n++] = sorted[i];
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    private StampedLock lockFor(int index) {
+        if (index < 0 || index >= amounts.capacity())
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+        return locks[index & (locks.length - 1)];
+    }
+
+    /**
+     * Task that checks or updates the accounts in a range for {@link #applyToRange(int, int, LongUnaryOperator)},
+     * splitting the range in halves until it is shorter than {@link #APPLY_CHUNK}. It must be run with
+     * the locks of the range. A check returns the error of the first account with an invalid result or null.
+     */
+    @SuppressWarnings("serial")
+    private class ApplyTask extends RecursiveTask<String> {
+        private final boolean update;
+        private final LongUnaryOperator f;
+        private final int fromIndex;
+        private final int toIndex;
+
+        ApplyTask(boolean update, LongUnaryOperator f, int fromIndex, int toIndex) {
+            this.update = update;
+            this.f = f;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        protected String compute() {
+            if (toIndex - fromIndex > APPLY_CHUNK) {
+                int middle = (fromIndex + toIndex) >>> 1;
+                ApplyTask right = new ApplyTask(update, f, middle, toIndex);
+                right.fork();
+                String left = new ApplyTask(update, f, fromIndex, middle).compute();
+                String result = right.join();
+                return left != null ? left : result;
+            }
+            for (int i = fromIndex; i < toIndex; i++) {
+                long amount = amounts.get(i);
+                long newAmount = f.applyAsLong(amount);
+                if (update)
+                    add(i, newAmount - amount);
+                else if (newAmount < 0)
+                    return "Underflow";
+                else if (newAmount > MAX_AMOUNT)
+                    return "Overflow";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lock with padding after its state. Locks of the table are allocated one after another, so the padding
+     * usually keeps the state of the next lock in another cache line. Fields of a subclass cannot come before
+     * the state of the lock, so nothing pads it from the object before it, and the collector may move locks
+     * apart, so this only makes sharing cache lines less likely.
+     */
+    @SuppressWarnings("serial")
+    private static class PaddedLock extends StampedLock {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -0,0 +1,48 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Test for lock contention counters of {@link BankImpl} exported through JMX.
+ */
+public class BankImplMXBeanTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 20_000;
+
+    public void testCounters() throws Exception {
+        final BankImpl bank = new BankImpl(2);
+        bank.deposit(0, 1_000_000);
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    // All threads contend on the same two accounts
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        bank.transfer(0, 1, 1);
+                        bank.transfer(1, 0, 1);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ru.ifmo.pp:type=BankImpl,name=test");
+        server.registerMBean(bank, name);
+        try {
+            long waits = (Long) server.getAttribute(name, "LockWaits");
+            long waitNanos = (Long) server.getAttribute(name, "LockWaitNanos");
+            assertTrue(waits >= 0 && (waits == 0) == (waitNanos == 0));
+        } finally {
+            server.unregisterMBean(name);
+        }
+        assertEquals(1_000_000L, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,146 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link ChangeSubscription} of {@link StripedBankImpl}.
+ */
+public class ChangeSubscriptionTest extends TestCase {
+    private static final int N = 100;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 50_000;
+    private static final int BATCH = 256;
+
+    private final StripedBankImpl bank = new StripedBankImpl(N, 16);
+
+    public void testUpdatesArePublished() {
+        List<BalanceUpdate> updates = new ArrayList<>();
+        try (ChangeSubscription subscription = bank.subscribe(16, ChangeSubscription.OverflowPolicy.DROP)) {
+            bank.deposit(1, 100);
+            bank.withdraw(1, 30);
+            bank.transfer(1, 2, 20);
+            try {
+                bank.transfer(1, 2, 1000);
+                fail("Underflow expected");
+            } catch (IllegalStateException e) {
+                // expected, nothing is published
+            }
+            bank.transact(new int[] {2, 1}, new long[] {-5, 5});
+            bank.applyToRange(1, 3, amount -> 2 * amount);
+            assertEquals(5, subscription.drain(updates::add, BATCH));
+            assertEquals(0, subscription.getDropped());
+        }
+        assertUpdate(updates.get(0), BalanceUpdate.Type.DEPOSIT, 1, 100);
+        assertUpdate(updates.get(1), BalanceUpdate.Type.WITHDRAW, 1, 70);
+        assertUpdate(updates.get(2), BalanceUpdate.Type.TRANSFER, 1, 50, 2, 20);
+        assertUpdate(updates.get(3), BalanceUpdate.Type.TRANSACT, 2, 15, 1, 55);
+        assertUpdate(updates.get(4), BalanceUpdate.Type.APPLY, 1, 110, 2, 30);
+    }
+
+    private static void assertUpdate(BalanceUpdate update, BalanceUpdate.Type type, long... indicesAndAmounts) {
+        assertEquals(type, update.getType());
+        assertEquals(indicesAndAmounts.length / 2, update.size());
+        for (int k = 0; k < update.size(); k++) {
+            assertEquals(indicesAndAmounts[2 * k], update.getIndex(k));
+            assertEquals(indicesAndAmounts[2 * k + 1], update.getAmount(k));
+        }
+    }
+
+    public void testDropPolicy() {
+        List<BalanceUpdate> updates = new ArrayList<>();
+        try (ChangeSubscription subscription = bank.subscribe(4, ChangeSubscription.OverflowPolicy.DROP)) {
+            for (int k = 1; k <= 10; k++) {
+                bank.deposit(0, 1);
+            }
+            assertEquals(6, subscription.getDropped());
+            assertFalse(subscription.isCancelled());
+            assertEquals(4, subscription.drain(updates::add, BATCH));
+            bank.deposit(0, 1);
+            assertEquals(1, subscription.drain(updates::add, BATCH));
+        }
+        assertEquals(4, updates.get(3).getAmount(0));
+        assertEquals(11, updates.get(4).getAmount(0));
+    }
+
+    public void testCancelPolicy() {
+        List<BalanceUpdate> updates = new ArrayList<>();
+        ChangeSubscription other = bank.subscribe(16, ChangeSubscription.OverflowPolicy.CANCEL);
+        try (ChangeSubscription subscription = bank.subscribe(4, ChangeSubscription.OverflowPolicy.CANCEL)) {
+            for (int k = 1; k <= 5; k++) {
+                bank.deposit(0, 1);
+            }
+            assertTrue(subscription.isCancelled());
+            assertEquals(1, subscription.getDropped());
+            bank.deposit(0, 1);
+            assertEquals(4, subscription.drain(updates::add, 2) + subscription.drain(updates::add, BATCH));
+            assertEquals(4, updates.get(3).getAmount(0));
+        }
+        // Other subscriptions do not depend on it
+        assertFalse(other.isCancelled());
+        assertEquals(6, other.drain(updates::add, BATCH));
+        other.close();
+        assertTrue(other.isCancelled());
+        bank.deposit(0, 1);
+        assertEquals(0, other.drain(updates::add, BATCH));
+    }
+
+    public void testConcurrentUpdatesReplay() throws InterruptedException {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+        ChangeSubscription subscription =
+            bank.subscribe(THREADS * OPERATIONS, ChangeSubscription.OverflowPolicy.CANCEL);
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread(() -> {
+                try {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        int from = rnd.nextInt(N);
+                        int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                        bank.transfer(from, to, 1 + rnd.nextInt(100));
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            });
+            ts[t].start();
+        }
+        // The consumer keeps the last amount of every account, updates of each account come in order
+        long[] amounts = new long[N];
+        int[] received = new int[1];
+        while (received[0] < THREADS * OPERATIONS) {
+            int drained = subscription.drain(update -> {
+                for (int k = 0; k < update.size(); k++) {
+                    amounts[update.getIndex(k)] = update.getAmount(k);
+                }
+                received[0]++;
+            }, BATCH);
+            if (drained == 0 && subscription.isCancelled())
+                break; // the buffer is too small, the updates are not complete
+            if (drained == 0)
+                Thread.yield();
+        }
+        for (Thread t : ts)
+            t.join();
+        subscription.close();
+        assertFalse(failed.get());
+        assertEquals(0, subscription.getDropped());
+        long total = 0;
+        for (int i = 0; i < N; i++) {
+            if (amounts[i] == 0)
+                amounts[i] = MEAN; // it was not updated
+            assertEquals(bank.getAmount(i), amounts[i]);
+            total += amounts[i];
+        }
+        assertEquals(N * MEAN, total);
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Functional single-threaded test-suite for {@link BankImpl} in flat-combining mode.
+ */
+public class FlatCombiningFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new BankImpl(n, true);
+    }
+}
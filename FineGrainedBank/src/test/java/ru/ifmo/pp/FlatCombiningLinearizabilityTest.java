@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link BankImpl} in flat-combining mode.
+ */
+public class FlatCombiningLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new BankImpl(n, true);
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link BankImpl} in flat-combining mode.
+ */
+public class FlatCombiningMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new BankImpl(n, true);
+    }
+}
@@ -0,0 +1,159 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link IdBank} over {@link StripedBankImpl}.
+ */
+public class IdBankTest extends TestCase {
+    private static final int N = 1000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 100_000;
+
+    private final IdBank bank = new IdBank(new StripedBankImpl(N));
+
+    public void testOperations() {
+        assertEquals(0, bank.open(Long.MAX_VALUE));
+        assertEquals(1, bank.open(1L << 40));
+        assertEquals(2, bank.getNumberOfOpened());
+        assertEquals(1000, bank.deposit(Long.MAX_VALUE, 1000));
+        bank.transfer(Long.MAX_VALUE, 1L << 40, 300);
+        assertEquals(400, bank.withdraw(Long.MAX_VALUE, 300));
+        assertEquals(300, bank.getAmount(1L << 40));
+        assertEquals(300, bank.getBank().getAmount(1));
+        assertEquals(700, bank.getTotalAmount());
+    }
+
+    public void testNonPositiveIds() {
+        assertEquals(0, bank.open(0));
+        assertEquals(1, bank.open(-1));
+        assertEquals(2, bank.open(Long.MIN_VALUE));
+        assertEquals(1000, bank.deposit(Long.MIN_VALUE, 1000));
+        bank.transfer(Long.MIN_VALUE, 0, 300);
+        bank.transfer(0, -1, 100);
+        assertEquals(700, bank.getAmount(Long.MIN_VALUE));
+        assertEquals(200, bank.getAmount(0));
+        assertEquals(100, bank.getAmount(-1));
+        try {
+            bank.open(-1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.getAmount(-2);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidId() {
+        bank.open(42);
+        try {
+            bank.open(42);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.getAmount(43);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.deposit(0, 1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, bank.getNumberOfOpened());
+    }
+
+    public void testNoFreeAccounts() {
+        for (int i = 0; i < N; i++) {
+            assertEquals(i, bank.open(id(i)));
+        }
+        try {
+            bank.open(id(N));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testConcurrentOpen() throws InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < N; i += THREADS) {
+                            int index = bank.open(id(i));
+                            assertEquals(index, bank.indexOf(id(i)));
+                            bank.deposit(id(i), i + 1);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(N, bank.getNumberOfOpened());
+        for (int i = 0; i < N; i++) {
+            assertEquals(i + 1, bank.getAmount(id(i)));
+        }
+    }
+
+    public void testAllocationFreeTransfers() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+            return;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < N; i++) {
+            bank.open(id(i));
+            bank.deposit(id(i), 1_000_000);
+        }
+        long[] ids = new long[OPERATIONS];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int k = 0; k < OPERATIONS; k++) {
+            ids[k] = id(rnd.nextInt(N));
+        }
+        runTransfers(ids); // warm up
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        runTransfers(ids);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        // Allow for the measurement itself, but not for a single byte per operation
+        assertTrue("Allocated " + allocated + " bytes", allocated < OPERATIONS);
+        assertEquals(N * 1_000_000L, bank.getTotalAmount());
+    }
+
+    private void runTransfers(long[] ids) {
+        for (int k = 1; k < ids.length; k++) {
+            if (ids[k - 1] != ids[k])
+                bank.transfer(ids[k - 1], ids[k], 1 + bank.getAmount(ids[k - 1]) % 10);
+        }
+    }
+
+    /**
+     * Returns a sparse identifier of the i-th account.
+     */
+    private static long id(int i) {
+        return (i + 1) * 0x9E3779B97F4A7C15L >>> 1;
+    }
+}
@@ -54,6 +54,13 @@ public class LinearizabilityTest extends TestCase {
     private int sumTotalResults;
     private int sumSeenResults;
 
+    /**
+     * Creates an instance of the bank implementation under test.
+     */
+    protected Bank createBank(int n) {
+        return new BankImpl(n);
+    }
+
     public void testLinearizability() {
         for (nThreads = 1; nThreads <= MAX_THREADS; nThreads++) {
             phaser.register();
@@ -223,7 +230,7 @@ public class LinearizabilityTest extends TestCase {
     }
 
     private void doOneExecution() {
-        initBank(new BankImpl(N));
+        initBank(createBank(N));
         phaser.arriveAndAwaitAdvance();
         phaser.arriveAndAwaitAdvance();
     }
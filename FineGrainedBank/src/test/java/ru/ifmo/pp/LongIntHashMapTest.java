@@ -0,0 +1,116 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link LongIntHashMap}.
+ */
+public class LongIntHashMapTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 50_000;
+
+    public void testPutGet() {
+        LongIntHashMap map = new LongIntHashMap(0);
+        assertEquals(0, map.get(1));
+        assertEquals(0, map.put(1, 10));
+        assertEquals(0, map.put(Long.MAX_VALUE, 20));
+        assertEquals(0, map.put(1L << 32 | 1, 30)); // same lower half as key 1
+        assertEquals(10, map.put(1, 11));
+        assertEquals(11, map.get(1));
+        assertEquals(20, map.get(Long.MAX_VALUE));
+        assertEquals(30, map.get(1L << 32 | 1));
+        assertEquals(0, map.get(2));
+    }
+
+    public void testPutIfAbsent() {
+        LongIntHashMap map = new LongIntHashMap(10);
+        assertEquals(0, map.putIfAbsent(5, 1));
+        assertEquals(1, map.putIfAbsent(5, 2));
+        assertEquals(1, map.get(5));
+    }
+
+    public void testNonPositiveKeys() {
+        LongIntHashMap map = new LongIntHashMap(0);
+        assertEquals(0, map.get(0));
+        assertEquals(0, map.putIfAbsent(0, 1));
+        assertEquals(1, map.putIfAbsent(0, 2));
+        assertEquals(1, map.put(0, 3));
+        assertEquals(0, map.put(-1, 4));
+        assertEquals(0, map.put(Long.MIN_VALUE, 5));
+        assertEquals(3, map.get(0));
+        assertEquals(4, map.get(-1));
+        assertEquals(5, map.get(Long.MIN_VALUE));
+        assertEquals(0, map.get(1));
+        for (int i = 1; i <= 10_000; i++) {
+            assertEquals(0, map.put(-i * 1_000_003L, i));
+        }
+        for (int i = 1; i <= 10_000; i++) {
+            assertEquals(i, map.get(-i * 1_000_003L));
+        }
+        assertEquals(3, map.get(0));
+    }
+
+    public void testInvalidArguments() {
+        LongIntHashMap map = new LongIntHashMap(10);
+        try {
+            map.put(1, 0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            map.putIfAbsent(0, -1);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRehash() {
+        LongIntHashMap map = new LongIntHashMap(0);
+        for (int i = 1; i <= 100_000; i++) {
+            assertEquals(0, map.put((long) i << 20, i));
+        }
+        for (int i = 1; i <= 100_000; i++) {
+            assertEquals(i, map.get((long) i << 20));
+        }
+    }
+
+    public void testConcurrentPutIfAbsent() throws InterruptedException {
+        final LongIntHashMap map = new LongIntHashMap(0);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int value = t + 1;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // All threads put the same keys, so every key is added once and keeps its first value
+                        for (int k = 1; k <= KEYS_PER_THREAD; k++) {
+                            long key = k * 0x1_0000_0001L;
+                            int old = map.putIfAbsent(key, value);
+                            int current = map.get(key);
+                            assertTrue(current > 0);
+                            assertTrue(old == 0 ? current == value : current == old);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        for (int k = 1; k <= KEYS_PER_THREAD; k++) {
+            int value = map.get(k * 0x1_0000_0001L);
+            assertTrue(value >= 1 && value <= THREADS);
+        }
+    }
+}
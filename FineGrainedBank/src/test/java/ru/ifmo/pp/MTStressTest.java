@@ -10,7 +10,8 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Multi-threaded stress test for bank implementation -- many threads and operations of various accounts.
  *
- * <p>This test test correctness of concurrent deposit, withdraw, transfer, and getTotalAmount operations.
+ * <p>This test test correctness of concurrent deposit, withdraw, credit, debit, transfer, and getTotalAmount
+ * operations.
  * It does not check getAmount operations concurrently with the above.
  *
  * @author Roman Elizarov
@@ -26,12 +27,19 @@ public class MTStressTest extends TestCase {
     private static final long PHASE_DURATION_MILLIS = 1000;
 
     private final Phaser phaser = new Phaser(1 + THREADS);
-    private final Bank bank = new BankImpl(N);
+    private final Bank bank = createBank(N);
     private final AtomicLong[] expected = new AtomicLong[N];
     private final AtomicLong totalOps = new AtomicLong(); // only non-init phases are counted
     private volatile boolean failed;
     private long dummy; // will prevent code elimination
 
+    /**
+     * Creates an instance of the bank implementation under test.
+     */
+    protected Bank createBank(int n) {
+        return new BankImpl(n);
+    }
+
     public void testStress() throws InterruptedException {
         assertEquals(N, bank.getNumberOfAccounts());
         for (int i = 0; i < N; i++)
@@ -127,12 +135,18 @@ public class MTStressTest extends TestCase {
             switch (op & 3) {
                 case 0:
                     amount = nextRoundAmount();
-                    bank.deposit(i, amount);
+                    if (rnd.nextBoolean())
+                        bank.deposit(i, amount);
+                    else
+                        bank.credit(i, amount);
                     expected[i].addAndGet(amount);
                     break;
                 case 1:
                     amount = nextRoundAmount();
-                    bank.withdraw(i, amount);
+                    if (rnd.nextBoolean())
+                        bank.withdraw(i, amount);
+                    else
+                        bank.debit(i, amount);
                     expected[i].addAndGet(-amount);
                     break;
                 case 2:
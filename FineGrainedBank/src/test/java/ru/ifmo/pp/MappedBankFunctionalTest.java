@@ -0,0 +1,69 @@
+package ru.ifmo.pp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Functional single-threaded test-suite for {@link MappedBankImpl}.
+ */
+public class MappedBankFunctionalTest extends FunctionalTest {
+    /**
+     * The bank of the test, it is created by the constructor of the superclass.
+     */
+    private MappedBankImpl bank;
+
+    @Override
+    protected Bank createBank(int n) {
+        try {
+            bank = new MappedBankImpl(createFile(), n);
+            return bank;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        bank.close();
+    }
+
+    public void testReopen() throws IOException {
+        Path file = createFile();
+        try (MappedBankImpl bank = new MappedBankImpl(file, 10)) {
+            bank.deposit(1, 1000);
+            bank.transfer(1, 9, 300);
+        }
+        try (MappedBankImpl reopened = new MappedBankImpl(file, 10)) {
+            assertEquals(700, reopened.getAmount(1));
+            assertEquals(300, reopened.getAmount(9));
+            assertEquals(1000, reopened.getTotalAmount());
+        }
+    }
+
+    public void testReopenWithDifferentNumberOfAccounts() throws IOException {
+        Path file = createFile();
+        try (MappedBankImpl bank = new MappedBankImpl(file, 10)) {
+            bank.deposit(1, 1000);
+        }
+        try {
+            new MappedBankImpl(file, 11);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCloseTwice() throws IOException {
+        MappedBankImpl bank = new MappedBankImpl(createFile(), 10);
+        bank.deposit(1, 1000);
+        bank.close();
+        bank.close();
+    }
+
+    private static Path createFile() throws IOException {
+        Path file = Files.createTempFile("bank", ".dat");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+}
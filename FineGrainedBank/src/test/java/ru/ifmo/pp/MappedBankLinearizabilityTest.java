@@ -0,0 +1,39 @@
+package ru.ifmo.pp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Automated test of linearizability of {@link MappedBankImpl}.
+ */
+public class MappedBankLinearizabilityTest extends LinearizabilityTest {
+    /**
+     * The bank of the last execution, it is closed when the next one is created.
+     */
+    private MappedBankImpl bank;
+
+    @Override
+    protected Bank createBank(int n) {
+        closeBank();
+        try {
+            Path file = Files.createTempFile("bank", ".dat");
+            file.toFile().deleteOnExit();
+            bank = new MappedBankImpl(file, n);
+            return bank;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        closeBank();
+    }
+
+    private void closeBank() {
+        if (bank != null)
+            bank.close();
+    }
+}
@@ -0,0 +1,32 @@
+package ru.ifmo.pp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Multi-threaded stress test for {@link MappedBankImpl}.
+ */
+public class MappedBankMTStressTest extends MTStressTest {
+    /**
+     * The bank of the test, it is created by the constructor of the superclass.
+     */
+    private MappedBankImpl bank;
+
+    @Override
+    protected Bank createBank(int n) {
+        try {
+            Path file = Files.createTempFile("bank", ".dat");
+            file.toFile().deleteOnExit();
+            bank = new MappedBankImpl(file, n);
+            return bank;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        bank.close();
+    }
+}
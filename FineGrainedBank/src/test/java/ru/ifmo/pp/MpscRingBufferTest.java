@@ -0,0 +1,91 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link MpscRingBuffer}.
+ */
+public class MpscRingBufferTest extends TestCase {
+    private static final int PRODUCERS = 4;
+    private static final int ELEMENTS_PER_PRODUCER = 100_000;
+
+    public void testOfferPoll() {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertFalse(buffer.offer(4));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i, (int) buffer.poll());
+            }
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    public void testDrain() {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(8);
+        List<Integer> drained = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertEquals(3, buffer.drain(drained::add, 3));
+            assertEquals(5, buffer.drain(drained::add, 100));
+            assertEquals(0, buffer.drain(drained::add, 100));
+            assertTrue(buffer.isEmpty());
+        }
+        for (int k = 0; k < drained.size(); k++) {
+            assertEquals(k % 8, (int) drained.get(k));
+        }
+    }
+
+    public void testConcurrentProducers() throws InterruptedException {
+        final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(64);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[PRODUCERS];
+        for (int t = 0; t < PRODUCERS; t++) {
+            final int producer = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < ELEMENTS_PER_PRODUCER; k++) {
+                            while (!buffer.offer(k * PRODUCERS + producer)) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        // Elements of every producer must arrive in the order they were offered
+        int[] next = new int[PRODUCERS];
+        for (int received = 0; received < PRODUCERS * ELEMENTS_PER_PRODUCER; ) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = element % PRODUCERS;
+            assertEquals(next[producer]++, element / PRODUCERS);
+            received++;
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,142 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link StripedBankImpl#getRangeAmount(int, int)} with and without range sums.
+ *
+ * <p>Concurrent part runs transfers inside each half of accounts, so that the amount of a half never
+ * changes, while other threads read the halves.
+ */
+public class RangeAmountTest extends TestCase {
+    private static final int N = 1000;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 100_000;
+    private static final int READS = 20_000;
+
+    public void testRangeSums() {
+        checkRandomOperations(new StripedBankImpl(N, 16, true));
+    }
+
+    public void testNoRangeSums() {
+        checkRandomOperations(new StripedBankImpl(N, 16));
+    }
+
+    public void testInvalidRange() {
+        StripedBankImpl bank = new StripedBankImpl(10, 4, true);
+        assertEquals(0, bank.getRangeAmount(10, 10));
+        int[][] ranges = {{-1, 5}, {5, 4}, {0, 11}};
+        for (int[] range : ranges) {
+            try {
+                bank.getRangeAmount(range[0], range[1]);
+                fail("IndexOutOfBoundsException expected");
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final StripedBankImpl bank = new StripedBankImpl(N, 16, true);
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+        final long half = N / 2 * MEAN;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final boolean writer = t % 2 == 0;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    try {
+                        if (writer) {
+                            for (int k = 0; k < OPERATIONS && !done.get(); k++) {
+                                int base = rnd.nextBoolean() ? 0 : N / 2;
+                                int from = base + rnd.nextInt(N / 2);
+                                int to = base + rnd.nextInt(N / 2);
+                                if (from == to)
+                                    continue;
+                                try {
+                                    bank.transfer(from, to, 1 + rnd.nextInt(1000));
+                                } catch (IllegalStateException e) {
+                                    // underflow is fine
+                                }
+                            }
+                        } else {
+                            for (int k = 0; k < READS; k++) {
+                                assertEquals(half, bank.getRangeAmount(0, N / 2));
+                                assertEquals(half, bank.getRangeAmount(N / 2, N));
+                                assertEquals(2 * half, bank.getTotalAmount());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (int t = 1; t < THREADS; t += 2)
+            ts[t].join();
+        done.set(true);
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        checkRanges(bank, new Random(1));
+    }
+
+    private void checkRandomOperations(StripedBankImpl bank) {
+        Random rnd = new Random(1);
+        for (int k = 0; k < OPERATIONS; k++) {
+            int i = rnd.nextInt(N);
+            int j = rnd.nextInt(N);
+            long amount = 1 + rnd.nextInt(1000);
+            try {
+                switch (rnd.nextInt(4)) {
+                    case 0:
+                        bank.deposit(i, amount);
+                        break;
+                    case 1:
+                        bank.withdraw(i, amount);
+                        break;
+                    case 2:
+                        if (i != j)
+                            bank.transfer(i, j, amount);
+                        break;
+                    default:
+                        if (i != j)
+                            bank.transact(new int[] {i, j}, new long[] {amount, -amount / 2 - 1});
+                        break;
+                }
+            } catch (IllegalStateException e) {
+                // underflow is fine
+            }
+            if (k % 1000 == 0)
+                checkRanges(bank, rnd);
+        }
+        checkRanges(bank, rnd);
+    }
+
+    private static void checkRanges(StripedBankImpl bank, Random rnd) {
+        long[] prefix = new long[N + 1];
+        for (int i = 0; i < N; i++) {
+            prefix[i + 1] = prefix[i] + bank.getAmount(i);
+        }
+        assertEquals(prefix[N], bank.getTotalAmount());
+        assertEquals(prefix[N], bank.getRangeAmount(0, N));
+        for (int k = 0; k < 100; k++) {
+            int from = rnd.nextInt(N + 1);
+            int to = from + rnd.nextInt(N + 1 - from);
+            assertEquals(prefix[to] - prefix[from], bank.getRangeAmount(from, to));
+        }
+    }
+}
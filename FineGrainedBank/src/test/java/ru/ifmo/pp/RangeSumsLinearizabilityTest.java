@@ -0,0 +1,12 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link StripedBankImpl} with range sums,
+ * where {@link Bank#getTotalAmount()} reads the Fenwick tree.
+ */
+public class RangeSumsLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StripedBankImpl(n, 4, true);
+    }
+}
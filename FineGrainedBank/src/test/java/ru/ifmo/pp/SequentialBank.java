@@ -53,6 +53,18 @@ class SequentialBank implements Bank {
         return sum;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] amounts = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            amounts[i] = accounts[i].amount;
+        }
+        return new ArrayBankSnapshot(amounts);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -81,6 +93,24 @@ class SequentialBank implements Bank {
         return account.amount;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -100,6 +130,41 @@ class SequentialBank implements Bank {
         to.amount += amount;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        for (int i = 0; i < indices.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (indices[i] == indices[j])
+                    throw new IllegalArgumentException("Repeated index: " + indices[i]);
+            }
+            if (indices[i] < 0 || indices[i] >= accounts.length)
+                throw new IndexOutOfBoundsException("Invalid index: " + indices[i]);
+        }
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            long newAmount = accounts[indices[i]].amount + amounts[i];
+            if (newAmount < 0)
+                throw new IllegalStateException("Underflow");
+            if (newAmount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            accounts[indices[i]].amount += amounts[i];
+        }
+    }
+
     /**
      * Private account data structure.
      */
@@ -0,0 +1,50 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.CompletionException;
+
+/**
+ * Functional single-threaded test-suite for {@link ShardedBankImpl}.
+ */
+public class ShardedBankFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new ShardedBankImpl(n, 4);
+    }
+
+    public void testTransactAcrossShards() {
+        ShardedBankImpl bank = new ShardedBankImpl(10, 4);
+        bank.deposit(1, 1000);
+        bank.deposit(6, 1000);
+        bank.transact(new int[] {6, 1, 3, 0}, new long[] {-300, -200, 400, 100});
+        assertEquals(800, bank.getAmount(1));
+        assertEquals(700, bank.getAmount(6));
+        assertEquals(400, bank.getAmount(3));
+        assertEquals(100, bank.getAmount(0));
+        try {
+            bank.transact(new int[] {6, 3}, new long[] {-800, 800});
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(700, bank.getAmount(6));
+        assertEquals(400, bank.getAmount(3));
+        assertEquals(2000, bank.getTotalAmount());
+        bank.close();
+    }
+
+    public void testAsync() {
+        ShardedBankImpl bank = new ShardedBankImpl(10, 4);
+        // Operations of a thread on the same account are applied in order, without waiting for each of them
+        bank.depositAsync(1, 1000);
+        bank.transferAsync(1, 2, 300);
+        assertEquals(700, (long) bank.getAmountAsync(1).join());
+        try {
+            bank.withdrawAsync(2, 301).join();
+            fail("Underflow expected");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1000, (long) bank.getTotalAmountAsync().join());
+        bank.close();
+    }
+}
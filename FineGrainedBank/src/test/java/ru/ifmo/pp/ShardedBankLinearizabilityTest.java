@@ -0,0 +1,19 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link ShardedBankImpl}.
+ */
+public class ShardedBankLinearizabilityTest extends LinearizabilityTest {
+    private ShardedBankImpl bank;
+
+    /**
+     * Stops the shards of the bank of the previous execution, so that threads do not pile up.
+     */
+    @Override
+    protected Bank createBank(int n) {
+        if (bank != null)
+            bank.close();
+        bank = new ShardedBankImpl(n, 3);
+        return bank;
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link ShardedBankImpl}.
+ */
+public class ShardedBankMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new ShardedBankImpl(n, 4);
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Test for {@link Bank#snapshot()} of {@link ShardedBankImpl}.
+ */
+public class ShardedBankSnapshotTest extends SnapshotTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new ShardedBankImpl(n, 4);
+    }
+}
@@ -0,0 +1,138 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link Bank#snapshot()} of {@link BankImpl}.
+ *
+ * <p>Concurrent part runs transfers, that keep the total amount, and deposits to a counter account,
+ * that only grows, while snapshots are taken and checked.
+ */
+public class SnapshotTest extends TestCase {
+    private static final int N = 100;
+    private static final int COUNTER = N - 1; // only deposits go to this account
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int SNAPSHOTS = 2_000;
+
+    protected Bank createBank(int n) {
+        return new BankImpl(n);
+    }
+
+    public void testSnapshotIsNotChanged() {
+        Bank bank = createBank(3);
+        bank.deposit(0, 100);
+        bank.deposit(1, 50);
+        BankSnapshot snapshot = bank.snapshot();
+        bank.transfer(0, 1, 30);
+        bank.deposit(2, 10);
+        bank.transact(new int[] {0, 1, 2}, new long[] {-10, -20, 30});
+        assertEquals(3, snapshot.getNumberOfAccounts());
+        assertEquals(100, snapshot.getAmount(0));
+        assertEquals(50, snapshot.getAmount(1));
+        assertEquals(0, snapshot.getAmount(2));
+        assertEquals(150, snapshot.getTotalAmount());
+        BankSnapshot next = bank.snapshot();
+        assertEquals(60, next.getAmount(0));
+        assertEquals(60, next.getAmount(1));
+        assertEquals(40, next.getAmount(2));
+        assertEquals(100, snapshot.getAmount(0));
+        snapshot.close();
+        next.close();
+        assertEquals(160, bank.getTotalAmount());
+    }
+
+    public void testClosedSnapshot() {
+        Bank bank = createBank(2);
+        BankSnapshot snapshot = bank.snapshot();
+        snapshot.close();
+        snapshot.close(); // closing twice is allowed
+        try {
+            snapshot.getAmount(0);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            snapshot.getTotalAmount();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidIndex() {
+        try (BankSnapshot snapshot = createBank(2).snapshot()) {
+            snapshot.getAmount(2);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testConcurrentOperations() throws InterruptedException {
+        final Bank bank = createBank(N);
+        for (int i = 0; i < COUNTER; i++) {
+            bank.deposit(i, MEAN);
+        }
+        final long total = COUNTER * MEAN;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    try {
+                        while (!done.get()) {
+                            if (rnd.nextInt(10) == 0) {
+                                bank.deposit(COUNTER, 1);
+                                continue;
+                            }
+                            int from = rnd.nextInt(COUNTER);
+                            int to = rnd.nextInt(COUNTER - 1);
+                            if (to >= from)
+                                to++;
+                            try {
+                                bank.transfer(from, to, 1 + rnd.nextInt(1000));
+                            } catch (IllegalStateException e) {
+                                // underflow is fine
+                            }
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        long counter = 0;
+        try {
+            for (int k = 0; k < SNAPSHOTS && !failed.get(); k++) {
+                try (BankSnapshot snapshot = bank.snapshot()) {
+                    long sum = 0;
+                    for (int i = 0; i < COUNTER; i++) {
+                        sum += snapshot.getAmount(i);
+                    }
+                    assertEquals(total, sum);
+                    long next = snapshot.getAmount(COUNTER);
+                    assertTrue(next >= counter);
+                    assertTrue(next <= bank.getAmount(COUNTER));
+                    assertEquals(total + next, snapshot.getTotalAmount());
+                    counter = next;
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread t : ts)
+                t.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(total + bank.getAmount(COUNTER), bank.getTotalAmount());
+    }
+}
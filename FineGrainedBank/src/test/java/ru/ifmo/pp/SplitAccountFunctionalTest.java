@@ -0,0 +1,15 @@
+package ru.ifmo.pp;
+
+/**
+ * Functional single-threaded test-suite for {@link BankImpl} with split accounts.
+ * Every other account is split.
+ */
+public class SplitAccountFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        int[] splitIndices = new int[(n + 1) / 2];
+        for (int k = 0; k < splitIndices.length; k++)
+            splitIndices[k] = 2 * k;
+        return new BankImpl(n, false, splitIndices);
+    }
+}
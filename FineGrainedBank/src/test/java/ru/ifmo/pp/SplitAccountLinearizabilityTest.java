@@ -0,0 +1,15 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link BankImpl} with split accounts.
+ * Every other account is split.
+ */
+public class SplitAccountLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        int[] splitIndices = new int[(n + 1) / 2];
+        for (int k = 0; k < splitIndices.length; k++)
+            splitIndices[k] = 2 * k;
+        return new BankImpl(n, false, splitIndices);
+    }
+}
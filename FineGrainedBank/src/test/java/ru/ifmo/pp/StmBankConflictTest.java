@@ -0,0 +1,50 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test that transactions of {@link StmBankImpl} on disjoint accounts do not restart each other.
+ */
+public class StmBankConflictTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final long MEAN = 1_000_000;
+    private static final int OPERATIONS = 1_000_000;
+
+    public void testDisjointAccounts() throws InterruptedException {
+        final StmBankImpl bank = new StmBankImpl(2 * THREADS);
+        for (int i = 0; i < 2 * THREADS; i++) {
+            bank.deposit(i, MEAN);
+        }
+        final AtomicLong restarts = new AtomicLong();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int from = 2 * t;
+            ts[t] = new Thread(() -> {
+                try {
+                    long restarted = 0;
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        if (k % 2 == 0)
+                            bank.transfer(from, from + 1, 1);
+                        else
+                            bank.transfer(from + 1, from, 1);
+                        restarted += StmBankImpl.lastAttempts() - 1;
+                    }
+                    restarts.addAndGet(restarted);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(0, restarts.get());
+        assertEquals(2 * THREADS * MEAN, bank.getTotalAmount());
+    }
+}
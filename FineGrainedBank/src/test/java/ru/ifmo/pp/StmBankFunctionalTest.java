@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Functional single-threaded test-suite for {@link StmBankImpl}.
+ */
+public class StmBankFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StmBankImpl(n);
+    }
+}
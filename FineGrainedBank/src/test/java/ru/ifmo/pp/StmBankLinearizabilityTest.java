@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link StmBankImpl}.
+ */
+public class StmBankLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StmBankImpl(n);
+    }
+}
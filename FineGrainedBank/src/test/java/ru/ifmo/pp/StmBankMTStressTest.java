@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link StmBankImpl}.
+ */
+public class StmBankMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StmBankImpl(n);
+    }
+}
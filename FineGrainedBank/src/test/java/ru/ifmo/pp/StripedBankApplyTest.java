@@ -0,0 +1,131 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link StripedBankImpl#applyToAll(java.util.function.LongUnaryOperator)} and
+ * {@link StripedBankImpl#applyToRange(int, int, java.util.function.LongUnaryOperator)}.
+ */
+public class StripedBankApplyTest extends TestCase {
+    private static final int N = 10_000;
+    private static final int STRIPES = 64;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 100_000;
+    private static final int APPLIES = 20;
+    private static final int LARGE_N = 1_000_000;
+
+    private final StripedBankImpl bank = new StripedBankImpl(N, STRIPES, true);
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN + i);
+        }
+    }
+
+    public void testApplyToAll() {
+        bank.applyToAll(amount -> 2 * amount);
+        for (int i = 0; i < N; i++) {
+            assertEquals(2 * (MEAN + i), bank.getAmount(i));
+        }
+        assertEquals(2 * (MEAN + 10) + 2 * (MEAN + 11), bank.getRangeAmount(10, 12));
+    }
+
+    public void testApplyToRange() {
+        bank.applyToRange(STRIPES - 5, STRIPES + 5, amount -> amount + 1); // wraps around the table of locks
+        bank.applyToRange(N, N, amount -> 2 * amount);
+        for (int i = 0; i < N; i++) {
+            assertEquals(MEAN + i + (i >= STRIPES - 5 && i < STRIPES + 5 ? 1 : 0), bank.getAmount(i));
+        }
+        assertEquals(10 * (MEAN + STRIPES) + 5, bank.getRangeAmount(STRIPES - 5, STRIPES + 5));
+        try {
+            bank.applyToRange(N - 1, N + 1, amount -> amount + 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            bank.applyToRange(20, 10, amount -> amount + 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testUnderflowChangesNothing() {
+        long total = bank.getTotalAmount();
+        try {
+            bank.applyToAll(amount -> amount - MEAN - 1);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            assertEquals("Underflow", e.getMessage());
+        }
+        try {
+            bank.applyToRange(N - 1, N, amount -> Bank.MAX_AMOUNT + 1);
+            fail("Overflow expected");
+        } catch (IllegalStateException e) {
+            assertEquals("Overflow", e.getMessage());
+        }
+        for (int i = 0; i < N; i++) {
+            assertEquals(MEAN + i, bank.getAmount(i));
+        }
+        assertEquals(total, bank.getTotalAmount());
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        long initialTotal = bank.getTotalAmount();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread(() -> {
+                try {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        int from = rnd.nextInt(N);
+                        int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                        bank.transfer(from, to, 1 + rnd.nextInt(100));
+                        // Each applyToAll adds N to the total, and transfers do not change it
+                        if (k % 100 == 0 && (bank.getTotalAmount() - initialTotal) % N != 0)
+                            failed.set(true);
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            });
+            ts[t].start();
+        }
+        for (int k = 0; k < APPLIES; k++) {
+            bank.applyToAll(amount -> amount + 1);
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(initialTotal + APPLIES * N, bank.getTotalAmount());
+    }
+
+    /**
+     * Prints the time of applyToAll and of deposits to every account.
+     */
+    public void testApplyTime() {
+        StripedBankImpl bank = new StripedBankImpl(LARGE_N);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LARGE_N; i++) {
+                bank.deposit(i, 1);
+            }
+            long deposits = System.nanoTime() - start;
+            start = System.nanoTime();
+            bank.applyToAll(amount -> amount + 1);
+            long apply = System.nanoTime() - start;
+            System.out.printf(Locale.US, "Deposits to %d accounts: %d ms, applyToAll: %d ms%n",
+                LARGE_N, deposits / 1_000_000, apply / 1_000_000);
+        }
+        assertEquals(6L * LARGE_N, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,25 @@
+package ru.ifmo.pp;
+
+/**
+ * Functional single-threaded test-suite for {@link StripedBankImpl}.
+ * There are fewer locks than accounts, so that some accounts share locks.
+ */
+public class StripedBankFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StripedBankImpl(n, 4);
+    }
+
+    public void testTransferWithinStripe() {
+        Bank bank = createBank(10); // accounts 1, 5, and 9 share the same lock
+        bank.deposit(1, 1000);
+        bank.transfer(1, 5, 400);
+        assertEquals(600, bank.getAmount(1));
+        assertEquals(400, bank.getAmount(5));
+        bank.transact(new int[] {9, 1, 5}, new long[] {300, -200, -100});
+        assertEquals(400, bank.getAmount(1));
+        assertEquals(300, bank.getAmount(5));
+        assertEquals(300, bank.getAmount(9));
+        assertEquals(1000, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,12 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link StripedBankImpl}.
+ * There are fewer locks than accounts, so that some accounts share locks.
+ */
+public class StripedBankLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StripedBankImpl(n, 4);
+    }
+}
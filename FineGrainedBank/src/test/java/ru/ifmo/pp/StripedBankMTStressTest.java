@@ -0,0 +1,12 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link StripedBankImpl}.
+ * There are fewer locks than accounts, so that some accounts share locks.
+ */
+public class StripedBankMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StripedBankImpl(n, 4);
+    }
+}
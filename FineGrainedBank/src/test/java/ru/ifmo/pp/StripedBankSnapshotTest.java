@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Test for {@link Bank#snapshot()} of {@link StripedBankImpl}.
+ */
+public class StripedBankSnapshotTest extends SnapshotTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new StripedBankImpl(n);
+    }
+}
@@ -0,0 +1,57 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Time of a single atomic applyToAll against a deposit to every account, one after another.
+ *
+ * <p>{@code applyToAll} is not in {@link Bank}, so it is called by reflection on the bank that is chosen by
+ * the simple name of its class, the same way as in {@link BankBenchmark}. {@code BankImpl} has it in the
+ * lock-free module, and {@code StripedBankImpl} in the fine-grained one (see the profiles in pom.xml).
+ * It runs in the common fork-join pool, so it is faster than the deposits only with several processors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+public class ApplyBenchmark {
+    private static final LongUnaryOperator INCREMENT = amount -> amount + 1;
+
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"BankImpl"})
+        String implementation;
+
+        @Param({"1000000"})
+        int accounts;
+
+        Bank bank;
+        Method applyToAll;
+
+        @Setup(Level.Trial)
+        public void createBank() throws ReflectiveOperationException {
+            Class<?> bankClass = Class.forName("ru.ifmo.pp." + implementation);
+            bank = (Bank) bankClass.getConstructor(int.class).newInstance(accounts);
+            applyToAll = bankClass.getMethod("applyToAll", LongUnaryOperator.class);
+        }
+    }
+
+    @Benchmark
+    public void applyToAll(BankState s) throws ReflectiveOperationException {
+        s.applyToAll.invoke(s.bank, INCREMENT);
+    }
+
+    @Benchmark
+    public void deposits(BankState s) {
+        for (int i = 0; i < s.accounts; i++) {
+            s.bank.deposit(i, 1);
+        }
+    }
+}
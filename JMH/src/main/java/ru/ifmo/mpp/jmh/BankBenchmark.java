@@ -0,0 +1,169 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the bank implementations.
+ *
+ * <p>The bank is chosen by the simple name of its class in package {@code ru.ifmo.pp}, it should have a
+ * constructor with the number of accounts. {@code BankImpl} is the bank of the module that the benchmarks
+ * are built with (see the profiles in pom.xml) and {@code SynchronizedBank} is the baseline.
+ * {@code LongArrayBankImpl} exists only in the lock-free module, so with the fine-grained bank it is left out
+ * with {@code -p implementation=BankImpl,SynchronizedBank}. Other banks of the module are run with e.g.
+ * {@code -p implementation=StripedBankImpl}. Subclasses run the same benchmarks with more threads.
+ *
+ * <p>Allocation of the banks that keep accounts in objects and in a primitive array is compared by running
+ * {@code java -jar target/benchmarks.jar BankBenchmark -p implementation=BankImpl,LongArrayBankImpl -prof gc},
+ * where {@code gc.alloc.rate.norm} is the number of bytes allocated per operation.
+ *
+ * <p>{@code mixed} runs the operations of a {@link Mix} in every thread, while the groups run readers and
+ * writers in different threads: {@code readers} has three threads reading amounts and one transferring,
+ * {@code totals} has one thread reading the total amount and three transferring.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+public class BankBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"BankImpl", "LongArrayBankImpl", "SynchronizedBank"})
+        String implementation;
+
+        @Param({"10", "1000", "100000", "10000000"})
+        int accounts;
+
+        /*
+         * Percentage of the operations on the hottest 1% of the accounts (but at least two of them),
+         * the rest of the operations are on uniformly random accounts.
+         */
+        @Param({"0", "90"})
+        int hotspot;
+
+        Bank bank;
+        int hotAccounts;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void createBank() throws ReflectiveOperationException {
+            bank = (Bank) Class.forName("ru.ifmo.pp." + implementation).getConstructor(int.class).newInstance(accounts);
+            // Transfers of one never underflow or overflow accounts that are this far from both limits
+            long amount = Bank.MAX_AMOUNT / 2 / accounts;
+            for (int i = 0; i < accounts; i++) {
+                bank.deposit(i, amount);
+            }
+            hotAccounts = Math.max(2, accounts / 100);
+            totalAmount = amount * accounts;
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() throws Exception {
+            long total = bank.getTotalAmount();
+            if (bank instanceof AutoCloseable)
+                ((AutoCloseable) bank).close();
+            if (total != totalAmount)
+                throw new IllegalStateException("Total amount " + total + " instead of " + totalAmount);
+        }
+    }
+
+    public enum Mix {
+        READ_HEAVY(90, 9),
+        TRANSFER_HEAVY(10, 89),
+        TOTAL_HEAVY(45, 45);
+
+        /*
+         * Percentages of getAmount and transfer, the rest is getTotalAmount.
+         */
+        final int reads;
+        final int transfers;
+
+        Mix(int reads, int transfers) {
+            this.reads = reads;
+            this.transfers = transfers;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MixState {
+        @Param({"READ_HEAVY", "TRANSFER_HEAVY", "TOTAL_HEAVY"})
+        Mix mix;
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        long seed;
+
+        @Setup(Level.Trial)
+        public void createSeed() {
+            seed = System.nanoTime() | 1;
+        }
+
+        /*
+         * Xorshift generator, it is cheaper than a shared Random and does not allocate.
+         */
+        int nextInt(int bound) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return (int) ((seed >>> 1) % bound);
+        }
+
+        int index(BankState s) {
+            return nextInt(nextInt(100) < s.hotspot ? s.hotAccounts : s.accounts);
+        }
+
+        void transfer(BankState s) {
+            int from = index(s);
+            int to = index(s);
+            if (to == from)
+                to = (from + 1) % s.accounts;
+            s.bank.transfer(from, to, 1);
+        }
+    }
+
+    @Benchmark
+    public long mixed(BankState s, MixState m, ThreadState t) {
+        int p = t.nextInt(100);
+        if (p < m.mix.reads)
+            return s.bank.getAmount(t.index(s));
+        if (p < m.mix.reads + m.mix.transfers) {
+            t.transfer(s);
+            return 0;
+        }
+        return s.bank.getTotalAmount();
+    }
+
+    @Benchmark
+    @Group("readers")
+    @GroupThreads(3)
+    public long reader(BankState s, ThreadState t) {
+        return s.bank.getAmount(t.index(s));
+    }
+
+    @Benchmark
+    @Group("readers")
+    @GroupThreads(1)
+    public void readersWriter(BankState s, ThreadState t) {
+        t.transfer(s);
+    }
+
+    @Benchmark
+    @Group("totals")
+    @GroupThreads(1)
+    public long total(BankState s) {
+        return s.bank.getTotalAmount();
+    }
+
+    @Benchmark
+    @Group("totals")
+    @GroupThreads(3)
+    public void totalsWriter(BankState s, ThreadState t) {
+        t.transfer(s);
+    }
+}
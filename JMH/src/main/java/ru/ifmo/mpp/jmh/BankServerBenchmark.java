@@ -0,0 +1,129 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of transfers over the bank protocol on loopback, every thread has its own client.
+ *
+ * <p>{@code roundTrip} waits for the response of every transfer, while {@code pipelinedBatch} sends batches of
+ * {@link #BATCH} transfers and keeps {@link #WINDOW} of them in flight. The server and the client exist only in
+ * the lock-free module, so these benchmarks fail in the build with the fine-grained bank (see the profiles in
+ * pom.xml) and batches are sent by reflection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+public class BankServerBenchmark {
+    /**
+     * The number of transfers in a batch.
+     */
+    static final int BATCH = 1000;
+
+    /**
+     * The number of batches in flight in every thread.
+     */
+    static final int WINDOW = 16;
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"100"})
+        int accounts;
+
+        @Param({"2"})
+        int loops;
+
+        Bank bank;
+        Closeable server;
+        int port;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void startServer() throws Exception {
+            bank = ShardedBankBenchmark.createBank("BankImpl", accounts);
+            totalAmount = Bank.MAX_AMOUNT / 2 / accounts * accounts;
+            Class<?> serverClass = Class.forName("ru.ifmo.pp.BankServer");
+            server = (Closeable) serverClass.getConstructor(Bank.class, int.class, int.class)
+                .newInstance(bank, 0, loops);
+            port = (Integer) serverClass.getMethod("getPort").invoke(server);
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() throws Exception {
+            server.close();
+            ShardedBankBenchmark.checkBank(bank, totalAmount);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState extends BankBenchmark.ThreadState {
+        Bank client;
+        Object batch;
+        Method send;
+        Method await;
+        final ArrayDeque<Object> window = new ArrayDeque<>();
+
+        @Setup(Level.Trial)
+        public void connect(ServerState s) throws Exception {
+            Class<?> clientClass = Class.forName("ru.ifmo.pp.BankClient");
+            client = (Bank) clientClass.getConstructor(InetSocketAddress.class)
+                .newInstance(new InetSocketAddress("127.0.0.1", s.port));
+            Class<?> batchClass = Class.forName("ru.ifmo.pp.BankClient$Batch");
+            batch = batchClass.getConstructor().newInstance();
+            Method transfer = batchClass.getMethod("transfer", int.class, int.class, long.class);
+            for (int k = 0; k < BATCH; k++) {
+                int from = nextInt(s.accounts);
+                int to = nextInt(s.accounts - 1);
+                if (to >= from)
+                    to++;
+                transfer.invoke(batch, from, to, (long) (nextInt(1000) + 1));
+            }
+            send = clientClass.getMethod("send", batchClass);
+            await = Class.forName("ru.ifmo.pp.BankClient$Response").getMethod("await");
+        }
+
+        /*
+         * Batches of the iteration complete within it, so that the total amount is checked after the trial.
+         */
+        @TearDown(Level.Iteration)
+        public void awaitBatches() throws Exception {
+            while (!window.isEmpty()) {
+                await.invoke(window.poll());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            ((Closeable) client).close();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip(ServerState s, ClientState c) {
+        int from = c.nextInt(s.accounts);
+        int to = c.nextInt(s.accounts - 1);
+        if (to >= from)
+            to++;
+        c.client.transfer(from, to, c.nextInt(1000) + 1);
+    }
+
+    /*
+     * Waits for the batch that was sent WINDOW batches ago before sending a new one.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelinedBatch(ClientState c) throws Exception {
+        if (c.window.size() == WINDOW)
+            c.await.invoke(c.window.poll());
+        c.window.add(c.send.invoke(c.client, c.batch));
+    }
+}
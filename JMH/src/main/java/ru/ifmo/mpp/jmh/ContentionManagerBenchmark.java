@@ -0,0 +1,102 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the lock-free bank with different contention managers when most of the operations hit
+ * a few hot accounts.
+ *
+ * <p>The contention managers exist only in the lock-free bank, so they are created by reflection and this
+ * benchmark fails in the build with the fine-grained bank (see the profiles in pom.xml).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(16)
+public class ContentionManagerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"NONE", "HELP_FIRST", "RETRY_FIRST"})
+        String contentionManager;
+
+        @Param({"100"})
+        int accounts;
+
+        /*
+         * Percentage of the operations on the two hottest accounts, the rest of the operations
+         * are on uniformly random accounts.
+         */
+        @Param({"0", "90", "99"})
+        int hotspot;
+
+        Bank bank;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void createBank() throws ReflectiveOperationException {
+            Class<?> managerClass = Class.forName("ru.ifmo.pp.ContentionManager");
+            Object manager;
+            switch (contentionManager) {
+                case "HELP_FIRST":
+                    manager = Class.forName("ru.ifmo.pp.BackoffContentionManager")
+                        .getMethod("helpFirst", long.class, long.class, int.class).invoke(null, 100L, 100_000L, 4);
+                    break;
+                case "RETRY_FIRST":
+                    manager = Class.forName("ru.ifmo.pp.BackoffContentionManager")
+                        .getMethod("retryFirst", long.class, long.class, int.class).invoke(null, 100L, 100_000L, 4);
+                    break;
+                default:
+                    manager = managerClass.getField("NONE").get(null);
+                    break;
+            }
+            bank = (Bank) Class.forName("ru.ifmo.pp.BankImpl").getConstructor(int.class, managerClass)
+                .newInstance(accounts, manager);
+            // Operations of up to 1000 never underflow or overflow accounts that are this far from both limits
+            long amount = Bank.MAX_AMOUNT / 2 / accounts;
+            for (int i = 0; i < accounts; i++) {
+                bank.deposit(i, amount);
+            }
+            totalAmount = amount * accounts;
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() {
+            long total = bank.getTotalAmount();
+            if (total != totalAmount)
+                throw new IllegalStateException("Total amount " + total + " instead of " + totalAmount);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState extends BankBenchmark.ThreadState {
+        int index(BankState s) {
+            return nextInt(nextInt(100) < s.hotspot ? 2 : s.accounts);
+        }
+    }
+
+    /*
+     * Deposits and withdrawals are paired, so that the total amount is checked after the trial.
+     */
+    @Benchmark
+    public void depositWithdraw(BankState s, ThreadState t) {
+        int i = t.index(s);
+        long amount = t.nextInt(1000) + 1;
+        s.bank.deposit(i, amount);
+        s.bank.withdraw(i, amount);
+    }
+
+    @Benchmark
+    public void transfer(BankState s, ThreadState t) {
+        int from = t.index(s);
+        int to = t.index(s);
+        if (to == from)
+            to = (from + 1) % s.accounts;
+        s.bank.transfer(from, to, t.nextInt(1000) + 1);
+    }
+}
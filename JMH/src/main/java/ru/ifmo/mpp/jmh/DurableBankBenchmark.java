@@ -0,0 +1,77 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of durable transfers, every one of them returns when its record is forced to the log.
+ *
+ * <p>Records of concurrent transfers are forced together (group commit), so the throughput grows with
+ * the number of threads, see the subclasses. The durable bank exists only in the lock-free module, so these
+ * benchmarks fail in the build with the fine-grained bank (see the profiles in pom.xml). The log is written
+ * to a temporary directory, which should be on the disk that is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+public class DurableBankBenchmark {
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"10", "1000"})
+        int accounts;
+
+        Path directory;
+        Bank bank;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void createBank() throws Exception {
+            directory = Files.createTempDirectory("bank");
+            Bank memory = (Bank) Class.forName("ru.ifmo.pp.BankImpl").getConstructor(int.class).newInstance(accounts);
+            bank = (Bank) Class.forName("ru.ifmo.pp.DurableBank").getConstructor(Bank.class, Path.class)
+                .newInstance(memory, directory);
+            // Transfers of up to 1000 never underflow or overflow accounts that are this far from both limits
+            long amount = Bank.MAX_AMOUNT / 2 / accounts;
+            for (int i = 0; i < accounts; i++) {
+                bank.deposit(i, amount);
+            }
+            totalAmount = amount * accounts;
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() throws Exception {
+            try {
+                ShardedBankBenchmark.checkBank(bank, totalAmount);
+            } finally {
+                deleteDirectory();
+            }
+        }
+
+        private void deleteDirectory() throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Benchmark
+    public void transfer(BankState s, BankBenchmark.ThreadState t) {
+        int from = t.nextInt(s.accounts);
+        int to = t.nextInt(s.accounts - 1);
+        if (to >= from)
+            to++;
+        s.bank.transfer(from, to, t.nextInt(1000) + 1);
+    }
+}
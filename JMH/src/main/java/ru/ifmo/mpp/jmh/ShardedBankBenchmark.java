@@ -0,0 +1,138 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.pp.Bank;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of transfers in the sharded bank against the banks that keep all accounts in one process.
+ *
+ * <p>{@code transfer} waits for every transfer, while {@code transferAsync} keeps {@link #WINDOW} transfers
+ * of the sharded bank in flight in every thread. The sharded bank exists only in the fine-grained module, so
+ * these benchmarks fail in the build with the lock-free bank (see the profiles in pom.xml) and the asynchronous
+ * transfers are called by reflection. Subclasses run the same benchmarks with more threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+public class ShardedBankBenchmark {
+    /**
+     * The number of asynchronous transfers in flight in every thread.
+     */
+    static final int WINDOW = 64;
+
+    @State(Scope.Benchmark)
+    public static class BankState {
+        @Param({"ShardedBankImpl", "BankImpl", "StripedBankImpl"})
+        String implementation;
+
+        @Param({"1000"})
+        int accounts;
+
+        Bank bank;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void createBank() throws ReflectiveOperationException {
+            bank = ShardedBankBenchmark.createBank(implementation, accounts);
+            totalAmount = Bank.MAX_AMOUNT / 2 / accounts * accounts;
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() throws Exception {
+            ShardedBankBenchmark.checkBank(bank, totalAmount);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AsyncBankState {
+        @Param({"1000"})
+        int accounts;
+
+        Bank bank;
+        Method transferAsync;
+        long totalAmount;
+
+        @Setup(Level.Trial)
+        public void createBank() throws ReflectiveOperationException {
+            bank = ShardedBankBenchmark.createBank("ShardedBankImpl", accounts);
+            transferAsync = bank.getClass().getMethod("transferAsync", int.class, int.class, long.class);
+            totalAmount = Bank.MAX_AMOUNT / 2 / accounts * accounts;
+        }
+
+        @TearDown(Level.Trial)
+        public void checkBank() throws Exception {
+            ShardedBankBenchmark.checkBank(bank, totalAmount);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState extends BankBenchmark.ThreadState {
+        final Future<?>[] inFlight = new Future<?>[WINDOW];
+        long count;
+
+        int index(int accounts) {
+            return nextInt(accounts);
+        }
+
+        /*
+         * Transfers of the iteration complete within it, so that the total amount is checked after the trial.
+         */
+        @TearDown(Level.Iteration)
+        public void awaitTransfers() throws Exception {
+            for (int k = 0; k < WINDOW; k++) {
+                if (inFlight[k] != null)
+                    inFlight[k].get();
+                inFlight[k] = null;
+            }
+        }
+    }
+
+    static Bank createBank(String implementation, int accounts) throws ReflectiveOperationException {
+        Bank bank = (Bank) Class.forName("ru.ifmo.pp." + implementation).getConstructor(int.class).newInstance(accounts);
+        // Transfers of up to 1000 never underflow or overflow accounts that are this far from both limits
+        long amount = Bank.MAX_AMOUNT / 2 / accounts;
+        for (int i = 0; i < accounts; i++) {
+            bank.deposit(i, amount);
+        }
+        return bank;
+    }
+
+    static void checkBank(Bank bank, long totalAmount) throws Exception {
+        long total = bank.getTotalAmount();
+        if (bank instanceof AutoCloseable)
+            ((AutoCloseable) bank).close();
+        if (total != totalAmount)
+            throw new IllegalStateException("Total amount " + total + " instead of " + totalAmount);
+    }
+
+    @Benchmark
+    public void transfer(BankState s, ThreadState t) {
+        int from = t.index(s.accounts);
+        int to = t.index(s.accounts - 1);
+        if (to >= from)
+            to++;
+        s.bank.transfer(from, to, t.nextInt(1000) + 1);
+    }
+
+    /*
+     * Waits for the transfer that was started WINDOW transfers ago before starting a new one.
+     */
+    @Benchmark
+    public void transferAsync(AsyncBankState s, ThreadState t) throws Exception {
+        int from = t.index(s.accounts);
+        int to = t.index(s.accounts - 1);
+        if (to >= from)
+            to++;
+        int slot = (int) (t.count++ % WINDOW);
+        if (t.inFlight[slot] != null)
+            t.inFlight[slot].get();
+        t.inFlight[slot] = (Future<?>) s.transferAsync.invoke(s.bank, from, to, (long) (t.nextInt(1000) + 1));
+    }
+}
@@ -0,0 +1,7 @@
+package ru.ifmo.mpp.jmh;
+
+import org.openjdk.jmh.annotations.Threads;
+
+@Threads(16)
+public class SixteenThreadedBankBenchmark extends BankBenchmark {
+}
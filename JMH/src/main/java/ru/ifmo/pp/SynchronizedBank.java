@@ -0,0 +1,158 @@
+package ru.ifmo.pp;
+
+/**
+ * Bank implementation that serializes all operations on a single monitor.
+ * It is the baseline for benchmarks of the concurrent implementations, see {@code ru.ifmo.mpp.jmh.BankBenchmark}.
+ *
+ * <p>It is in this package, so that it can be built with the sources of either bank.
+ *
+ * @author Курбонзода
+ */
+public class SynchronizedBank implements Bank {
+    /**
+     * An array of amounts by index.
+     */
+    private final long[] amounts;
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public SynchronizedBank(int n) {
+        amounts = new long[n];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return amounts.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getAmount(int index) {
+        return amounts[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long getTotalAmount() {
+        long sum = 0;
+        for (long amount : amounts) {
+            sum += amount;
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] copy;
+        synchronized (this) {
+            copy = amounts.clone();
+        }
+        return new ArrayBankSnapshot(copy);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long deposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT || amounts[index] + amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        return amounts[index] += amount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long withdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amounts[index] - amount < 0)
+            throw new IllegalStateException("Underflow");
+        return amounts[index] -= amount;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void transfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > amounts[fromIndex])
+            throw new IllegalStateException("Underflow");
+        else if (amount > MAX_AMOUNT || amounts[toIndex] + amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        amounts[fromIndex] -= amount;
+        amounts[toIndex] += amount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        for (int i = 0; i < indices.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (indices[i] == indices[j])
+                    throw new IllegalArgumentException("Repeated index: " + indices[i]);
+            }
+            if (indices[i] < 0 || indices[i] >= this.amounts.length)
+                throw new IndexOutOfBoundsException("Invalid index: " + indices[i]);
+        }
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            long newAmount = this.amounts[indices[i]] + amounts[i];
+            if (newAmount < 0)
+                throw new IllegalStateException("Underflow");
+            if (newAmount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+        }
+        for (int i = 0; i < indices.length; i++) {
+            this.amounts[indices[i]] += amounts[i];
+        }
+    }
+}
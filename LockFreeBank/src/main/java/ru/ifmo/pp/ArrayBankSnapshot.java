@@ -0,0 +1,51 @@
+package ru.ifmo.pp;
+
+/**
+ * Snapshot that is a copy of all amounts.
+ *
+ * @author Курбонзода Абдукодири
+ */
+class ArrayBankSnapshot implements BankSnapshot {
+    private final long[] amounts;
+    private volatile boolean closed;
+
+    /**
+     * Creates new snapshot that takes ownership of the array.
+     */
+    ArrayBankSnapshot(long[] amounts) {
+        this.amounts = amounts;
+    }
+
+    @Override
+    public int getNumberOfAccounts() {
+        return amounts.length;
+    }
+
+    @Override
+    public long getAmount(int index) {
+        checkOpen();
+        if (index < 0 || index >= amounts.length)
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+        return amounts[index];
+    }
+
+    @Override
+    public long getTotalAmount() {
+        checkOpen();
+        long sum = 0;
+        for (long amount : amounts) {
+            sum += amount;
+        }
+        return sum;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Snapshot is closed");
+    }
+}
@@ -0,0 +1,95 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention manager with randomized exponential backoff.
+ *
+ * <p>In help-first mode a thread helps pending operations right away, but after a bounded number of
+ * helps in a row it yields before each next one. In retry-first mode a thread backs off a bounded number
+ * of times before it starts helping, so that an operation is usually completed by its own thread.
+ * Either way a thread eventually helps, so the bank stays lock-free.
+ *
+ * @author Курбонзода
+ */
+public class BackoffContentionManager implements ContentionManager {
+    /**
+     * Delays up to this one are spun, longer ones park the thread.
+     */
+    private static final long MAX_SPIN_NANOS = 10_000;
+
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final int retriesBeforeHelp;
+    private final int helpsBeforeYield;
+
+    /**
+     * Creates new contention manager.
+     * @param minDelayNanos the limit of the first backoff delay.
+     * @param maxDelayNanos the limit of the delay that doubles with each attempt.
+     * @param retriesBeforeHelp the number of attempts to back off before helping a pending operation.
+     * @param helpsBeforeYield the number of helps in a row before yielding before each next one.
+     */
+    public BackoffContentionManager(long minDelayNanos, long maxDelayNanos, int retriesBeforeHelp,
+                                    int helpsBeforeYield) {
+        if (minDelayNanos <= 0 || maxDelayNanos < minDelayNanos)
+            throw new IllegalArgumentException("Invalid delays: " + minDelayNanos + ", " + maxDelayNanos);
+        if (retriesBeforeHelp < 0 || helpsBeforeYield < 0)
+            throw new IllegalArgumentException("Invalid attempts: " + retriesBeforeHelp + ", " + helpsBeforeYield);
+        this.minDelayNanos = minDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.retriesBeforeHelp = retriesBeforeHelp;
+        this.helpsBeforeYield = helpsBeforeYield;
+    }
+
+    /**
+     * Creates contention manager that helps pending operations right away.
+     */
+    public static BackoffContentionManager helpFirst(long minDelayNanos, long maxDelayNanos, int helpsBeforeYield) {
+        return new BackoffContentionManager(minDelayNanos, maxDelayNanos, 0, helpsBeforeYield);
+    }
+
+    /**
+     * Creates contention manager that backs off before helping pending operations.
+     */
+    public static BackoffContentionManager retryFirst(long minDelayNanos, long maxDelayNanos, int retriesBeforeHelp) {
+        return new BackoffContentionManager(minDelayNanos, maxDelayNanos, retriesBeforeHelp, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onUpdateFailed(int attempt) {
+        backoff(attempt);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean shouldHelp(int attempt) {
+        if (attempt <= retriesBeforeHelp) {
+            backoff(attempt);
+            return false;
+        }
+        if (attempt - retriesBeforeHelp > helpsBeforeYield)
+            Thread.yield();
+        return true;
+    }
+
+    private void backoff(int attempt) {
+        int shift = Math.min(attempt - 1, Long.numberOfLeadingZeros(minDelayNanos) - 1); // does not overflow
+        long limit = Math.min(maxDelayNanos, minDelayNanos << shift);
+        long delay = 1 + ThreadLocalRandom.current().nextLong(limit);
+        if (delay > MAX_SPIN_NANOS) {
+            LockSupport.parkNanos(delay);
+            return;
+        }
+        long deadline = System.nanoTime() + delay;
+        while (System.nanoTime() < deadline) {
+            // spin
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static ru.ifmo.pp.BankProtocol.*;
+
+/**
+ * Client of a {@link BankServer}. It is a bank, where every operation takes a round trip to the server,
+ * and it sends {@link Batch batches} of requests in a single frame each. Many batches can be sent without
+ * waiting for their responses, so that the connection is busy both ways. This class is not thread-safe,
+ * each thread should have its own client.
+ *
+ * <pre>
+ * BankClient.Batch batch = new BankClient.Batch();
+ * int k = batch.deposit(1, 100);
+ * batch.transfer(1, 2, 50);
+ * BankClient.Response response = client.send(batch); // does not wait for the response
+ * long amount = response.get(k); // waits for the response and returns the amount after the deposit
+ * </pre>
+ *
+ * @author Курбонзода
+ */
+public class BankClient implements Bank, Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+
+    /**
+     * Received bytes that are not parsed yet, between position and limit.
+     */
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Responses that are not received yet in the order of their batches.
+     */
+    private final ArrayDeque<Response> pending = new ArrayDeque<>();
+
+    /**
+     * Batch for operations of {@link Bank}.
+     */
+    private final Batch single = new Batch();
+
+    /**
+     * Creates new client connected to the server.
+     */
+    public BankClient(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in.flip();
+    }
+
+    /**
+     * Sends all requests of the batch in a single frame without waiting for their responses.
+     * The batch may be cleared and reused when this method returns.
+     * @return the response that is received later.
+     */
+    public Response send(Batch batch) throws IOException {
+        ByteBuffer frame = batch.frame();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        Response response = new Response(Arrays.copyOf(batch.codes, batch.size));
+        pending.add(response);
+        return response;
+    }
+
+    /**
+     * Sends the batch and waits for its response.
+     */
+    public Response execute(Batch batch) throws IOException {
+        Response response = send(batch);
+        response.await();
+        return response;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        single.clear();
+        single.getNumberOfAccounts();
+        return (int) call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public long getAmount(int index) {
+        single.clear();
+        single.getAmount(index);
+        return call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public long getTotalAmount() {
+        single.clear();
+        single.getTotalAmount();
+        return call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>It is a copy of all amounts.
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        single.clear();
+        single.snapshot();
+        try {
+            return execute(single).getSnapshot(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is unavailable", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        single.clear();
+        single.deposit(index, amount);
+        return call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        single.clear();
+        single.withdraw(index, amount);
+        return call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        single.clear();
+        single.credit(index, amount);
+        call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        single.clear();
+        single.debit(index, amount);
+        call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        single.clear();
+        single.transfer(fromIndex, toIndex, amount);
+        call();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException when the server is unavailable.
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        single.clear();
+        single.transact(indices, amounts);
+        call();
+    }
+
+    /**
+     * Closes the connection, responses that are not received yet are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long call() {
+        try {
+            return execute(single).get(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is unavailable", e);
+        }
+    }
+
+    /**
+     * Receives the response of the earliest batch that is sent.
+     */
+    private void receive() throws IOException {
+        fill(HEADER_SIZE);
+        int length = in.getInt();
+        if (length < 4 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+        fill(length);
+        int end = in.position() + length;
+        Response response = pending.poll();
+        if (in.getInt() != response.codes.length)
+            throw new IOException("Invalid number of responses");
+        response.parse(in);
+        if (in.position() != end)
+            throw new IOException("Invalid frame");
+    }
+
+    /**
+     * Reads until at least the specified number of bytes is received.
+     */
+    private void fill(int bytes) throws IOException {
+        if (in.remaining() >= bytes)
+            return;
+        if (in.capacity() < bytes) {
+            ByteBuffer buffer = ByteBuffer.allocate(bytes);
+            buffer.put(in);
+            in = buffer;
+        } else {
+            in.compact();
+        }
+        while (in.position() < bytes) {
+            if (channel.read(in) < 0)
+                throw new EOFException();
+        }
+        in.flip();
+    }
+
+    /**
+     * Requests to send in a single frame. Every method adds a request and returns its position in the batch,
+     * that is the position of its result in the {@link Response}. Requests run in the order they are added,
+     * each on its own, so that a failed request does not affect others.
+     */
+    public static class Batch {
+        private ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+        private byte[] codes = new byte[64];
+        private int size;
+
+        /**
+         * Creates new empty batch.
+         */
+        public Batch() {
+            buffer.position(HEADER_SIZE);
+        }
+
+        /**
+         * Returns the number of requests in this batch.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Removes all requests from this batch.
+         */
+        public void clear() {
+            buffer.clear();
+            buffer.position(HEADER_SIZE);
+            size = 0;
+        }
+
+        public int getNumberOfAccounts() {
+            return add(GET_NUMBER_OF_ACCOUNTS, 0);
+        }
+
+        public int getAmount(int index) {
+            int k = add(GET_AMOUNT, 4);
+            buffer.putInt(index);
+            return k;
+        }
+
+        public int getTotalAmount() {
+            return add(GET_TOTAL_AMOUNT, 0);
+        }
+
+        /**
+         * Requests a copy of all amounts, see {@link Response#getSnapshot(int)}.
+         */
+        public int snapshot() {
+            return add(SNAPSHOT, 0);
+        }
+
+        public int deposit(int index, long amount) {
+            return add(DEPOSIT, index, amount);
+        }
+
+        public int withdraw(int index, long amount) {
+            return add(WITHDRAW, index, amount);
+        }
+
+        public int credit(int index, long amount) {
+            return add(CREDIT, index, amount);
+        }
+
+        public int debit(int index, long amount) {
+            return add(DEBIT, index, amount);
+        }
+
+        public int transfer(int fromIndex, int toIndex, long amount) {
+            int k = add(TRANSFER, 16);
+            buffer.putInt(fromIndex).putInt(toIndex).putLong(amount);
+            return k;
+        }
+
+        /**
+         * Adds a transaction, see {@link Bank#transact(int[], long[])}.
+         * @throws IllegalArgumentException when the arrays have different lengths.
+         */
+        public int transact(int[] indices, long[] amounts) {
+            if (indices.length != amounts.length)
+                throw new IllegalArgumentException("Different number of indices and amounts");
+            int k = add(TRANSACT, 4 + 12 * indices.length);
+            buffer.putInt(indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                buffer.putInt(indices[i]).putLong(amounts[i]);
+            }
+            return k;
+        }
+
+        private int add(byte code, int index, long amount) {
+            int k = add(code, 12);
+            buffer.putInt(index).putLong(amount);
+            return k;
+        }
+
+        /**
+         * Adds a request and makes room for its arguments of the specified size.
+         */
+        private int add(byte code, int bytes) {
+            buffer = ensureRemaining(buffer, 1 + bytes);
+            buffer.put(code);
+            if (size == codes.length)
+                codes = Arrays.copyOf(codes, 2 * size);
+            codes[size] = code;
+            return size++;
+        }
+
+        /**
+         * Returns the frame of this batch ready to be written.
+         */
+        ByteBuffer frame() {
+            ByteBuffer frame = buffer.duplicate();
+            frame.flip();
+            frame.putInt(0, frame.limit() - 4);
+            frame.putInt(4, size);
+            return frame;
+        }
+    }
+
+    /**
+     * Results of a batch in the order of its requests. It waits for the response frame on the first access.
+     */
+    public class Response {
+        private final byte[] codes;
+        private final long[] values;
+        private RuntimeException[] errors;
+        private long[][] snapshots;
+        private boolean done;
+
+        Response(byte[] codes) {
+            this.codes = codes;
+            values = new long[codes.length];
+        }
+
+        /**
+         * Returns the number of results.
+         */
+        public int size() {
+            return codes.length;
+        }
+
+        /**
+         * Returns true when the response is received.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits until the response is received, receiving responses of earlier batches too.
+         */
+        public void await() throws IOException {
+            while (!done) {
+                receive();
+            }
+        }
+
+        /**
+         * Returns the result of the request at the specified position: the amount for requests that return
+         * an amount, the number of accounts for {@link Batch#getNumberOfAccounts()}, and 0 for others.
+         * @throws IllegalArgumentException, IllegalStateException, or IndexOutOfBoundsException
+         *     when the request has failed.
+         * @throws IllegalStateException when the server is unavailable.
+         */
+        public long get(int k) {
+            awaitUnchecked();
+            if (errors != null && errors[k] != null)
+                throw errors[k];
+            return values[k];
+        }
+
+        /**
+         * Returns the snapshot of {@link Batch#snapshot()} request at the specified position.
+         * @throws IllegalStateException when the server is unavailable.
+         */
+        public BankSnapshot getSnapshot(int k) {
+            get(k);
+            if (codes[k] != SNAPSHOT)
+                throw new IllegalArgumentException("Not a snapshot: " + k);
+            return new ArrayBankSnapshot(snapshots[k]);
+        }
+
+        private void awaitUnchecked() {
+            try {
+                await();
+            } catch (IOException e) {
+                throw new IllegalStateException("Server is unavailable", e);
+            }
+        }
+
+        /**
+         * Reads all results from the response frame.
+         */
+        void parse(ByteBuffer frame) {
+            for (int k = 0; k < codes.length; k++) {
+                byte status = frame.get();
+                if (status != OK) {
+                    if (errors == null)
+                        errors = new RuntimeException[codes.length];
+                    errors[k] = getError(frame, status);
+                    continue;
+                }
+                switch (codes[k]) {
+                    case GET_NUMBER_OF_ACCOUNTS:
+                        values[k] = frame.getInt();
+                        break;
+                    case GET_AMOUNT:
+                    case GET_TOTAL_AMOUNT:
+                    case DEPOSIT:
+                    case WITHDRAW:
+                        values[k] = frame.getLong();
+                        break;
+                    case SNAPSHOT:
+                        if (snapshots == null)
+                            snapshots = new long[codes.length][];
+                        long[] amounts = new long[frame.getInt()];
+                        for (int i = 0; i < amounts.length; i++) {
+                            amounts[i] = frame.getLong();
+                        }
+                        snapshots[k] = amounts;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            done = true;
+        }
+    }
+}
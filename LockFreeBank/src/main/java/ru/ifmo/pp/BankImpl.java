@@ -1,6 +1,21 @@
 package ru.ifmo.pp;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongUnaryOperator;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Bank implementation.
@@ -12,24 +27,240 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * See also "Practical lock-freedom" by Keir Fraser.
  * See {@link #acquire(int, Op)} method.
  *
+ * <p>Accounts can be designated as split when the bank is created. {@link #credit(int, long) credit},
+ * {@link #debit(int, long) debit} and {@link #transfer(int, int, long) transfer} from a split account update
+ * a cell of the current thread, so that threads do not contend on a single hot account. See {@link SplitAccount}
+ * and {@link CellTransferOp}.
+ *
+ * <p>New accounts are opened with {@link #openAccount()}. Accounts are stored in a {@link Directory} of
+ * fixed-size segments that grows without moving existing accounts.
+ *
+ * <p>{@link #snapshot()} does not stop other operations. Every account that replaces another one keeps
+ * a reference to it while some open snapshot may need it, so a snapshot finds the account that was current
+ * at its instant in the chain of replaced accounts. See {@link #stamp(Account)} method. While no snapshot is open,
+ * updates do not keep replaced accounts, and the snapshot that is opened first sweeps all accounts instead.
+ * See {@link #replace(int, Account, Account)} method.
+ *
+ * <p>Failed updates, helps and allocated descriptors are counted in {@link StripedCounter striped counters},
+ * which are read through {@link BankImplMXBean}. They are only counted on contention or for operations
+ * on multiple accounts, so uncontended single-account operations do not pay for them.
+ *
+ * <p>Each thread reuses a {@link TransferOp} descriptor and its acquired accounts for its transfers, so that
+ * a transfer allocates only the two accounts it releases. Descriptors are reused only when no other thread
+ * can use them anymore, thus acquired accounts do not suffer from ABA problem either. See {@link Op#state}.
+ *
+ * <p>{@link #getAmount(int) getAmount} never helps pending operations, it reads the old or the new amount
+ * of an acquired account depending on whether its operation has completed, so reads do not slow down
+ * when writers contend.
+ *
+ * <p>{@link #applyToAll(LongUnaryOperator) applyToAll} changes all accounts with a single operation. It acquires
+ * ranges of accounts in parallel, so it cannot be helped like other operations, which acquire accounts in order.
+ * Instead, a thread that runs into its account aborts it, and it is invoked again. After
+ * {@link #MAX_APPLY_ABORTS} aborts it acquires accounts in order and is helped. Its acquired accounts are never
+ * reused, so when it succeeds they are not released, but stay in accounts with the new amounts.
+ * See {@link ApplyOp}.
+ *
  * @author Курбонзода
  */
-public class BankImpl implements Bank {
+public class BankImpl implements Bank, BankImplMXBean {
     /**
-     * An array of accounts by index.
+     * A directory of accounts by index.
      * Account instances here are never reused (there is no ABA).
      */
-    private final AtomicReferenceArray<Account> accounts;
+    private final Directory accounts = new Directory();
+
+    /**
+     * The number of opened accounts.
+     * Account at this index is not opened yet, it is null or {@link UnopenedAccount} in {@link #accounts}.
+     */
+    private final AtomicInteger numberOfAccounts;
+
+    /**
+     * The number of accounts in a segment of {@link Directory} is 2 to this power.
+     */
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int MAX_SEGMENTS = 1 << (31 - SEGMENT_SHIFT);
+
+    /**
+     * The number of attempts to validate a scan of all accounts in {@link #getTotalAmount()}
+     * before falling back to acquiring all of them.
+     */
+    private static final int MAX_SCAN_ATTEMPTS = 16;
+
+    /**
+     * The limit of the random delay before the first rescan in {@link #getTotalAmount()}.
+     * The limit doubles with each next rescan up to {@link #MAX_SCAN_DELAY_NANOS}.
+     */
+    private static final long MIN_SCAN_DELAY_NANOS = 1_000;
+
+    private static final long MAX_SCAN_DELAY_NANOS = 1_000_000;
+
+    /**
+     * The number of accounts below which {@link ApplyTask} does not split its range.
+     */
+    private static final int APPLY_CHUNK = 1 << 12;
+
+    /**
+     * The number of times {@link ApplyOp} acquiring accounts in parallel is aborted before it acquires them
+     * in order.
+     */
+    private static final int MAX_APPLY_ABORTS = 2;
+
+    /**
+     * The clock of {@link Account#version account versions}, it only ticks when a snapshot is taken.
+     */
+    private final AtomicLong clock = new AtomicLong(1);
+
+    /**
+     * Snapshots that are not closed yet, the oldest one first.
+     * Accounts keep references to the accounts they have replaced only for these snapshots.
+     */
+    private final ConcurrentSkipListSet<VersionedSnapshot> openSnapshots = new ConcurrentSkipListSet<>();
+
+    /**
+     * The source of {@link VersionedSnapshot#id snapshot identifiers}.
+     */
+    private final AtomicLong snapshotIds = new AtomicLong();
+
+    /**
+     * The number of snapshots that are not closed yet and the {@link #SWEEPING} flag, it is 0 when updates
+     * skip stamping and pruning. See {@link #replace(int, Account, Account)}.
+     */
+    private final AtomicInteger snapshotState = new AtomicInteger();
+
+    /**
+     * The flag of {@link #snapshotState} that is set until the snapshot that is opened first sweeps accounts.
+     */
+    private static final int SWEEPING = 1 << 30;
+
+    private static final AtomicLongFieldUpdater<Account> ACCOUNT_VERSION =
+        AtomicLongFieldUpdater.newUpdater(Account.class, "version");
+    private static final AtomicLongFieldUpdater<Op> OP_VERSION =
+        AtomicLongFieldUpdater.newUpdater(Op.class, "version");
+    private static final AtomicLongFieldUpdater<Op> OP_STATE =
+        AtomicLongFieldUpdater.newUpdater(Op.class, "state");
+
+    /**
+     * Bits of {@link Op#state}: the number of threads that help the operation, the flags,
+     * and the sequence number of the use of the operation in the highest bits.
+     */
+    private static final long HELPER = 1;
+    private static final long HELPERS = (1 << 16) - 1;
+    private static final long COMPLETED = 1 << 16;
+    private static final long IDLE = 1 << 17;
+    private static final long ABORTED = 1 << 18;
+    private static final long SEQUENCE = 1 << 19;
+
+    /**
+     * The descriptor that the current thread reuses for its transfers, see {@link #transfer(int, int, long)}.
+     * The descriptor refers to this bank, so it is weakly referenced, otherwise threads would keep the bank.
+     */
+    private final ThreadLocal<WeakReference<TransferOp>> transferOps = new ThreadLocal<>();
+
+    /**
+     * The arrays that the current thread reuses for its scans, see {@link #getTotalAmount()}.
+     * They refer to accounts, and acquired accounts refer to this bank, so they are weakly referenced too.
+     */
+    private final ThreadLocal<WeakReference<ScanBuffers>> scanBuffers = new ThreadLocal<>();
+
+    /**
+     * Decides whether to back off or to help when an account is contended.
+     */
+    private final ContentionManager contentionManager;
+
+    /**
+     * Contention counters, see {@link BankImplMXBean}.
+     */
+    private final StripedCounter acquireRetries = new StripedCounter();
+    private final StripedCounter updateRetries = new StripedCounter();
+    private final StripedCounter helps = new StripedCounter();
+    private final StripedCounter descriptors = new StripedCounter();
+
+    /**
+     * Cells of accounts that are designated as split by index, null for other accounts.
+     * All split accounts at an index share its cells, see {@link SplitAccount}.
+     */
+    private final AtomicLongArray[] splitCells;
+
+    /**
+     * Transfers that have reserved cells of split accounts by index, at the same positions as the cells.
+     * See {@link CellTransferOp}.
+     */
+    private final AtomicReferenceArray<CellTransferOp>[] splitOps;
+
+    /**
+     * The number of cells in a split account.
+     */
+    private static final int SPLIT_CELLS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The distance between cells of a split account in its array, so that cells do not share cache lines.
+     */
+    private static final int CELL_STRIDE = 16;
+
+    /**
+     * The bit that marks a frozen cell of a split account.
+     */
+    private static final long FROZEN = 1L << 62;
+
+    /**
+     * The bit that marks a cell of a split account reserved by a {@link CellTransferOp}. A reserved cell has
+     * the tag of the account and the sequence number of the reservation instead of the amount in lower bits.
+     * The last sequence number of a cell is kept next to it in the array of cells.
+     */
+    private static final long RESERVED = 1L << 63;
+
+    /**
+     * A cell of a split account has the tag of the account in bits from {@link #TAG_SHIFT} to {@link #FROZEN}
+     * and the amount it adds to the account offset by {@link #CELL_OFFSET} in lower bits.
+     */
+    private static final int TAG_SHIFT = 32;
+    private static final long TAG_MASK = (1L << (62 - TAG_SHIFT)) - 1;
+    private static final long CELL_OFFSET = 1L << (TAG_SHIFT - 1);
+    private static final long CELL_MASK = (1L << TAG_SHIFT) - 1;
 
     /**
      * Creates new bank instance.
      * @param n the number of accounts (numbered from 0 to n-1).
      */
     public BankImpl(int n) {
-        accounts = new AtomicReferenceArray<>(n);
+        this(n, ContentionManager.NONE);
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param contentionManager the policy to use when accounts are contended.
+     */
+    public BankImpl(int n, ContentionManager contentionManager) {
+        this(n, contentionManager, new int[0]);
+    }
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param contentionManager the policy to use when accounts are contended.
+     * @param splitIndices indices of accounts to split.
+     */
+    public BankImpl(int n, ContentionManager contentionManager, int[] splitIndices) {
+        splitCells = new AtomicLongArray[n];
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<CellTransferOp>[] splitOps = new AtomicReferenceArray[n];
+        this.splitOps = splitOps;
+        for (int index : splitIndices) {
+            splitCells[index] = new AtomicLongArray(SPLIT_CELLS * CELL_STRIDE);
+            splitOps[index] = new AtomicReferenceArray<>(SPLIT_CELLS * CELL_STRIDE);
+            // Cells look as if they were frozen by an account with tag 0 that added nothing to them
+            for (int i = 0; i < SPLIT_CELLS; i++) {
+                splitCells[index].set(i * CELL_STRIDE, FROZEN | CELL_OFFSET);
+            }
+        }
         for (int i = 0; i < n; i++) {
-            accounts.set(i, new Account(0));
+            accounts.compareAndSet(i, null, newAccount(i, 0));
         }
+        numberOfAccounts = new AtomicInteger(n);
+        this.contentionManager = contentionManager;
     }
 
     /**
@@ -37,7 +268,33 @@ public class BankImpl implements Bank {
      */
     @Override
     public int getNumberOfAccounts() {
-        return accounts.length();
+        return numberOfAccounts.get();
+    }
+
+    /**
+     * Opens new account with zero amount.
+     * It does not interfere with concurrent operations on other accounts.
+     * @return the index of the new account, that is the number of accounts before the call.
+     */
+    public int openAccount() {
+        for (int attempt = 1; ; attempt++) {
+            int n = numberOfAccounts.get();
+            Account account = accounts.get(n);
+            if (account == null || account instanceof UnopenedAccount) {
+                if (replace(n, account, new Account(0))) {
+                    numberOfAccounts.compareAndSet(n, n + 1);
+                    return n;
+                }
+                updateRetries.add(1);
+                contentionManager.onUpdateFailed(attempt);
+            } else if (account instanceof AcquiredAccount && !((AcquiredAccount) account).opened) {
+                // getTotalAmount is in progress, it has to complete before the account can be opened
+                invokeOperation(account, attempt);
+            } else {
+                // The account was opened concurrently, help to increment the number of accounts
+                numberOfAccounts.compareAndSet(n, n + 1);
+            }
+        }
     }
 
     /**
@@ -45,15 +302,51 @@ public class BankImpl implements Bank {
      */
     @Override
     public long getAmount(int index) {
-        while (true) {
+        checkIndex(index);
+        for (int attempt = 1; ; attempt++) {
             Account account = accounts.get(index);
             /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account amount can be safely returned.
+             * Readers never help pending operations, so that their latency does not depend on writers.
+             * The amount of an acquired account is known without completing its operation.
              */
-            if (!account.invokeOperation())
-                return account.amount;
+            if (account instanceof AppliedAccount) {
+                return account.currentAmount(); // it is never reused, so it is read without entering its op
+            } else if (account instanceof AcquiredAccount) {
+                long amount = readAcquired(index, (AcquiredAccount) account);
+                if (amount >= 0)
+                    return amount;
+            } else if (!invokeOperation(account, attempt)) {
+                stamp(account);
+                return account.currentAmount();
+            }
+        }
+    }
+
+    /**
+     * Reads the amount of an acquired account without helping its operation: it is the old amount until
+     * the operation completes and the new one afterwards. Returns -1 when the account was released
+     * concurrently, then it has to be read again.
+     */
+    private long readAcquired(int index, AcquiredAccount account) {
+        Op op = account.op;
+        if (!op.enter())
+            return -1; // the operation was released, and its descriptor may be in use already
+        try {
+            // The descriptor is not reused while this thread is in it, so the account is still for this index
+            if (accounts.get(index) != account)
+                return -1;
+            /*
+             * The account is released only after op completes, so op completes while the account is
+             * in accounts, and the new amount is the amount of the account from that moment.
+             */
+            if (!op.isCompleted()) {
+                stamp(account);
+                return account.oldAmount;
+            }
+            stamp(op); // so that later snapshots see the new amount too
+            return op.newAmount(account);
+        } finally {
+            op.exit();
         }
     }
 
@@ -62,8 +355,31 @@ public class BankImpl implements Bank {
      */
     @Override
     public long getTotalAmount() {
+        /*
+         * First, try to read all accounts without acquiring them. Account instances in accounts array are
+         * never reused, so if two consecutive scans see the same instances with the same amounts, then
+         * all accounts had those amounts at the moment between the two scans. The number of accounts only
+         * grows, so if it is the same after the second scan, then no account was opened during the scans.
+         */
+        int n = numberOfAccounts.get();
+        ScanBuffers buffers = scanBuffers(n);
+        scan(n, buffers, false);
+        for (int attempt = 0; attempt < MAX_SCAN_ATTEMPTS; attempt++) {
+            long rescannedSum = scan(n, buffers, true);
+            if (rescannedSum >= 0 && numberOfAccounts.get() == n)
+                return rescannedSum;
+            /*
+             * Every failed rescan means that some account has changed in between, so the next pair of scans
+             * starts after a random delay that grows with each attempt, letting updates complete.
+             */
+            long limit = Math.min(MAX_SCAN_DELAY_NANOS, MIN_SCAN_DELAY_NANOS << attempt);
+            LockSupport.parkNanos(1 + ThreadLocalRandom.current().nextLong(limit));
+            n = numberOfAccounts.get();
+            buffers = scanBuffers(n);
+            scan(n, buffers, false);
+        }
         /**
-         * This operation requires atomic read of all accounts, thus it creates an operation descriptor.
+         * Accounts keep changing, so fall back to atomic read of all accounts with an operation descriptor.
          * Operation's invokeOperation method acquires all accounts, computes the total amount, and releases
          * all accounts. This method returns the result.
          */
@@ -72,6 +388,120 @@ public class BankImpl implements Bank {
         return op.sum;
     }
 
+    /**
+     * Returns the arrays of the current thread with room for n accounts.
+     */
+    private ScanBuffers scanBuffers(int n) {
+        WeakReference<ScanBuffers> reference = scanBuffers.get();
+        ScanBuffers buffers = reference != null ? reference.get() : null;
+        if (buffers == null || buffers.accounts.length < n) {
+            buffers = new ScanBuffers(n);
+            scanBuffers.set(new WeakReference<>(buffers));
+        }
+        return buffers;
+    }
+
+    /**
+     * Reads the first n accounts without helping pending operations.
+     * When validate is false, it stores the accounts and their amounts into the buffers and returns the sum.
+     * When validate is true, it returns the sum if all accounts and their amounts are the same as stored
+     * or -1 if anything has changed or some account is acquired.
+     */
+    private long scan(int n, ScanBuffers buffers, boolean validate) {
+        Account[] scanned = buffers.accounts;
+        long[] scannedAmounts = buffers.amounts;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            Account account = accounts.get(i);
+            long amount = account.currentAmount();
+            if (validate) {
+                /*
+                 * An acquired account may be reused by the time it is read again, so it is not the same account
+                 * even if it is the same instance. Acquired accounts are rare in a scan, so it just fails then.
+                 * Accounts acquired by applyToAll are never reused and stay in accounts, so they are compared.
+                 */
+                if (account != scanned[i] || amount != scannedAmounts[i]
+                        || account instanceof AcquiredAccount && !(account instanceof AppliedAccount))
+                    return -1;
+                stamp(account);
+            } else {
+                scanned[i] = account;
+                scannedAmounts[i] = amount;
+            }
+            sum += amount;
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>It takes constant time, split accounts aside. Reading the snapshot does not stop other operations,
+     * but they keep replaced accounts until the snapshot is closed.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        // The snapshot is registered before the clock ticks, so that accounts it needs are not dropped
+        VersionedSnapshot snapshot = new VersionedSnapshot(clock.get(), snapshotIds.incrementAndGet());
+        openSnapshots.add(snapshot);
+        if (register()) {
+            sweep();
+            snapshotState.getAndAdd(-SWEEPING);
+        }
+        /*
+         * Cells of a split account change in place, so split accounts are frozen before the clock ticks.
+         * Credits and debits that have completed before this call are in their frozen amounts, and later
+         * ones go to the accounts that replace them, which get versions after the tick. A split account that
+         * replaces a frozen one before the tick is not frozen at the tick, so then the clock ticks again.
+         */
+        Account[] frozen = new Account[splitCells.length];
+        boolean changed;
+        do {
+            for (int i = 0; i < splitCells.length; i++) {
+                if (splitCells[i] != null)
+                    stamp(frozen[i] = accounts.get(i));
+            }
+            snapshot.version = clock.getAndIncrement();
+            changed = false;
+            for (int i = 0; i < splitCells.length; i++) {
+                if (splitCells[i] != null && accounts.get(i) != frozen[i])
+                    changed = true;
+            }
+        } while (changed);
+        snapshot.n = numberOfAccounts.get();
+        return snapshot;
+    }
+
+    /**
+     * Counts a new open snapshot. Returns true when it has to sweep accounts, that is when no snapshot was
+     * open, or the snapshot that was opened first has not swept them yet.
+     */
+    private boolean register() {
+        while (true) {
+            int state = snapshotState.get();
+            if (state == 0 && snapshotState.compareAndSet(0, 1 | SWEEPING))
+                return true;
+            if (state != 0 && snapshotState.compareAndSet(state, state + 1))
+                return (state & SWEEPING) != 0;
+        }
+    }
+
+    /**
+     * Replaces every opened account with a copy, so that updates that have found no open snapshot either
+     * succeed before this call replaces their accounts or fail. The copies are stamped, and the accounts
+     * that replace them keep them. Pending operations are helped first.
+     */
+    private void sweep() {
+        for (int i = 0; ; i++) {
+            while (true) {
+                Account account = accounts.get(i);
+                if (account == null || account instanceof UnopenedAccount)
+                    return; // accounts are opened in the order of indices
+                if (!account.invokeOperation() && replace(i, account, newAccount(i, account.currentAmount())))
+                    break;
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -82,23 +512,28 @@ public class BankImpl implements Bank {
             throw new IllegalArgumentException("Invalid amount: " + amount);
         if (amount > MAX_AMOUNT)
             throw new IllegalStateException("Overflow");
+        checkIndex(index);
         /*
          * This operation depends only on a single account, thus it can be directly
          * performed using a regular lock-free compareAndSet loop.
          */
-        while (true) {
+        for (int attempt = 1; ; attempt++) {
             Account account = accounts.get(index);
             /*
              * If there is a pending operation on this account, then help to complete it first using
              * its invokeOperation method. If the result is false then there is no pending operation,
              * thus the account can be safely updated.
              */
-            if (!account.invokeOperation()) {
-                if (account.amount + amount > MAX_AMOUNT)
+            if (!invokeOperation(account, attempt)) {
+                long current = account.currentAmount();
+                if (current + amount > MAX_AMOUNT) {
+                    stamp(account);
                     throw new IllegalStateException("Overflow");
-                Account updated = new Account(account.amount + amount);
-                if (accounts.compareAndSet(index, account, updated))
-                    return updated.amount;
+                }
+                if (replace(index, account, newAccount(index, current + amount)))
+                    return current + amount;
+                updateRetries.add(1);
+                contentionManager.onUpdateFailed(attempt);
             }
         }
     }
@@ -114,22 +549,98 @@ public class BankImpl implements Bank {
          */
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
 
-        while (true) {
+        for (int attempt = 1; ; attempt++) {
             Account account = accounts.get(index);
-            if (!account.invokeOperation()) {
-                if (account.amount - amount < 0)
+            if (!invokeOperation(account, attempt)) {
+                long current = account.currentAmount();
+                if (current - amount < 0) {
+                    stamp(account);
                     throw new IllegalStateException("Underflow");
+                }
+
+                if (replace(index, account, newAccount(index, current - amount)))
+                    return current - amount;
+                updateRetries.add(1);
+                contentionManager.onUpdateFailed(attempt);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>A split account is updated in a cell of the current thread. When the cell cannot fit the amount,
+     * the account is replaced with the one that has the amount added.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        checkIndex(index);
+        if (isSplit(index))
+            updateSplit(index, amount);
+        else
+            deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>A split account is updated in a cell of the current thread. When the cell does not have enough funds,
+     * the account is replaced with the one that has the amount withdrawn.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount <= MAX_AMOUNT && isSplit(index))
+            updateSplit(index, -amount);
+        else
+            withdraw(index, amount);
+    }
 
-                Account updated = new Account(account.amount - amount);
-                if (accounts.compareAndSet(index, account, updated))
-                    return updated.amount;
+    private boolean isSplit(int index) {
+        return index < splitCells.length && splitCells[index] != null;
+    }
+
+    /**
+     * Adds amount to a cell of the split account at index. When the cell cannot be updated, because the account
+     * is frozen or the cell cannot fit the amount, the account is replaced with a split account that has
+     * the amount added, so that threads that fail to replace it update their cells in the new account.
+     */
+    private void updateSplit(int index, long amount) {
+        for (int attempt = 1; ; attempt++) {
+            Account account = accounts.get(index);
+            if (account instanceof SplitAccount && ((SplitAccount) account).update(amount))
+                return;
+            if (!invokeOperation(account, attempt)) {
+                long current = account.currentAmount();
+                if (current + amount < 0 || current + amount > MAX_AMOUNT) {
+                    stamp(account);
+                    throw new IllegalStateException(amount < 0 ? "Underflow" : "Overflow");
+                }
+                if (replace(index, account, newAccount(index, current + amount)))
+                    return;
+                updateRetries.add(1);
+                contentionManager.onUpdateFailed(attempt);
             }
         }
     }
 
+    /**
+     * Creates an account with the amount to put at index, it is a split account for split indices.
+     */
+    private Account newAccount(int index, long amount) {
+        return isSplit(index) ? new SplitAccount(index, amount) : new Account(amount);
+    }
+
     /**
      * {@inheritDoc}
+     * <p>The amount is taken from a split account in a cell of the current thread when the cell has enough funds,
+     * otherwise the whole account is read and replaced.
      */
     @Override
     public void transfer(int fromIndex, int toIndex, long amount) {
@@ -140,26 +651,138 @@ public class BankImpl implements Bank {
             throw new IllegalArgumentException("fromIndex == toIndex");
         if (amount > MAX_AMOUNT)
             throw new IllegalStateException("Underflow/overflow");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (isSplit(fromIndex) && transferFromCell(fromIndex, toIndex, amount))
+            return;
         /**
-         * This operation requires atomic read of two accounts, thus it creates an operation descriptor.
+         * This operation requires atomic read of two accounts, thus it uses an operation descriptor.
          * Operation's invokeOperation method acquires both accounts, computes the result of operation
          * (if a form of error message), and releases both accounts. This method throws the exception with
          * the corresponding message if needed.
          */
-        TransferOp op = new TransferOp(fromIndex, toIndex, amount);
+        WeakReference<TransferOp> reference = transferOps.get();
+        TransferOp op = reference != null ? reference.get() : null;
+        if (op == null) {
+            op = new TransferOp();
+            transferOps.set(new WeakReference<>(op));
+        }
+        op.reuse(fromIndex, toIndex, amount);
+        op.invokeOperation(op.acquired, op.wrappers);
+        String errorMessage = op.errorMessage;
+        /*
+         * All accounts are released by now. The descriptor is kept for the next transfer unless some thread
+         * still helps it, or some open snapshot may read its acquired accounts from the chains of replaced
+         * accounts. Snapshots that are taken later stop at the accounts that have replaced them.
+         */
+        if (!openSnapshots.isEmpty() || !op.retire())
+            transferOps.remove();
+        if (errorMessage != null)
+            throw new IllegalStateException(errorMessage);
+    }
+
+    /**
+     * Transfers amount from the cell of the current thread in the split account at fromIndex with
+     * a {@link CellTransferOp}. Returns false when the cell cannot serve the transfer or the transfer was
+     * aborted, then the amount has to be taken from the whole account.
+     */
+    private boolean transferFromCell(int fromIndex, int toIndex, long amount) {
+        Account account = accounts.get(fromIndex);
+        CellTransferOp op = account instanceof SplitAccount ?
+            ((SplitAccount) account).reserve(toIndex, amount) : null;
+        if (op == null)
+            return false;
+        op.invokeOperation();
+        if (op.isAborted())
+            return false;
+        if (op.errorMessage != null)
+            throw new IllegalStateException(op.errorMessage);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        // First, validate method per-conditions
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        TransactionOp op = new TransactionOp(indices.clone(), amounts.clone());
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        // The same as transfer, but with any number of accounts
         op.invokeOperation();
         if (op.errorMessage != null)
             throw new IllegalStateException(op.errorMessage);
     }
 
+    /**
+     * Atomically replaces the amount of every account with the result of the function, including
+     * the accounts that are opened concurrently. Either all accounts are changed or none of them is.
+     * Accounts are acquired in parallel in the common {@link ForkJoinPool}, and on success they are not
+     * released, so each account takes a single CAS and a single new account, like a deposit, and all of them
+     * take a fraction of the time that a deposit to every account takes when there are several processors.
+     *
+     * @param f the function of the current amount, it must be free of side effects.
+     * @throws IllegalStateException if the result for some account is negative or exceeds {@link #MAX_AMOUNT}.
+     */
+    public void applyToAll(LongUnaryOperator f) {
+        apply(0, -1, f);
+    }
+
+    /**
+     * Atomically replaces the amount of every account with index from fromIndex inclusive to toIndex exclusive
+     * with the result of the function, the same way as {@link #applyToAll(LongUnaryOperator) applyToAll}.
+     *
+     * @param fromIndex the first account index.
+     * @param toIndex the account index after the last one, from fromIndex to {@link #getNumberOfAccounts() n}.
+     * @param f the function of the current amount, it must be free of side effects.
+     * @throws IndexOutOfBoundsException when the range is invalid.
+     * @throws IllegalStateException if the result for some account is negative or exceeds {@link #MAX_AMOUNT}.
+     */
+    public void applyToRange(int fromIndex, int toIndex, LongUnaryOperator f) {
+        if (fromIndex < 0 || fromIndex > toIndex || toIndex > numberOfAccounts.get())
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        apply(fromIndex, toIndex, f);
+    }
+
+    /**
+     * Invokes {@link ApplyOp} until it is not aborted, where toIndex is -1 for all accounts.
+     */
+    private void apply(int fromIndex, int toIndex, LongUnaryOperator f) {
+        for (int attempt = 0; ; attempt++) {
+            boolean all = toIndex < 0;
+            ApplyOp op = new ApplyOp(fromIndex, all ? numberOfAccounts.get() : toIndex, all, f,
+                attempt >= MAX_APPLY_ABORTS);
+            op.invokeOperation();
+            if (!op.isAborted()) {
+                if (op.errorMessage != null)
+                    throw new IllegalStateException(op.errorMessage);
+                return;
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= numberOfAccounts.get())
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+    }
 
     /**
      * This is an implementation of a restricted form of Harris DCSS operation:
-     * It atomically checks that op.completed is false and replaces accounts[index] with AcquiredAccount instance
-     * that hold a reference to the op.
-     * This method returns null if op.completed is true.
+     * It atomically checks that op is not completed and replaces accounts[index] with AcquiredAccount instance
+     * that hold a reference to the op. The wrapper is that instance if it is not null, it is reused by the
+     * thread that owns a {@link TransferOp}, and other threads create new instances.
+     * This method returns null if op is completed.
      */
-    private AcquiredAccount acquire(int index, Op op) {
+    private AcquiredAccount acquire(int index, Op op, AcquiredAccount wrapper) {
         /*
          * This method must loop trying to replace accounts[index] with an instance of
          *     new AcquiredAccount(<old-amount>, op) until that successfully happens and return the
@@ -170,16 +793,16 @@ public class BankImpl implements Bank {
          *
          * Because accounts[index] does not have an ABA problem, there is no need to implement full-blown
          * DCSS operation with descriptors for DCSS operation as explained in Harris CASN work. A simple
-         * lock-free compareAndSet loop suffices here if op.completed is checked after the accounts[index]
+         * lock-free compareAndSet loop suffices here if op.isCompleted() is checked after the accounts[index]
          * is read.
          *
          * Basically, implementation of this method must perform the logic of the following code "atomically":
          */
 
-        while (true) {
+        for (int attempt = 1; ; attempt++) {
             Account account = accounts.get(index);
 
-            if (op.completed)
+            if (op.isCompleted())
                 return null;
 
             if (account instanceof AcquiredAccount) {
@@ -188,89 +811,694 @@ public class BankImpl implements Bank {
                     return acquiredAccount;
             }
 
-            if (!account.invokeOperation()) {
-                AcquiredAccount acquiredAccount = new AcquiredAccount(account.amount, op);
-                if (accounts.compareAndSet(index, account, acquiredAccount))
+            /*
+             * An account that is not opened yet is acquired too, so that it cannot be opened
+             * until op completes. Null is never put back to accounts, so it has no ABA.
+             */
+            if (account == null || !invokeOperation(account, attempt)) {
+                boolean opened = account != null && !(account instanceof UnopenedAccount);
+                long amount = opened ? account.currentAmount() : 0;
+                // The wrapper is not in accounts until replace succeeds, so nobody else uses it
+                AcquiredAccount acquiredAccount = wrapper != null ?
+                    wrapper.reuse(amount, opened) : op.newAcquiredAccount(index, amount, opened);
+                if (replace(index, account, acquiredAccount))
                     return acquiredAccount;
+                acquireRetries.add(1);
+                contentionManager.onUpdateFailed(attempt);
             }
         }
     }
 
+    /**
+     * Invokes operation that is pending on the account, unless {@link #contentionManager} tells to back off
+     * instead of helping an operation that has not completed yet. Returns false when there is no pending
+     * operation, thus the account can be used, and true when the account has to be read again.
+     */
+    private boolean invokeOperation(Account account, int attempt) {
+        if (!(account instanceof AcquiredAccount) || ((AcquiredAccount) account).isReleased())
+            return account.invokeOperation();
+        if (!((AcquiredAccount) account).op.isCompleted() && !contentionManager.shouldHelp(attempt))
+            return true;
+        helps.add(1);
+        return account.invokeOperation();
+    }
+
     /**
      * Releases an account that was previously acquired by {@link #acquire(int, Op)}.
      * This method does nothing if the account at index is not currently acquired.
      */
     private void release(int index, Op op) {
-        assert op.completed; // must be called only on operations that were already completed
+        assert op.isCompleted(); // must be called only on operations that were already completed
+        stamp(op); // before the released account, so that snapshots see the op in all accounts or in none
         Account account = accounts.get(index);
         if (account instanceof AcquiredAccount) {
             AcquiredAccount acquiredAccount = (AcquiredAccount) account;
             if (acquiredAccount.op == op) {
                 // release performs update at most once while the account is still acquired
-                Account updated = new Account(acquiredAccount.newAmount);
-                accounts.compareAndSet(index, account, updated);
+                Account updated = acquiredAccount.opened ?
+                    newAccount(index, op.newAmount(acquiredAccount)) : new UnopenedAccount();
+                replace(index, account, updated);
             }
         }
     }
 
     /**
-     * Immutable account data structure.
+     * Replaces account at index with the update if it is still the expected one, stamping both accounts.
+     * Then it drops references to replaced accounts that no open snapshot needs.
+     *
+     * <p>While no snapshot is open, the update is stamped before it is put into accounts and keeps no
+     * replaced account, so it costs a single CAS. A snapshot that is opened later sweeps all accounts
+     * before the clock ticks, so such an update either succeeds before the sweep replaces the expected account,
+     * and thus before the tick, or fails. The clock is read before the check, so the version of the update
+     * is not greater than the versions of later snapshots.
      */
-    private static class Account {
-        /**
-         * Amount of funds in this account.
-         */
-        final long amount;
-
-        Account(long amount) {
-            this.amount = amount;
+    private boolean replace(int index, Account expect, Account update) {
+        long now = clock.get();
+        if (snapshotState.get() == 0) {
+            update.previous = null;
+            // A split account changes after it is put into accounts, so it is only stamped when it is frozen
+            if (!(update instanceof SplitAccount))
+                ACCOUNT_VERSION.lazySet(update, now);
+            return accounts.compareAndSet(index, expect, update);
         }
-
-        /**
-         * Invokes operation that is pending on this account.
-         * This implementation returns false (no pending operation),
-         * other implementations return true.
-         */
-        boolean invokeOperation() {
+        stamp(expect);
+        update.previous = expect;
+        if (!accounts.compareAndSet(index, expect, update))
             return false;
+        /*
+         * A snapshot stops at the first account with a version up to its own. Snapshots that are registered
+         * after this point get versions that are not less than the versions of both accounts, and the older
+         * ones are in openSnapshots, so accounts before an account that is not newer than all of them are
+         * never looked at.
+         */
+        long oldest = oldestSnapshot();
+        if (expect != null && expect.version <= oldest)
+            expect.previous = null;
+        // A split account changes after it is put into accounts, so it is only stamped when it is frozen
+        if (!(update instanceof SplitAccount)) {
+            stamp(update);
+            if (update.version <= oldest)
+                update.previous = null;
+            else if (expect != null && update.version == expect.version)
+                update.previous = expect.previous; // no snapshot stops at the expected account
         }
+        return true;
     }
 
     /**
-     * Account that was acquired as a part of in-progress operation that spans multiple accounts.
-     * @see #acquire(int, Op)
+     * Returns the clock value read before the oldest open snapshot was taken, or Long.MAX_VALUE when there are
+     * no open snapshots.
      */
-    private static class AcquiredAccount extends Account {
+    private long oldestSnapshot() {
+        if (openSnapshots.isEmpty())
+            return Long.MAX_VALUE;
+        try {
+            return openSnapshots.first().oldest;
+        } catch (NoSuchElementException e) {
+            return Long.MAX_VALUE; // the last snapshot was closed concurrently
+        }
+    }
+
+    /**
+     * Gives the account a version if it does not have one yet.
+     *
+     * <p>An account is stamped with the current value of {@link #clock} after it is put into accounts and
+     * before its amount is used by any operation or it is replaced. A snapshot is taken by a tick of the clock,
+     * so the accounts with versions up to the snapshot version were in accounts before the snapshot, and those
+     * that nobody has used before the snapshot can be ordered after it. A split account is frozen first,
+     * so that its amount does not change after it is stamped.
+     */
+    private void stamp(Account account) {
+        if (account == null || account.version != 0)
+            return;
+        if (account instanceof SplitAccount)
+            ((SplitAccount) account).freeze();
+        ACCOUNT_VERSION.compareAndSet(account, 0, clock.get());
+    }
+
+    /**
+     * Gives the operation a version if it does not have one yet.
+     * An operation is stamped after it completes and before accounts are released with its new amounts.
+     */
+    private void stamp(Op op) {
+        if (op.version == 0)
+            OP_VERSION.compareAndSet(op, 0, clock.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAcquireRetries() {
+        return acquireRetries.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUpdateRetries() {
+        return updateRetries.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHelps() {
+        return helps.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDescriptors() {
+        return descriptors.sum();
+    }
+
+    /**
+     * Accounts and their amounts seen by the first scan of a pair in {@link #getTotalAmount()}.
+     */
+    private static class ScanBuffers {
+        final Account[] accounts;
+        final long[] amounts;
+
+        ScanBuffers(int n) {
+            accounts = new Account[n];
+            amounts = new long[n];
+        }
+    }
+
+    /**
+     * Lock-free directory of accounts that consists of segments with {@link #SEGMENT_SIZE} accounts.
+     * The array of segments is grown by replacing it with a copy at least twice as long using CAS,
+     * so opening accounts one by one copies the array only a logarithmic number of times.
+     * Segments themselves are never copied, so accounts never move and concurrent updates of accounts are never lost.
+     */
+    private static class Directory {
+        private final AtomicReference<Segment[]> segments = new AtomicReference<>(new Segment[0]);
+
+        /**
+         * Returns account at index or null if the segment for this index does not exist yet.
+         */
+        Account get(int index) {
+            Segment[] segments = this.segments.get();
+            int k = index >>> SEGMENT_SHIFT;
+            return k < segments.length ? segments[k].get(index & (SEGMENT_SIZE - 1)) : null;
+        }
+
+        /**
+         * Atomically replaces account at index, adding segments for this index if needed.
+         */
+        boolean compareAndSet(int index, Account expect, Account update) {
+            return segment(index >>> SEGMENT_SHIFT).compareAndSet(index & (SEGMENT_SIZE - 1), expect, update);
+        }
+
+        private Segment segment(int k) {
+            while (true) {
+                Segment[] segments = this.segments.get();
+                if (k < segments.length)
+                    return segments[k];
+                Segment[] grown = Arrays.copyOf(segments,
+                    Math.max(k + 1, Math.min(2 * segments.length, MAX_SEGMENTS)));
+                for (int i = segments.length; i < grown.length; i++)
+                    grown[i] = new Segment();
+                this.segments.compareAndSet(segments, grown);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class Segment extends AtomicReferenceArray<Account> {
+        Segment() {
+            super(SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * Immutable account data structure.
+     */
+    private static class Account {
+        /**
+         * Amount of funds in this account.
+         */
+        final long amount;
+
+        /**
+         * The account that this one has replaced, while some snapshot may need it.
+         */
+        Account previous;
+
+        /**
+         * The value of the clock some time after this account was put into accounts, or 0 until it is stamped.
+         * @see #stamp(Account)
+         */
+        volatile long version;
+
+        Account(long amount) {
+            this.amount = amount;
+        }
+
+        /**
+         * Invokes operation that is pending on this account.
+         * This implementation returns false (no pending operation),
+         * other implementations return true.
+         */
+        boolean invokeOperation() {
+            return false;
+        }
+
+        /**
+         * Returns the amount of funds in this account as of now without invoking pending operation.
+         */
+        long currentAmount() {
+            return amount;
+        }
+    }
+
+    /**
+     * Account that was acquired as a part of in-progress operation that spans multiple accounts.
+     * Its amount is in {@link #oldAmount}, since the instances of a {@link TransferOp} are reused,
+     * and {@link Account#amount} is not used.
+     * @see #acquire(int, Op, AcquiredAccount)
+     */
+    private static class AcquiredAccount extends Account {
         final Op op;
 
+        /**
+         * Amount of funds in this account before op completes.
+         */
+        long oldAmount;
+
+        /**
+         * False when the account is not opened yet, it is released to {@link UnopenedAccount}.
+         */
+        boolean opened;
+
         /**
          * New amount of funds in this account when op completes.
          */
         long newAmount;
 
-        AcquiredAccount(long amount, Op op) {
-            super(amount);
+        AcquiredAccount(Op op) {
+            super(0);
             this.op = op;
+        }
+
+        AcquiredAccount(long amount, Op op, boolean opened) {
+            this(op);
+            reuse(amount, opened);
+        }
+
+        /**
+         * Prepares this instance to be put into accounts again, it is called only when no other thread uses it.
+         */
+        AcquiredAccount reuse(long amount, boolean opened) {
+            this.oldAmount = amount;
+            this.opened = opened;
             this.newAmount = amount;
+            this.version = 0;
+            return this;
         }
 
+        /**
+         * Returns true when this account is used like a released one, and op does not need it anymore.
+         */
+        boolean isReleased() {
+            return false;
+        }
+
+        /**
+         * Helps op unless it was reused, then this account is not in accounts anymore.
+         */
         @Override
         boolean invokeOperation() {
-            op.invokeOperation();
+            if (op.enter()) {
+                op.invokeOperation();
+                op.exit();
+            }
+            return true;
+        }
+
+        /**
+         * Account instances are never reused while they are in accounts, so an account can be acquired only
+         * by an operation that has not completed yet. The amount changes to the new one at the moment when
+         * op completes.
+         */
+        @Override
+        long currentAmount() {
+            return op.isCompleted() ? op.newAmount(this) : oldAmount;
+        }
+    }
+
+    /**
+     * Account that was acquired by an {@link ApplyOp}, it knows its index, so that a thread that runs into it
+     * does not need to invoke the whole operation.
+     */
+    private static class AppliedAccount extends AcquiredAccount {
+        final int index;
+
+        AppliedAccount(int index, long amount, ApplyOp op, boolean opened) {
+            super(amount, op, opened);
+            this.index = index;
+        }
+
+        /**
+         * Returns true when op has succeeded and this account is opened. Then it is not released, but stays
+         * in accounts with the new amount until it is replaced like any other account.
+         */
+        @Override
+        boolean isReleased() {
+            return opened && op.isCompleted() && ((ApplyOp) op).isSucceeded();
+        }
+
+        /**
+         * Aborts or helps op and releases this account, op is never reused, so it is not entered.
+         * Returns false when this account is {@link #isReleased() released}.
+         */
+        @Override
+        boolean invokeOperation() {
+            if (isReleased())
+                return false;
+            ((ApplyOp) op).help(index);
             return true;
         }
     }
 
+    /**
+     * Account that is not opened yet, but was acquired and released by an operation.
+     * Unlike null, its instances are never reused, so it does not suffer from ABA problem.
+     */
+    private static class UnopenedAccount extends Account {
+        UnopenedAccount() {
+            super(0);
+        }
+    }
+
+    /**
+     * Account which funds are split into cells, so that threads update their own cells in
+     * {@link #credit(int, long) credit} and {@link #debit(int, long) debit}. The amount of the account is
+     * {@link Account#amount} plus the amounts that the cells add to it.
+     *
+     * <p>A cell may add from -{@link #below} to {@link #above}, these bounds are shares of the amount and
+     * of {@link #MAX_AMOUNT} minus the amount, so a cell update that fits into them never underflows or overflows
+     * the account. Other operations read the amount by freezing all cells. A frozen cell never changes again
+     * while it has the tag of this account, so the sum of frozen cells is the amount of the account until it is
+     * replaced by another split account with this amount or with the result of an operation on it.
+     *
+     * <p>All split accounts at an index share the cells of the index, so that replacing an account does not
+     * allocate them again. Each one has the tag that follows the tag of the account it replaces, which has frozen
+     * all cells with its own tag. A cell with that previous tag adds nothing to this account, the first update
+     * of the cell puts the tag of this account to it. A thread that finds any other tag in a cell knows that this
+     * account was replaced. Tags repeat only after 2^30 accounts at the same index.
+     *
+     * <p>A transfer from the account {@link #reserve(int, long) reserves} a cell, see {@link CellTransferOp}.
+     * A thread that updates the reserved cell helps the transfer, and a thread that freezes it aborts the transfer,
+     * so that the frozen amount does not depend on other accounts.
+     */
+    private class SplitAccount extends Account {
+        final AtomicLongArray cells;
+
+        /**
+         * Transfers that have reserved cells, they are set before the cells are reserved and cleared after
+         * the cells are released.
+         */
+        final AtomicReferenceArray<CellTransferOp> ops;
+
+        /**
+         * The tag of this account in its cells.
+         */
+        final long tag;
+
+        /**
+         * The bounds of the amount that a cell adds to the account.
+         */
+        final long below;
+        final long above;
+
+        /**
+         * The amount of this account when all its cells are frozen, or -1 until then.
+         */
+        volatile long frozenAmount = -1;
+
+        /**
+         * Creates new account to put at index, all cells of the index must be frozen by the previous account.
+         */
+        SplitAccount(int index, long amount) {
+            super(amount);
+            cells = splitCells[index];
+            ops = splitOps[index];
+            tag = (tag(cells.get(0)) + 1) & TAG_MASK;
+            below = Math.min(CELL_OFFSET - 1, amount / SPLIT_CELLS);
+            above = Math.min(CELL_OFFSET - 1, (MAX_AMOUNT - amount) / SPLIT_CELLS);
+        }
+
+        /**
+         * Adds amount to the cell of the current thread. Returns false when the cell is frozen,
+         * this account was replaced, or the result does not fit into the bounds of the cell.
+         */
+        boolean update(long amount) {
+            int i = cellIndex();
+            while (true) {
+                long cell = cells.get(i);
+                long added;
+                if ((cell & RESERVED) != 0) {
+                    finishTransfer(i, cell, false);
+                    continue;
+                }
+                if (tag(cell) == tag && (cell & FROZEN) == 0)
+                    added = added(cell);
+                else if (tag(cell) == previousTag() && (cell & FROZEN) != 0)
+                    added = 0; // the cell is not used by this account yet
+                else
+                    return false;
+                long updated = added + amount;
+                if (updated < -below || updated > above)
+                    return false;
+                if (cells.compareAndSet(i, cell, cell(updated)))
+                    return true;
+            }
+        }
+
+        /**
+         * Reserves the cell of the current thread for a transfer of amount to toIndex and returns the transfer.
+         * Returns null when the cell does not have enough funds, it is frozen, or another transfer has not
+         * released it yet.
+         */
+        CellTransferOp reserve(int toIndex, long amount) {
+            int i = cellIndex();
+            while (true) {
+                long cell = cells.get(i);
+                long added;
+                if (tag(cell) == tag && (cell & (FROZEN | RESERVED)) == 0)
+                    added = added(cell);
+                else if (tag(cell) == previousTag() && (cell & (FROZEN | RESERVED)) == FROZEN)
+                    added = 0; // the cell is not used by this account yet
+                else
+                    return null;
+                if (added - amount < -below)
+                    return null;
+                long reserved = RESERVED | tag << TAG_SHIFT | (cells.incrementAndGet(i + 1) & CELL_MASK);
+                CellTransferOp op = new CellTransferOp(this, i, added, reserved, toIndex, amount);
+                if (!ops.compareAndSet(i, null, op))
+                    return null;
+                if (cells.compareAndSet(i, cell, reserved))
+                    return op;
+                ops.set(i, null); // nobody else has seen op
+            }
+        }
+
+        /**
+         * Releases the cell reserved by a completed transfer, taking its amount from the cell if it has succeeded.
+         */
+        void release(CellTransferOp op) {
+            cells.compareAndSet(op.cell, op.reserved, cell(op.isSucceeded() ? op.added - op.amount : op.added));
+            ops.compareAndSet(op.cell, op, null); // the cell is released by now
+        }
+
+        /**
+         * Helps or aborts the transfer that has reserved the cell at i, unless the cell was released
+         * since it was read.
+         */
+        private void finishTransfer(int i, long cell, boolean abort) {
+            CellTransferOp op = ops.get(i);
+            if (op == null || op.reserved != cell)
+                return;
+            helps.add(1);
+            if (abort)
+                op.cancel();
+            else
+                op.invokeOperation();
+        }
+
+        /**
+         * Freezes all cells and returns the amount of this account.
+         */
+        long freeze() {
+            long frozen = frozenAmount;
+            if (frozen >= 0)
+                return frozen;
+            long sum = amount;
+            for (int i = 0; i < SPLIT_CELLS * CELL_STRIDE; i += CELL_STRIDE) {
+                while (true) {
+                    long cell = cells.get(i);
+                    if ((cell & RESERVED) != 0) {
+                        finishTransfer(i, cell, true);
+                    } else if (tag(cell) == tag) {
+                        if ((cell & FROZEN) != 0 || cells.compareAndSet(i, cell, cell | FROZEN)) {
+                            sum += added(cell);
+                            break;
+                        }
+                    } else if (tag(cell) == previousTag() && (cell & FROZEN) != 0) {
+                        if (cells.compareAndSet(i, cell, cell(0) | FROZEN))
+                            break;
+                    } else {
+                        // The next account uses the cells, so this one was frozen before it was replaced
+                        return frozenAmount;
+                    }
+                }
+            }
+            frozenAmount = sum;
+            return sum;
+        }
+
+        @Override
+        long currentAmount() {
+            return freeze();
+        }
+
+        private long previousTag() {
+            return (tag - 1) & TAG_MASK;
+        }
+
+        private int cellIndex() {
+            return (int) (Thread.currentThread().getId() % SPLIT_CELLS) * CELL_STRIDE;
+        }
+
+        private long cell(long added) {
+            return tag << TAG_SHIFT | (added + CELL_OFFSET);
+        }
+    }
+
+    private static long tag(long cell) {
+        return (cell >>> TAG_SHIFT) & TAG_MASK;
+    }
+
+    private static long added(long cell) {
+        return (cell & CELL_MASK) - CELL_OFFSET;
+    }
+
     /**
      * Abstract operation that acts on multiple accounts.
      */
     private abstract class Op {
         /**
-         * True when operation has completed.
+         * The sequence number of the current use of this operation, {@link #IDLE}, {@link #COMPLETED} and
+         * {@link #ABORTED} flags, and the number of threads that help it.
+         *
+         * <p>Other threads find an operation in the acquired accounts, so they may hold a reference to it after it
+         * has completed. A thread enters the operation before helping it and exits afterwards, and the owner of a
+         * {@link TransferOp} reuses it only if it becomes idle while no thread helps it. Thus no thread sees
+         * the fields of an operation change while it helps, and threads that find an idle operation know that
+         * its accounts were released. The sequence number grows with each use, so the state never repeats.
          */
-        volatile boolean completed;
+        volatile long state;
+
+        /**
+         * The value of the clock some time after this operation has completed, or 0 until it is stamped.
+         * @see #stamp(Op)
+         */
+        volatile long version;
+
+        Op() {
+            descriptors.add(1);
+        }
 
         abstract void invokeOperation();
+
+        /**
+         * Returns true when operation has completed.
+         */
+        boolean isCompleted() {
+            return (state & COMPLETED) != 0;
+        }
+
+        /**
+         * Marks operation as completed, it is called after its result is written.
+         */
+        void complete() {
+            long state;
+            do {
+                state = this.state;
+            } while ((state & COMPLETED) == 0 && !OP_STATE.compareAndSet(this, state, state | COMPLETED));
+        }
+
+        /**
+         * Marks operation as completed and aborted unless it has completed already, then its accounts are
+         * released with their old amounts. Returns false when it has completed already.
+         */
+        boolean abort() {
+            long state;
+            do {
+                state = this.state;
+                if ((state & COMPLETED) != 0)
+                    return false;
+            } while (!OP_STATE.compareAndSet(this, state, state | COMPLETED | ABORTED));
+            return true;
+        }
+
+        boolean isAborted() {
+            return (state & ABORTED) != 0;
+        }
+
+        /**
+         * Returns the amount that the account gets when it is released after operation has completed.
+         */
+        long newAmount(AcquiredAccount account) {
+            return account.newAmount;
+        }
+
+        /**
+         * Returns new account acquired for this operation at index.
+         */
+        AcquiredAccount newAcquiredAccount(int index, long amount, boolean opened) {
+            return new AcquiredAccount(amount, this, opened);
+        }
+
+        /**
+         * Registers the current thread as a helper, so that operation is not reused until {@link #exit()}.
+         * Returns false when operation is idle, thus there is nothing to help.
+         */
+        boolean enter() {
+            while (true) {
+                long state = this.state;
+                if ((state & IDLE) != 0)
+                    return false;
+                if (OP_STATE.compareAndSet(this, state, state + HELPER))
+                    return true;
+            }
+        }
+
+        void exit() {
+            OP_STATE.getAndAdd(this, -HELPER);
+        }
+
+        /**
+         * Makes completed operation idle if no thread helps it. Returns false when it cannot be reused.
+         */
+        boolean retire() {
+            long state = this.state;
+            return (state & HELPERS) == 0 && OP_STATE.compareAndSet(this, state, state | IDLE);
+        }
+
+        /**
+         * Starts the next use of idle operation, after its fields are set for that use.
+         */
+        void activate() {
+            version = 0;
+            state = (state | (SEQUENCE - 1)) + 1; // the volatile write publishes the fields
+        }
     }
 
     /**
@@ -279,7 +1507,7 @@ public class BankImpl implements Bank {
     private class TotalAmountOp extends Op {
         /**
          * The result of getTotalAmount operation is stored here before setting
-         * {@link #completed} to true.
+         * completing.
          */
         long sum;
 
@@ -287,21 +1515,30 @@ public class BankImpl implements Bank {
         void invokeOperation() {
             long sum = 0;
             int i;
-            int n = accounts.length();
-            for (i = 0; i < n; i++) {
-                AcquiredAccount account = acquire(i, this);
+            boolean all = false;
+            /*
+             * Accounts are acquired up to the first account that is not opened yet. Accounts are opened
+             * in the order of indices, so when it is acquired, no more accounts can be opened.
+             */
+            for (i = 0; ; i++) {
+                AcquiredAccount account = acquire(i, this, null);
                 if (account == null)
                     break;
-                sum += account.amount;
+                if (!account.opened) {
+                    all = true;
+                    i++;
+                    break;
+                }
+                sum += account.oldAmount;
             }
-            if (i == n) {
+            if (all) {
                 /*
-                 * If i == n, then all acquired accounts were not null and full sum was calculated.
+                 * If all is true, then all acquired accounts were not null and full sum was calculated.
                  * this.sum = sum assignment below has a benign data race. Multiple threads might to this assignment
                  * concurrently, however, they are all guaranteed to be assigning the same value.
                  */
                 this.sum = sum;
-                this.completed = true; // volatile write to completed field _after_ the sum was written
+                complete(); // volatile write to state field _after_ the sum was written
             }
             /*
              * As performance optimization, only acquired accounts are released. There is no harm in calling
@@ -314,64 +1551,494 @@ public class BankImpl implements Bank {
     }
 
     /**
-     * Descriptor for {@link #transfer(int, int, long) transfer(...)} operation.
+     * Descriptor for {@link #transact(int[], long[]) transact(...)} and
+     * {@link #transfer(int, int, long) transfer(...)} operations.
      */
-    private class TransferOp extends Op {
-        final int fromIndex;
-        final int toIndex;
-        final long amount;
+    private class TransactionOp extends Op {
+        final int[] indices;
+        final long[] amounts;
+
+        /**
+         * Positions of {@link #indices} in the order of increasing account indices.
+         * All operations acquire accounts in this order, so they never wait for each other in a cycle.
+         */
+        final int[] order;
 
         String errorMessage;
 
-        TransferOp(int fromIndex, int toIndex, long amount) {
-            this.fromIndex = fromIndex;
-            this.toIndex = toIndex;
-            this.amount = amount;
+        TransactionOp(int[] indices, long[] amounts) {
+            this(indices, amounts, IndexOrder.of(indices, numberOfAccounts.get()));
+        }
+
+        TransactionOp(int[] indices, long[] amounts, int[] order) {
+            this.indices = indices;
+            this.amounts = amounts;
+            this.order = order;
         }
 
         @Override
         void invokeOperation() {
+            invokeOperation(new AcquiredAccount[order.length], null);
+        }
+
+        /**
+         * Invokes operation with an array for the acquired accounts and optional wrappers to acquire them with,
+         * see {@link #acquire(int, Op, AcquiredAccount)}.
+         */
+        void invokeOperation(AcquiredAccount[] acquired, AcquiredAccount[] wrappers) {
             /*
-             * In the implementation of this operation only two accounts (with fromIndex and toIndex) needs
+             * In the implementation of this operation only the accounts with the given indices need
              * to be acquired. Unlike TotalAmountOp, this operation has its own result in errorMessage string
-             * and it must also update AcquiredAccount.newAmount fields before setting completed to true
+             * and it must also update AcquiredAccount.newAmount fields before completing
              * and invoking release on those acquired accounts.
-             *
-             * Basically, implementation of this method must perform the logic of the following code "atomically":
              */
-            AcquiredAccount from;
-            AcquiredAccount to;
-            if (fromIndex < toIndex) {
-                from = acquire(fromIndex, this);
-                to = acquire(toIndex, this);
-            } else {
-                to = acquire(toIndex, this);
-                from = acquire(fromIndex, this);
+            int n = order.length;
+            int i;
+            for (i = 0; i < n; i++) {
+                int k = order[i];
+                acquired[k] = acquire(indices[k], this, wrappers != null ? wrappers[k] : null);
+                if (acquired[k] == null)
+                    break;
             }
 
-            if (from == null || to == null) {
-                release(fromIndex, this); // Only one of them may be acquired
-                release(toIndex, this);
-                return;
+            if (i == n) {
+                String errorMessage = null;
+                for (int k = 0; k < n && errorMessage == null; k++) {
+                    long newAmount = acquired[k].oldAmount + amounts[k];
+                    if (newAmount < 0)
+                        errorMessage = "Underflow";
+                    else if (newAmount > MAX_AMOUNT)
+                        errorMessage = "Overflow";
+                }
+                if (errorMessage == null) {
+                    for (int k = 0; k < n; k++) {
+                        acquired[k].newAmount = acquired[k].oldAmount + amounts[k];
+                    }
+                }
+                this.errorMessage = errorMessage;
+                complete();
             }
 
-            if (amount > from.amount)
-                errorMessage = "Underflow";
-            else if (to.amount + amount > MAX_AMOUNT)
-                errorMessage = "Overflow";
-            else {
-                from.newAmount = from.amount - amount;
-                to.newAmount = to.amount + amount;
+            // Only some of them may be acquired if the operation was completed by another thread
+            for (i = n; --i >= 0;) {
+                release(indices[order[i]], this);
             }
-            this.completed = true;
+        }
+    }
+
+    /**
+     * Descriptor for {@link #applyToAll(LongUnaryOperator) applyToAll(...)} and
+     * {@link #applyToRange(int, int, LongUnaryOperator) applyToRange(...)} operations.
+     *
+     * <p>Unless it is ordered, it acquires ranges of accounts in parallel, each range in order. It may hold
+     * an account while it waits for an account with a lower index, so an operation that holds the latter
+     * and waits for the former would never complete if they helped each other. Thus a thread that runs into
+     * its account aborts it instead, and it releases all accounts and is invoked again. An ordered one
+     * acquires accounts in order like other operations, and a thread that runs into its account helps it
+     * by acquiring the rest of accounts from that one.
+     *
+     * <p>The result of the function is only checked while the accounts are acquired, the new amount is
+     * computed again when an account is released or read. The operation succeeds only when all accounts are
+     * acquired, so a thread that is late to acquire an account for it fails, since the account was replaced
+     * since it was read. Thus the function is applied only to the amounts that the operation has acquired.
+     *
+     * <p>When the operation succeeds, its opened accounts are not released, so that it takes a single new
+     * account per account. They are {@link AppliedAccount#isReleased() released} as they are, and other
+     * operations replace them like any other account. Otherwise all of its accounts are released.
+     */
+    private class ApplyOp extends Op {
+        final int fromIndex;
+
+        /**
+         * The account index after the last one, it is the number of accounts when the operation was created
+         * if {@link #all} is true.
+         */
+        final int toIndex;
+
+        /**
+         * True when the accounts from toIndex up to the first one that is not opened yet are acquired too,
+         * the same way as {@link TotalAmountOp} does.
+         */
+        final boolean all;
+
+        final LongUnaryOperator f;
+
+        /**
+         * True when the accounts are acquired in order and other threads help the operation instead of
+         * aborting it.
+         */
+        final boolean ordered;
+
+        String errorMessage;
 
-            if (fromIndex < toIndex) {
-                release(toIndex, this);
-                release(fromIndex, this);
+        ApplyOp(int fromIndex, int toIndex, boolean all, LongUnaryOperator f, boolean ordered) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.all = all;
+            this.f = f;
+            this.ordered = ordered;
+        }
+
+        @Override
+        void invokeOperation() {
+            if (ordered) {
+                acquireInOrder(fromIndex);
             } else {
-                release(fromIndex, this);
-                release(toIndex, this);
+                String errorMessage = ForkJoinPool.commonPool().invoke(
+                    new ApplyTask(ApplyTask.ACQUIRE, this, fromIndex, toIndex));
+                if (errorMessage != null)
+                    this.errorMessage = errorMessage;
+                complete(); // unless it was aborted
+            }
+            stamp(this); // before any account is read as released, like in release
+            // Only some of them may be acquired if the operation was aborted or failed
+            if (!isSucceeded())
+                ForkJoinPool.commonPool().invoke(new ApplyTask(ApplyTask.RELEASE, this, fromIndex, toIndex));
+            // Accounts that were not opened are released, and opened ones after toIndex are released too
+            for (int i = toIndex; all && isAcquiredBy(i, this); i++) {
+                release(i, this);
+            }
+        }
+
+        /**
+         * Returns true when the operation has changed the accounts, it is called after it has completed.
+         */
+        boolean isSucceeded() {
+            return !isAborted() && errorMessage == null;
+        }
+
+        /**
+         * Invoked by a thread that runs into the account at index, it aborts the operation or helps it
+         * if it is ordered, and then releases the account.
+         */
+        void help(int index) {
+            if (ordered)
+                acquireInOrder(index);
+            else
+                abort();
+            release(index, this);
+        }
+
+        /**
+         * Acquires accounts in order from index up to the end and completes the operation.
+         */
+        void acquireInOrder(int index) {
+            String errorMessage = acquireRange(index, toIndex, all);
+            if (errorMessage != null)
+                this.errorMessage = errorMessage; // all threads find the same account first
+            complete();
+        }
+
+        /**
+         * Acquires accounts in order from lo to hi, and then up to the first one that is not opened yet
+         * if extend is true. Returns the error of the first account with an invalid result or null when
+         * all of them are acquired or the operation has completed.
+         */
+        String acquireRange(int lo, int hi, boolean extend) {
+            for (int i = lo; i < hi || extend; i++) {
+                AcquiredAccount account = acquire(i, this, null);
+                if (account == null)
+                    return null;
+                if (!account.opened)
+                    return null; // no more accounts can be opened until it is released, like in TotalAmountOp
+                long newAmount = f.applyAsLong(account.oldAmount);
+                if (newAmount < 0)
+                    return "Underflow";
+                if (newAmount > MAX_AMOUNT)
+                    return "Overflow";
             }
+            return null;
+        }
+
+        @Override
+        long newAmount(AcquiredAccount account) {
+            return isAborted() || errorMessage != null ? account.oldAmount : f.applyAsLong(account.oldAmount);
+        }
+
+        @Override
+        AcquiredAccount newAcquiredAccount(int index, long amount, boolean opened) {
+            return new AppliedAccount(index, amount, this, opened);
+        }
+    }
+
+    private boolean isAcquiredBy(int index, Op op) {
+        Account account = accounts.get(index);
+        return account instanceof AcquiredAccount && ((AcquiredAccount) account).op == op;
+    }
+
+    /**
+     * Task that acquires or releases accounts of an {@link ApplyOp} in a range of indices,
+     * splitting the range in halves until it is shorter than {@link #APPLY_CHUNK}.
+     */
+    @SuppressWarnings("serial")
+    private class ApplyTask extends RecursiveTask<String> {
+        /**
+         * Modes of the task: acquire returns the error of the first account with an invalid result or null,
+         * and release releases the accounts.
+         */
+        static final int ACQUIRE = 0;
+        static final int RELEASE = 1;
+
+        final int mode;
+        final ApplyOp op;
+        final int fromIndex;
+        final int toIndex;
+
+        ApplyTask(int mode, ApplyOp op, int fromIndex, int toIndex) {
+            this.mode = mode;
+            this.op = op;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        protected String compute() {
+            if (toIndex - fromIndex > APPLY_CHUNK) {
+                int middle = (fromIndex + toIndex) >>> 1;
+                ApplyTask right = new ApplyTask(mode, op, middle, toIndex);
+                right.fork();
+                String left = new ApplyTask(mode, op, fromIndex, middle).compute();
+                String result = right.join();
+                return left != null ? left : result;
+            }
+            if (mode == ACQUIRE)
+                return op.acquireRange(fromIndex, toIndex, op.all && toIndex == op.toIndex);
+            for (int i = fromIndex; i < toIndex; i++) {
+                release(i, op);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Descriptor for {@link #transfer(int, int, long) transfer(...)} that a thread reuses for its transfers.
+     * It is idle between transfers, see {@link Op#state}.
+     */
+    private class TransferOp extends TransactionOp {
+        /**
+         * Accounts acquired by the owner thread, other threads use their own arrays.
+         */
+        final AcquiredAccount[] acquired = new AcquiredAccount[2];
+
+        /**
+         * Acquired accounts that the owner thread puts into accounts.
+         */
+        final AcquiredAccount[] wrappers = {new AcquiredAccount(this), new AcquiredAccount(this)};
+
+        TransferOp() {
+            super(new int[2], new long[2], new int[2]);
+            state = IDLE;
+        }
+
+        /**
+         * Sets up idle operation for the next transfer and activates it.
+         * @throws IndexOutOfBoundsException when some index is invalid.
+         */
+        void reuse(int fromIndex, int toIndex, long amount) {
+            checkIndex(fromIndex);
+            checkIndex(toIndex);
+            indices[0] = fromIndex;
+            indices[1] = toIndex;
+            amounts[0] = -amount;
+            amounts[1] = amount;
+            order[0] = fromIndex < toIndex ? 0 : 1;
+            order[1] = 1 - order[0];
+            errorMessage = null;
+            activate();
+        }
+    }
+
+    /**
+     * Descriptor for {@link #transfer(int, int, long) transfer(...)} from a cell of a split account.
+     *
+     * <p>The cell is {@link SplitAccount#reserve(int, long) reserved} before the operation is invoked, so
+     * it holds enough funds until the operation completes. The operation acquires only the account it transfers
+     * to, and its result is decided by that account. After it completes, the cell is released with the amount
+     * taken if it has succeeded, so the split account is neither read as a whole nor replaced.
+     *
+     * <p>The operation holds the cell before it acquires the other account, whatever their indices are.
+     * Thus a thread that freezes the split account, which may hold it in another operation, aborts this one
+     * instead of helping it, and then the amount is taken from the whole account.
+     */
+    private class CellTransferOp extends Op {
+        final SplitAccount from;
+
+        /**
+         * The position of the reserved cell in {@link SplitAccount#cells}.
+         */
+        final int cell;
+
+        /**
+         * The amount that the cell adds to the account before the operation.
+         */
+        final long added;
+
+        /**
+         * The value of the reserved cell.
+         */
+        final long reserved;
+
+        final int toIndex;
+        final long amount;
+
+        String errorMessage;
+
+        CellTransferOp(SplitAccount from, int cell, long added, long reserved, int toIndex, long amount) {
+            this.from = from;
+            this.cell = cell;
+            this.added = added;
+            this.reserved = reserved;
+            this.toIndex = toIndex;
+            this.amount = amount;
+        }
+
+        @Override
+        void invokeOperation() {
+            AcquiredAccount account = acquire(toIndex, this, null);
+            if (account != null) {
+                // The cell has enough funds, all threads find the same acquired account
+                if (account.oldAmount + amount > MAX_AMOUNT)
+                    errorMessage = "Overflow";
+                complete();
+            }
+            release();
+        }
+
+        /**
+         * Aborts the operation unless it has completed, and releases its account and cell.
+         */
+        void cancel() {
+            abort();
+            release();
+        }
+
+        private void release() {
+            BankImpl.this.release(toIndex, this);
+            from.release(this);
+        }
+
+        /**
+         * Returns true when the operation has transferred the amount, it is called after it has completed.
+         */
+        boolean isSucceeded() {
+            return !isAborted() && errorMessage == null;
+        }
+
+        @Override
+        long newAmount(AcquiredAccount account) {
+            return isSucceeded() ? account.oldAmount + amount : account.oldAmount;
+        }
+    }
+
+    /**
+     * Snapshot that reads the accounts that were current at its version from the chains of replaced accounts.
+     */
+    private class VersionedSnapshot implements BankSnapshot, Comparable<VersionedSnapshot> {
+        /**
+         * The value of the clock before this snapshot was registered, it is not greater than its version.
+         */
+        final long oldest;
+
+        /**
+         * Unique identifier that orders snapshots with the same {@link #oldest} value.
+         */
+        final long id;
+
+        /**
+         * The version and the number of accounts, they are set before the snapshot is returned.
+         */
+        long version;
+        int n;
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        VersionedSnapshot(long oldest, long id) {
+            this.oldest = oldest;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(VersionedSnapshot other) {
+            int result = Long.compare(oldest, other.oldest);
+            return result != 0 ? result : Long.compare(id, other.id);
+        }
+
+        @Override
+        public int getNumberOfAccounts() {
+            return n;
+        }
+
+        @Override
+        public long getAmount(int index) {
+            if (index < 0 || index >= n)
+                throw new IndexOutOfBoundsException("Invalid index: " + index);
+            long amount = amountAt(index);
+            checkOpen();
+            return amount;
+        }
+
+        @Override
+        public long getTotalAmount() {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += amountAt(i);
+            }
+            checkOpen();
+            return sum;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                openSnapshots.remove(this);
+                snapshotState.decrementAndGet();
+            }
+        }
+
+        /**
+         * Returns the amount of account at index as of the version of this snapshot.
+         * Versions decrease along the chain, so the first account with a version up to the snapshot
+         * version is the one that was current at it.
+         *
+         * <p>An account that is not stamped yet is stamped first, so that it gets a version after this snapshot
+         * unless a concurrent stamp has read the clock before the tick, and every read decides the same way.
+         * A split account that is not stamped yet was not current at the tick, since they are all stamped by
+         * {@link #snapshot()}, so it is skipped without freezing it. An acquired account or an operation that
+         * is not stamped yet gets a version after this snapshot when it is stamped, so it is skipped without
+         * stamping it. Thus reading writes nothing to acquired accounts and operations, which may be reused when
+         * this snapshot is closed concurrently.
+         */
+        private long amountAt(int index) {
+            for (Account account = accounts.get(index); account != null; account = account.previous) {
+                long accountVersion = account.version;
+                if (accountVersion == 0 && !(account instanceof AcquiredAccount)
+                        && !(account instanceof SplitAccount)) {
+                    stamp(account);
+                    accountVersion = account.version;
+                }
+                if (accountVersion == 0 || accountVersion > version)
+                    continue;
+                if (account instanceof SplitAccount)
+                    return ((SplitAccount) account).freeze();
+                if (account instanceof AcquiredAccount) {
+                    AcquiredAccount acquiredAccount = (AcquiredAccount) account;
+                    Op op = acquiredAccount.op;
+                    long opVersion = op.isCompleted() ? op.version : 0;
+                    return opVersion == 0 || opVersion > version ?
+                        acquiredAccount.oldAmount : op.newAmount(acquiredAccount);
+                }
+                return account.amount;
+            }
+            return 0; // the account was not opened yet
+        }
+
+        /**
+         * Throws when this snapshot is closed. It is checked after reading, since the accounts that
+         * the snapshot needs may be dropped as soon as it is closed.
+         */
+        private void checkOpen() {
+            if (closed.get())
+                throw new IllegalStateException("Snapshot is closed");
         }
     }
 }
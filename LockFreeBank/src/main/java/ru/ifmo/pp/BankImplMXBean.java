@@ -0,0 +1,31 @@
+package ru.ifmo.pp;
+
+/**
+ * Management interface of {@link BankImpl} with its contention counters.
+ * Counters are summed over all threads and are not reset.
+ *
+ * @author Курбонзода
+ */
+public interface BankImplMXBean {
+    /**
+     * Returns the number of failed compareAndSet of an account while acquiring it for an operation.
+     */
+    public long getAcquireRetries();
+
+    /**
+     * Returns the number of failed compareAndSet of an account in single-account operations,
+     * such as {@link Bank#deposit(int, long) deposit} and {@link Bank#withdraw(int, long) withdraw}.
+     */
+    public long getUpdateRetries();
+
+    /**
+     * Returns the number of times a thread has invoked an operation that holds an account it needs,
+     * either to complete the operation or to release the account.
+     */
+    public long getHelps();
+
+    /**
+     * Returns the number of allocated operation descriptors.
+     */
+    public long getDescriptors();
+}
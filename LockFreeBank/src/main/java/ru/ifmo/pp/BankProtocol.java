@@ -0,0 +1,100 @@
+package ru.ifmo.pp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of {@link BankServer} and {@link BankClient}.
+ *
+ * <p>Both sides send frames: an int length of the rest of the frame, an int number of items, and the items.
+ * An item of a request frame is a byte operation code followed by its arguments: ints for account indices and
+ * longs for amounts, a transaction has an int number of legs followed by an index and an amount for each leg.
+ * The response frame has a response for every request in the same order: a byte status followed by the result,
+ * that is a long for operations that return an amount, an int for {@link #GET_NUMBER_OF_ACCOUNTS}, an int number
+ * of accounts followed by all amounts for {@link #SNAPSHOT}, and nothing for others. A failed request has
+ * the status of its exception followed by a short length and UTF-8 bytes of the message.
+ *
+ * <p>A client may send many frames without waiting for responses, the server processes frames of a connection
+ * in order.
+ *
+ * @author Курбонзода
+ */
+final class BankProtocol {
+    static final byte GET_NUMBER_OF_ACCOUNTS = 1;
+    static final byte GET_AMOUNT = 2;
+    static final byte GET_TOTAL_AMOUNT = 3;
+    static final byte SNAPSHOT = 4;
+    static final byte DEPOSIT = 5;
+    static final byte WITHDRAW = 6;
+    static final byte CREDIT = 7;
+    static final byte DEBIT = 8;
+    static final byte TRANSFER = 9;
+    static final byte TRANSACT = 10;
+
+    static final byte OK = 0;
+    static final byte ILLEGAL_ARGUMENT = 1;
+    static final byte ILLEGAL_STATE = 2;
+    static final byte INDEX_OUT_OF_BOUNDS = 3;
+
+    /**
+     * The size of a frame header: its length and the number of items.
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The maximal length of a frame, a connection that sends a longer one is closed.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private BankProtocol() {}
+
+    /**
+     * Returns the buffer with at least the specified number of bytes remaining, it is a copy of
+     * the specified buffer when it has less.
+     */
+    static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes)
+            return buffer;
+        ByteBuffer copy = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+        buffer.flip();
+        copy.put(buffer);
+        return copy;
+    }
+
+    /**
+     * Puts the status and the message of a failed request.
+     */
+    static ByteBuffer putError(ByteBuffer buffer, RuntimeException e) {
+        byte status;
+        if (e instanceof IllegalArgumentException)
+            status = ILLEGAL_ARGUMENT;
+        else if (e instanceof IndexOutOfBoundsException)
+            status = INDEX_OUT_OF_BOUNDS;
+        else
+            status = ILLEGAL_STATE;
+        byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(message.length, Short.MAX_VALUE);
+        buffer = ensureRemaining(buffer, 3 + length);
+        buffer.put(status);
+        buffer.putShort((short) length);
+        buffer.put(message, 0, length);
+        return buffer;
+    }
+
+    /**
+     * Reads the message of a failed request with the specified status and returns its exception.
+     */
+    static RuntimeException getError(ByteBuffer buffer, byte status) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        String message = new String(bytes, StandardCharsets.UTF_8);
+        switch (status) {
+            case ILLEGAL_ARGUMENT:
+                return new IllegalArgumentException(message);
+            case INDEX_OUT_OF_BOUNDS:
+                return new IndexOutOfBoundsException(message);
+            default:
+                return new IllegalStateException(message);
+        }
+    }
+}
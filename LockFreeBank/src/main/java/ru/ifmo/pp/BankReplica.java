@@ -0,0 +1,364 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup of a {@link ReplicatedBank} that applies its records to a local bank. It listens on a port, and
+ * the primary connects to it. Clients may read the local bank, but all changes come from the primary.
+ *
+ * <p>Connections are handled one at a time in the order of epochs: a primary with an earlier epoch than any seen
+ * is rejected, and a primary with a later epoch replaces the current one. When the primary fails, that is its
+ * connection is closed or there are no batches or heartbeats for {@link #FAILURE_TIMEOUT_MILLIS}, this replica
+ * can be {@link #promote(ReplicatedBank.Mode, List) promoted} to a primary of the next epoch. Replicas choose the
+ * one to promote with {@link #awaitFailover(long, ReplicatedBank.Mode, List) awaitFailover} and distinct delays,
+ * for example in the order of processes in <code>process.cfg</code>, see {@link #readProcesses(Path)}.
+ *
+ * @author Курбонзода
+ */
+public class BankReplica implements Closeable {
+    static final int FAILURE_TIMEOUT_MILLIS = 4 * ReplicatedBank.HEARTBEAT_MILLIS;
+
+    private final Bank bank;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+
+    /**
+     * The latest epoch of a primary that was connected, 0 when there were none. Guarded by this.
+     */
+    private long epoch;
+
+    /**
+     * The log sequence number of the last applied record. Guarded by this.
+     */
+    private long appliedLsn;
+
+    /**
+     * Connection to the current primary, null when it has failed. Guarded by this.
+     */
+    private Socket primary;
+
+    /**
+     * True when this replica is promoted or closed, so that it does not accept primaries. Guarded by this.
+     */
+    private boolean stopped;
+
+    /**
+     * Creates new replica that listens on the specified port.
+     * @param bank the bank with all amounts equal to 0, changes from the primary go to this bank.
+     * @param port the port to listen on, or 0 for any free port.
+     */
+    public BankReplica(Bank bank, int port) throws IOException {
+        this.bank = bank;
+        serverSocket = new ServerSocket(port);
+        acceptor = new Thread("BankReplica-acceptor-" + serverSocket.getLocalPort()) {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Reads addresses of processes from a file in the format of <code>process.cfg</code>, where each line is
+     * <code>process.&lt;id&gt;=&lt;ip&gt;:&lt;port&gt;</code>.
+     * @return addresses by process ids in the order of the file.
+     * @throws IllegalArgumentException when a line is not in this format.
+     */
+    public static Map<String, InetSocketAddress> readProcesses(Path config) throws IOException {
+        Map<String, InetSocketAddress> processes = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(config, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int eq = line.indexOf('=');
+                int colon = line.lastIndexOf(':');
+                if (!line.startsWith("process.") || eq < 0 || colon < eq)
+                    throw new IllegalArgumentException("Invalid process: " + line);
+                try {
+                    processes.put(line.substring("process.".length(), eq).trim(), new InetSocketAddress(
+                        line.substring(eq + 1, colon).trim(), Integer.parseInt(line.substring(colon + 1).trim())));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid process: " + line);
+                }
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Returns the local bank, it has all changes up to {@link #getAppliedLsn()}.
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * Returns the port this replica listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the latest epoch of a primary that was connected, 0 when there were none.
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the log sequence number of the last applied record.
+     */
+    public synchronized long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Returns true when a primary is connected and has not failed.
+     */
+    public synchronized boolean hasPrimary() {
+        return primary != null;
+    }
+
+    /**
+     * Waits until a primary has been connected and has failed, then waits for the specified delay, and if no
+     * other primary connects meanwhile, then promotes this replica. Otherwise it waits for the failure of
+     * the new primary and so on.
+     * @param delayMillis how long to wait for another replica to take over, it must differ between replicas.
+     * @return the new primary.
+     * @throws IllegalStateException when this replica is promoted or closed.
+     */
+    public ReplicatedBank awaitFailover(long delayMillis, ReplicatedBank.Mode mode,
+                                        List<InetSocketAddress> backups) throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                while (!stopped && (epoch == 0 || primary != null)) {
+                    wait();
+                }
+                if (stopped)
+                    throw new IllegalStateException("Stopped");
+                long deadline = System.currentTimeMillis() + delayMillis;
+                long remaining;
+                while (!stopped && primary == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    wait(remaining);
+                }
+                if (primary == null)
+                    break;
+            }
+        }
+        // Connecting to backups takes a while, so it is done without the lock
+        return promote(mode, backups);
+    }
+
+    /**
+     * Stops accepting primaries and makes a primary of the next epoch over the local bank,
+     * it connects to the specified backups and sends them snapshots.
+     * @throws IllegalStateException when this replica is promoted or closed.
+     */
+    public ReplicatedBank promote(ReplicatedBank.Mode mode, List<InetSocketAddress> backups) {
+        long epoch;
+        long lsn;
+        synchronized (this) {
+            if (stopped)
+                throw new IllegalStateException("Stopped");
+            stop();
+            epoch = this.epoch + 1;
+            lsn = appliedLsn;
+        }
+        return new ReplicatedBank(bank, mode, epoch, lsn, backups);
+    }
+
+    /**
+     * Stops accepting primaries and disconnects the current one.
+     */
+    @Override
+    public synchronized void close() {
+        if (!stopped)
+            stop();
+    }
+
+    /**
+     * Closes the server socket and the connection to the primary, must be called while holding the lock.
+     */
+    private void stop() {
+        stopped = true;
+        closeQuietly(serverSocket);
+        if (primary != null) {
+            closeQuietly(primary);
+            primary = null;
+        }
+        notifyAll();
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return; // closed by stop
+            }
+            Thread handler = new Thread("BankReplica-" + getPort() + "-" + socket.getRemoteSocketAddress()) {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // the primary has failed
+                    } finally {
+                        disconnect(socket);
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Introduces a primary and applies its frames until the connection is closed or replaced.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(FAILURE_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (in.readInt() != ReplicatedBank.MAGIC)
+            throw new IOException("Not a primary");
+        long primaryEpoch = in.readLong();
+        synchronized (this) {
+            if (stopped || primaryEpoch < epoch) {
+                out.writeLong(epoch);
+                out.flush();
+                return;
+            }
+            epoch = primaryEpoch;
+            if (primary != null)
+                closeQuietly(primary);
+            primary = socket;
+            out.writeLong(epoch);
+            out.flush();
+            notifyAll();
+        }
+        byte[] payload = new byte[0];
+        while (true) {
+            byte type = in.readByte();
+            long lsn = in.readLong();
+            int length = in.readInt();
+            if (length < 0)
+                throw new IOException("Invalid length: " + length);
+            if (payload.length < length)
+                payload = new byte[Math.max(length, 2 * payload.length)];
+            in.readFully(payload, 0, length);
+            synchronized (this) {
+                if (primary != socket)
+                    return; // replaced by a primary of a later epoch
+                if (type == ReplicatedBank.SNAPSHOT) {
+                    applySnapshot(new DataInputStream(new ByteArrayInputStream(payload, 0, length)),
+                        length / 8);
+                } else if (type == ReplicatedBank.BATCH) {
+                    applyBatch(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                } else {
+                    throw new IOException("Invalid frame: " + type);
+                }
+                appliedLsn = lsn;
+            }
+            out.writeLong(lsn);
+            out.flush();
+        }
+    }
+
+    /**
+     * Changes all amounts of the local bank to those in the snapshot.
+     */
+    private void applySnapshot(DataInputStream data, int n) throws IOException {
+        if (n != bank.getNumberOfAccounts())
+            throw new IOException("Snapshot of " + n + " accounts instead of " + bank.getNumberOfAccounts());
+        for (int i = 0; i < n; i++) {
+            long delta = data.readLong() - bank.getAmount(i);
+            if (delta > 0)
+                bank.deposit(i, delta);
+            else if (delta < 0)
+                bank.withdraw(i, -delta);
+        }
+    }
+
+    /**
+     * Applies records of the batch to the local bank, all of them atomically. Records in a batch may be in
+     * a different order than their operations on the primary, so only their sum is applied.
+     */
+    private void applyBatch(DataInputStream data) throws IOException {
+        Map<Integer, Long> sums = new LinkedHashMap<>();
+        while (data.available() > 0) {
+            int legs = data.readInt();
+            if (legs <= 0 || legs > bank.getNumberOfAccounts())
+                throw new IOException("Invalid record of " + legs + " legs");
+            for (int k = 0; k < legs; k++) {
+                int index = data.readInt();
+                long amount = data.readLong();
+                Long sum = sums.get(index);
+                sums.put(index, sum == null ? amount : sum + amount);
+            }
+        }
+        int[] indices = new int[sums.size()];
+        long[] amounts = new long[sums.size()];
+        int legs = 0;
+        for (Map.Entry<Integer, Long> sum : sums.entrySet()) {
+            if (sum.getValue() != 0) {
+                indices[legs] = sum.getKey();
+                amounts[legs] = sum.getValue();
+                legs++;
+            }
+        }
+        if (legs == 1) {
+            if (amounts[0] > 0)
+                bank.deposit(indices[0], amounts[0]);
+            else
+                bank.withdraw(indices[0], -amounts[0]);
+        } else if (legs > 1) {
+            bank.transact(Arrays.copyOf(indices, legs), Arrays.copyOf(amounts, legs));
+        }
+    }
+
+    /**
+     * Closes the connection and marks the primary as failed if it is still the current one.
+     */
+    private void disconnect(Socket socket) {
+        closeQuietly(socket);
+        synchronized (this) {
+            if (primary == socket) {
+                primary = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static ru.ifmo.pp.BankProtocol.*;
+
+/**
+ * Server that exposes all operations of a bank over {@link BankProtocol}.
+ *
+ * <p>The server has a number of event loops, each with its own selector and thread, and connections are
+ * distributed between them. A loop reads everything that is available on a connection, runs all requests of
+ * all complete frames on the bank, and writes response frames with a single gathering write. When a client does
+ * not read its responses, the loop stops reading its requests until the responses are written.
+ * Requests run on the loop threads, so the bank must not block for long.
+ *
+ * @author Курбонзода
+ */
+public class BankServer implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Bank bank;
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private int nextLoop;
+    private volatile boolean closed;
+
+    /**
+     * Creates new server and starts listening on the specified port.
+     * @param port the port to listen on, or 0 for any free port.
+     * @param threads the number of event loops.
+     */
+    public BankServer(Bank bank, int port, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        this.bank = bank;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (Loop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Returns the port this server listens on.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Loop loop : loops) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Accepts connections and passes them to loops in turn, it is called by the first loop.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Loop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.accepted.add(channel);
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Event loop with its own selector.
+     */
+    private class Loop extends Thread {
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        Loop(int index) throws IOException {
+            super("BankServer-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            try {
+                                accept();
+                            } catch (IOException e) {
+                                // the connection has failed before it is accepted
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable())
+                                connection.write(key);
+                            if (key.isValid() && key.isReadable())
+                                connection.read(key);
+                        } catch (IOException | BufferUnderflowException e) {
+                            // the client has failed or sent an invalid frame
+                            key.cancel();
+                            connection.channel.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the selector has failed, the connections are closed below
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Connection of a client with its unprocessed requests and unwritten responses.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        /**
+         * Responses of {@link #out} for the gathering write, kept between writes so that it is not allocated
+         * for every write.
+         */
+        ByteBuffer[] gather = new ByteBuffer[16];
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (channel.read(in) < 0) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 4 || length > MAX_FRAME_LENGTH)
+                    throw new IOException("Invalid frame length: " + length);
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+                        buffer.put(in);
+                        buffer.flip();
+                        in = buffer;
+                    }
+                    break;
+                }
+                int end = in.position() + 4 + length;
+                ByteBuffer frame = in.duplicate();
+                frame.limit(end);
+                frame.position(in.position() + 4);
+                out.add(process(frame));
+                if (frame.hasRemaining())
+                    throw new IOException("Invalid frame");
+                in.position(end);
+            }
+            in.compact();
+            write(key);
+        }
+
+        /**
+         * Writes as many responses as possible with a single gathering write, and reads more requests
+         * only when all responses are written.
+         */
+        void write(SelectionKey key) throws IOException {
+            if (!out.isEmpty()) {
+                int size = out.size();
+                if (gather.length < size)
+                    gather = new ByteBuffer[Math.max(2 * gather.length, size)];
+                out.toArray(gather);
+                channel.write(gather, 0, size);
+                Arrays.fill(gather, 0, size, null); // written responses are not kept
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+            }
+            key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Runs all requests of the frame and returns the response frame ready to be written.
+     */
+    private ByteBuffer process(ByteBuffer frame) {
+        int count = frame.getInt();
+        if (count < 0)
+            throw new BufferUnderflowException();
+        ByteBuffer response = ByteBuffer.allocate(HEADER_SIZE + 9 * Math.min(count, frame.remaining()));
+        response.position(HEADER_SIZE);
+        for (int k = 0; k < count; k++) {
+            byte code = frame.get();
+            response = ensureRemaining(response, 9);
+            int start = response.position();
+            try {
+                switch (code) {
+                    case GET_NUMBER_OF_ACCOUNTS:
+                        response.put(OK).putInt(bank.getNumberOfAccounts());
+                        break;
+                    case GET_AMOUNT:
+                        response.put(OK).putLong(bank.getAmount(frame.getInt()));
+                        break;
+                    case GET_TOTAL_AMOUNT:
+                        response.put(OK).putLong(bank.getTotalAmount());
+                        break;
+                    case SNAPSHOT:
+                        try (BankSnapshot snapshot = bank.snapshot()) {
+                            int n = snapshot.getNumberOfAccounts();
+                            response = ensureRemaining(response, 5 + 8 * n);
+                            response.put(OK).putInt(n);
+                            for (int i = 0; i < n; i++) {
+                                response.putLong(snapshot.getAmount(i));
+                            }
+                        }
+                        break;
+                    case DEPOSIT: {
+                        int index = frame.getInt();
+                        response.put(OK).putLong(bank.deposit(index, frame.getLong()));
+                        break;
+                    }
+                    case WITHDRAW: {
+                        int index = frame.getInt();
+                        response.put(OK).putLong(bank.withdraw(index, frame.getLong()));
+                        break;
+                    }
+                    case CREDIT: {
+                        int index = frame.getInt();
+                        bank.credit(index, frame.getLong());
+                        response.put(OK);
+                        break;
+                    }
+                    case DEBIT: {
+                        int index = frame.getInt();
+                        bank.debit(index, frame.getLong());
+                        response.put(OK);
+                        break;
+                    }
+                    case TRANSFER: {
+                        int fromIndex = frame.getInt();
+                        int toIndex = frame.getInt();
+                        bank.transfer(fromIndex, toIndex, frame.getLong());
+                        response.put(OK);
+                        break;
+                    }
+                    case TRANSACT: {
+                        int legs = frame.getInt();
+                        if (legs < 0 || legs > frame.remaining() / 12)
+                            throw new BufferUnderflowException();
+                        int[] indices = new int[legs];
+                        long[] amounts = new long[legs];
+                        for (int i = 0; i < legs; i++) {
+                            indices[i] = frame.getInt();
+                            amounts[i] = frame.getLong();
+                        }
+                        bank.transact(indices, amounts);
+                        response.put(OK);
+                        break;
+                    }
+                    default:
+                        throw new BufferUnderflowException(); // not a request, the connection is closed
+                }
+            } catch (IllegalArgumentException | IllegalStateException | IndexOutOfBoundsException e) {
+                // The status is put before the operation runs, so it is replaced
+                response.position(start);
+                response = putError(response, e);
+            }
+        }
+        response.flip();
+        response.putInt(0, response.limit() - 4);
+        response.putInt(4, count);
+        return response;
+    }
+}
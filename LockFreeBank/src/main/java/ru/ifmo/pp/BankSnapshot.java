@@ -0,0 +1,40 @@
+package ru.ifmo.pp;
+
+/**
+ * Read-only view of all accounts of a bank as of a single instant, see {@link Bank#snapshot()}.
+ * It is thread-safe, so many threads can scan or sum its accounts in parallel.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public interface BankSnapshot extends AutoCloseable {
+    /**
+     * Returns number of accounts in this snapshot.
+     *
+     * @return number of accounts in this snapshot.
+     */
+    public int getNumberOfAccounts();
+
+    /**
+     * Returns amount in the specified account as of this snapshot.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @return amount in account.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     * @throws IllegalStateException when this snapshot is closed.
+     */
+    public long getAmount(int index);
+
+    /**
+     * Returns total amount in all accounts as of this snapshot.
+     *
+     * @return total amount in all accounts.
+     * @throws IllegalStateException when this snapshot is closed.
+     */
+    public long getTotalAmount();
+
+    /**
+     * Releases this snapshot, so that the bank does not keep old amounts for it anymore.
+     */
+    @Override
+    public void close();
+}
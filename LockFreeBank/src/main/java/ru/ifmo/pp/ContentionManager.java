@@ -0,0 +1,38 @@
+package ru.ifmo.pp;
+
+/**
+ * Policy that decides what a thread does when it runs into contention on an account in {@link BankImpl}.
+ * Implementations must be thread-safe, all per-thread state is passed as arguments.
+ *
+ * @author Курбонзода
+ */
+public interface ContentionManager {
+    /**
+     * Helps pending operations immediately and retries failed updates immediately.
+     */
+    public ContentionManager NONE = new ContentionManager() {
+        @Override
+        public void onUpdateFailed(int attempt) {}
+
+        @Override
+        public boolean shouldHelp(int attempt) {
+            return true;
+        }
+    };
+
+    /**
+     * Invoked when compareAndSet of an account has failed because another thread has updated it first.
+     *
+     * @param attempt the number of attempts the caller has made so far, starting from 1.
+     */
+    public void onUpdateFailed(int attempt);
+
+    /**
+     * Invoked when an account is held by another operation that has not completed yet.
+     *
+     * @param attempt the number of attempts the caller has made so far, starting from 1.
+     * @return true when the caller should help that operation to complete now, or false when it should
+     *     read the account again hoping that the operation is completed by its own thread.
+     */
+    public boolean shouldHelp(int attempt);
+}
@@ -0,0 +1,742 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Bank decorator that makes all changes of another bank durable with a write-ahead log.
+ * This class is thread-safe when the underlying bank is thread-safe.
+ *
+ * <p>Every successful change is appended to the log as a record with the amounts that were added to
+ * accounts. Operations run on the underlying bank concurrently, and only appending the record to
+ * an in-memory buffer is serialized by {@link #appendLock}. Records only add amounts, so their order in the log
+ * does not matter for recovery, except that an operation must not become durable without the ones whose
+ * changes it has seen. Operations are counted in {@link #active} from before the change until their record is
+ * appended, and records are taken for writing only up to the cut, which is the end of the buffer at the last
+ * moment when this count was zero, so the records in the log are always closed under this relation.
+ *
+ * <p>After appending, the operation waits until its record is durable. The first waiting thread takes
+ * the buffered records up to the cut under {@link #appendLock}, and writes and forces them to disk holding only
+ * {@link #commitLock}, while the others wait until it is released, and the records that were appended in the meantime are
+ * committed by the next thread with a single force of the log (group commit). When the cut does not reach
+ * the record of that thread for a while, it holds back new operations until the active ones have appended their
+ * records (see {@link #GATE}).
+ *
+ * <p>{@link #checkpoint()} writes a snapshot of all amounts and starts a new log, so that recovery does not
+ * replay the whole history. Files in the directory are: <code>snapshot</code> with the number of the log
+ * that follows it and all amounts, and logs <code>log.&lt;number&gt;</code>. Recovery loads the snapshot and
+ * replays all logs from the number in the snapshot. A record that was not completely written is
+ * recognized by its checksum and is discarded with the rest of the log.
+ *
+ * <p>When the log cannot be written, the bank fails for good: all operations that wait for their records
+ * or start later throw {@link IllegalStateException}. The operations that throw it after they have started
+ * have changed the underlying bank, and it is not known whether their records are in the log, so the amounts
+ * recovered from the directory may differ from the ones in the bank. Operations also throw
+ * {@link IllegalStateException} after {@link #close()}.
+ *
+ * @author Курбонзода
+ */
+public class DurableBank implements Bank, Closeable {
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SNAPSHOT_TMP = "snapshot.tmp";
+    private static final String LOG_PREFIX = "log.";
+
+    /**
+     * The size of an account index and an amount in a record.
+     */
+    private static final int LEG_SIZE = 12;
+
+    /**
+     * Initial size of the buffer for records.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The flag in {@link #active} that holds back operations that start, while active ones finish appending.
+     */
+    private static final int GATE = 1 << 30;
+
+    /**
+     * The number of times the thread that writes the log checks the cut before it closes the gate.
+     */
+    private static final int CUT_ATTEMPTS = 16;
+
+    private final Bank bank;
+    private final Path directory;
+
+    /**
+     * The number of operations that have started to change the underlying bank and have not appended their
+     * records yet, plus {@link #GATE} while the gate is closed.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Held while the gate is closed, operations that are held back wait for it.
+     * It is acquired before {@link #appendLock}.
+     */
+    private final ReentrantLock gateLock = new ReentrantLock();
+
+    /**
+     * Guards appending to {@link #pending} buffer together with {@link #appendedLsn} and {@link #cutPosition}.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Held by the thread that writes and forces the log. It is acquired before {@link #gateLock}.
+     */
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    /**
+     * Threads wait on {@link #committed} while another thread holds {@link #commitLock}, instead of
+     * queueing for it, so that all of them are woken up at once when their records are durable.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition committed = waitLock.newCondition();
+
+    /**
+     * Held by {@link #checkpoint()}, so that snapshots are written in the order of logs.
+     * It is acquired before {@link #commitLock}.
+     */
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    /**
+     * Records that are not written to the log yet.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Empty buffer to replace {@link #pending} when its records are written, guarded by {@link #commitLock}.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+    private int recordStart;
+
+    /**
+     * The end of the records in {@link #pending} that can be written, they are followed only by records of
+     * the operations that were active at the last moment when none of them was.
+     */
+    private int cutPosition;
+
+    /**
+     * The number of bytes in all records ever appended, it is the log sequence number of the last record.
+     */
+    private long appendedLsn;
+
+    /**
+     * The log sequence number of the last record that is durable. Under {@link #commitLock} it is also the log
+     * sequence number of the start of {@link #pending}.
+     */
+    private volatile long durableLsn;
+
+    private long logNumber;
+    private FileChannel log;
+
+    /**
+     * The error of writing the log, it is set under {@link #commitLock}.
+     * It is not known how much of the records is in the log, so no record can be committed after it.
+     */
+    private volatile IOException failure;
+
+    /**
+     * Set under {@link #commitLock} when the bank is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates new durable bank and recovers all amounts from the directory, if there are any.
+     * @param bank the bank with all amounts equal to 0, all changes go to this bank.
+     * @param directory the directory for the snapshot and logs, it is created if needed.
+     * @throws IllegalArgumentException when the snapshot has a different number of accounts.
+     * @throws IOException when files cannot be read or written.
+     */
+    public DurableBank(Bank bank, Path directory) throws IOException {
+        this.bank = bank;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long[] amounts = new long[bank.getNumberOfAccounts()];
+        logNumber = readSnapshot(amounts);
+        if (logNumber > 0)
+            Files.deleteIfExists(logPath(logNumber - 1)); // left when checkpoint was interrupted
+        long validLength = 0;
+        for (long number = logNumber; Files.exists(logPath(number)); number++) {
+            logNumber = number;
+            validLength = replayLog(logPath(number), amounts);
+        }
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] != 0)
+                bank.deposit(i, amounts[i]);
+        }
+        log = FileChannel.open(logPath(logNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(validLength);
+        log.position(validLength);
+        log.force(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not durable yet.
+     */
+    @Override
+    public long getAmount(int index) {
+        checkOpen();
+        return bank.getAmount(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not durable yet.
+     */
+    @Override
+    public long getTotalAmount() {
+        checkOpen();
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not durable yet.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        checkOpen();
+        return bank.snapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result;
+        enter();
+        try {
+            result = bank.deposit(index, amount);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        awaitDurable(append(index, amount));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result;
+        enter();
+        try {
+            result = bank.withdraw(index, amount);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        awaitDurable(append(index, -amount));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void credit(int index, long amount) {
+        enter();
+        try {
+            bank.credit(index, amount);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        awaitDurable(append(index, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void debit(int index, long amount) {
+        enter();
+        try {
+            bank.debit(index, amount);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        awaitDurable(append(index, -amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        enter();
+        try {
+            bank.transfer(fromIndex, toIndex, amount);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        long lsn;
+        appendLock.lock();
+        try {
+            beginRecord(2);
+            putLeg(fromIndex, -amount);
+            putLeg(toIndex, amount);
+            lsn = endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+        awaitDurable(lsn);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        enter();
+        try {
+            bank.transact(indices, amounts);
+        } catch (RuntimeException e) {
+            exit();
+            throw e;
+        }
+        long lsn;
+        appendLock.lock();
+        try {
+            beginRecord(indices.length);
+            for (int k = 0; k < indices.length; k++) {
+                putLeg(indices[k], amounts[k]);
+            }
+            lsn = endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+        awaitDurable(lsn);
+    }
+
+    /**
+     * Writes a snapshot of all amounts and starts a new log. Operations wait only while active ones append
+     * their records and a {@link Bank#snapshot() snapshot} is taken, and commits wait only until the records
+     * before the snapshot are written to the old log.
+     * @throws IOException when files cannot be written.
+     * @throws IllegalStateException when the bank is closed.
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            BankSnapshot snapshot;
+            long oldLogNumber;
+            commitLock.lock();
+            try {
+                checkOpen();
+                if (failure != null)
+                    throw new IOException("Cannot write log", failure);
+                ByteBuffer buffer;
+                FileChannel oldLog = log;
+                oldLogNumber = logNumber;
+                FileChannel newLog = FileChannel.open(logPath(oldLogNumber + 1),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                gateLock.lock();
+                try {
+                    closeGate();
+                    try {
+                        // No operation is active, so the snapshot has exactly the changes of all records
+                        snapshot = bank.snapshot();
+                        buffer = takeRecords(0);
+                    } finally {
+                        openGate();
+                    }
+                } finally {
+                    gateLock.unlock();
+                }
+                // Operations that append records now wait for commitLock, and then commit them to the new log
+                log = newLog;
+                logNumber = oldLogNumber + 1;
+                // Records before the snapshot go to the old log, so it is complete if the snapshot is not written
+                try {
+                    write(buffer, oldLog);
+                    oldLog.close();
+                } catch (IOException e) {
+                    snapshot.close();
+                    throw e;
+                }
+            } finally {
+                unlockCommit();
+            }
+            // Amounts are copied and written after the locks are released, so that operations and commits
+            // to the new log are not stopped for them
+            long[] amounts = new long[snapshot.getNumberOfAccounts()];
+            try {
+                for (int i = 0; i < amounts.length; i++) {
+                    amounts[i] = snapshot.getAmount(i);
+                }
+            } finally {
+                snapshot.close();
+            }
+            writeSnapshot(amounts, oldLogNumber + 1);
+            Files.delete(logPath(oldLogNumber));
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Makes all changes durable and closes the log. Operations that start later throw
+     * {@link IllegalStateException}.
+     */
+    @Override
+    public void close() throws IOException {
+        commitLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            gateLock.lock();
+            try {
+                closeGate(); // for good, operations see closed when they are held back
+            } finally {
+                gateLock.unlock();
+            }
+            if (failure == null)
+                write(takeRecords(0), log);
+            log.close();
+        } finally {
+            unlockCommit();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+    }
+
+    /**
+     * Counts an operation in {@link #active} before it changes the underlying bank,
+     * waiting while the gate is closed.
+     * @throws IllegalStateException when the bank is closed or the log cannot be written.
+     */
+    private void enter() {
+        while (true) {
+            if ((active.incrementAndGet() & GATE) == 0 && !closed && failure == null)
+                return;
+            exit();
+            checkOpen();
+            if (failure != null)
+                throw new IllegalStateException("Cannot write log", failure);
+            gateLock.lock(); // until the gate is open
+            gateLock.unlock();
+        }
+    }
+
+    /**
+     * Counts out an operation that has failed to change the underlying bank.
+     */
+    private void exit() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Holds back operations that start and waits until active ones append their records,
+     * must be called under {@link #gateLock}.
+     */
+    private void closeGate() {
+        active.getAndAdd(GATE);
+        while (active.get() != GATE) {
+            Thread.yield();
+        }
+    }
+
+    private void openGate() {
+        active.getAndAdd(-GATE);
+    }
+
+    /**
+     * Waits until the record with the specified log sequence number is durable.
+     * If there is no thread that writes the log, then the current thread writes it.
+     */
+    private void awaitDurable(long lsn) {
+        while (durableLsn < lsn) {
+            if (commitLock.tryLock()) {
+                try {
+                    // Another thread could have committed this record before the current one acquired the lock
+                    if (durableLsn < lsn) {
+                        if (failure != null)
+                            throw new IllegalStateException("Cannot write log", failure);
+                        flush(lsn);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write log", e);
+                } finally {
+                    unlockCommit();
+                }
+            } else {
+                waitLock.lock();
+                try {
+                    while (durableLsn < lsn && commitLock.isLocked()) {
+                        committed.awaitUninterruptibly();
+                    }
+                } finally {
+                    waitLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases {@link #commitLock} and wakes up the threads that wait for it.
+     */
+    private void unlockCommit() {
+        commitLock.unlock();
+        waitLock.lock();
+        try {
+            committed.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Writes pending records at least up to the one with the specified log sequence number to the log and
+     * forces it, must be called under {@link #commitLock}. It yields before taking the records, so that threads
+     * that have just been woken up append theirs to the same group. The cut passes that record as soon as
+     * the operations that were active when it was appended append their own records, and if it does not after
+     * a few attempts, the gate is closed for a moment, so that the cut is at the end of the buffer.
+     */
+    private void flush(long lsn) throws IOException {
+        ByteBuffer buffer = null;
+        for (int attempt = 0; buffer == null && attempt < CUT_ATTEMPTS; attempt++) {
+            // Threads that are about to append their records join the group meanwhile
+            Thread.yield();
+            buffer = takeRecords(lsn);
+        }
+        if (buffer == null) {
+            gateLock.lock();
+            try {
+                closeGate();
+                try {
+                    buffer = takeRecords(lsn);
+                } finally {
+                    openGate();
+                }
+            } finally {
+                gateLock.unlock();
+            }
+        }
+        write(buffer, log);
+    }
+
+    /**
+     * Takes pending records up to the cut when it passes the record with the specified log sequence number,
+     * or returns null, must be called under {@link #commitLock}.
+     */
+    private ByteBuffer takeRecords(long lsn) {
+        appendLock.lock();
+        try {
+            if ((active.get() & ~GATE) == 0)
+                cutPosition = pending.position();
+            return durableLsn + cutPosition >= lsn ? swapPending() : null;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces {@link #pending} with a buffer that has only the records after the cut and returns the old one
+     * with the records before it, must be called under {@link #commitLock} and {@link #appendLock}.
+     */
+    private ByteBuffer swapPending() {
+        ByteBuffer buffer = pending;
+        int end = buffer.position();
+        pending = spare != null && spare.capacity() >= end - cutPosition ? spare
+            : ByteBuffer.allocate(Math.max(BUFFER_SIZE, end - cutPosition));
+        spare = null;
+        pending.put(buffer.array(), cutPosition, end - cutPosition);
+        buffer.position(cutPosition);
+        cutPosition = 0;
+        return buffer;
+    }
+
+    /**
+     * Writes records from the buffer to the log, forces it, and makes the buffer {@link #spare},
+     * must be called under {@link #commitLock}. When it fails, it sets {@link #failure}.
+     */
+    private void write(ByteBuffer buffer, FileChannel log) throws IOException {
+        long lsn = durableLsn + buffer.position();
+        buffer.flip();
+        try {
+            if (buffer.hasRemaining()) {
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        buffer.clear();
+        spare = buffer;
+        durableLsn = lsn;
+    }
+
+    /**
+     * Appends a record with a single leg and returns its log sequence number.
+     */
+    private long append(int index, long amount) {
+        appendLock.lock();
+        try {
+            beginRecord(1);
+            putLeg(index, amount);
+            return endRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new record in {@link #pending} buffer, must be called under {@link #appendLock}.
+     */
+    private void beginRecord(int legs) {
+        int size = 4 + legs * LEG_SIZE + 4;
+        if (pending.remaining() < size) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + size));
+            pending.flip();
+            buffer.put(pending);
+            pending = buffer;
+        }
+        recordStart = pending.position();
+        pending.putInt(legs);
+    }
+
+    private void putLeg(int index, long amount) {
+        pending.putInt(index);
+        pending.putLong(amount);
+    }
+
+    /**
+     * Completes the record with its checksum, counts out the operation that has appended it,
+     * and returns its log sequence number.
+     */
+    private long endRecord() {
+        crc.reset();
+        crc.update(pending.array(), recordStart, pending.position() - recordStart);
+        pending.putInt((int) crc.getValue());
+        appendedLsn += pending.position() - recordStart;
+        if ((active.decrementAndGet() & ~GATE) == 0)
+            cutPosition = pending.position();
+        return appendedLsn;
+    }
+
+    private Path logPath(long number) {
+        return directory.resolve(LOG_PREFIX + number);
+    }
+
+    /**
+     * Reads amounts from the snapshot, if it exists, and returns the number of the log that follows it.
+     */
+    private long readSnapshot(long[] amounts) throws IOException {
+        Path path = directory.resolve(SNAPSHOT);
+        if (!Files.exists(path))
+            return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            long number = in.readLong();
+            int n = in.readInt();
+            if (n != amounts.length)
+                throw new IllegalArgumentException("Snapshot has " + n + " accounts instead of " + amounts.length);
+            for (int i = 0; i < n; i++) {
+                amounts[i] = in.readLong();
+            }
+            return number;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and atomically replaces the old one with it.
+     */
+    private void writeSnapshot(long[] amounts, long number) throws IOException {
+        Path tmp = directory.resolve(SNAPSHOT_TMP);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeLong(number);
+            out.writeInt(amounts.length);
+            for (long amount : amounts) {
+                out.writeLong(amount);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds amounts from all valid records in the log and returns the length of the valid part of the log.
+     */
+    private long replayLog(Path path, long[] amounts) throws IOException {
+        long length = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            DataInputStream data = new DataInputStream(in);
+            byte[] record = new byte[0];
+            while (true) {
+                int legs;
+                try {
+                    legs = data.readInt();
+                } catch (EOFException e) {
+                    return length;
+                }
+                if (legs <= 0 || legs > amounts.length)
+                    return length;
+                int size = 4 + legs * LEG_SIZE + 4;
+                if (record.length < size)
+                    record = new byte[size];
+                ByteBuffer buffer = ByteBuffer.wrap(record, 0, size);
+                buffer.putInt(legs);
+                try {
+                    data.readFully(record, 4, size - 4);
+                } catch (EOFException e) {
+                    return length;
+                }
+                crc.reset();
+                crc.update(record, 0, size - 4);
+                if (buffer.getInt(size - 4) != (int) crc.getValue())
+                    return length;
+                for (int k = 0; k < legs; k++) {
+                    int index = buffer.getInt();
+                    if (index < 0 || index >= amounts.length)
+                        return length;
+                    amounts[index] += buffer.getLong();
+                }
+                length += size;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+
+/**
+ * Order in which operations on many accounts take them, so that concurrent operations never take
+ * the same accounts in opposite orders.
+ *
+ * @author Курбонзода Абдукодири
+ */
+final class IndexOrder {
+    private IndexOrder() {}
+
+    /**
+     * Returns positions of account indices in the order of increasing indices.
+     * @param n the number of accounts.
+     * @throws IllegalArgumentException when some index repeats.
+     * @throws IndexOutOfBoundsException when some index is invalid.
+     */
+    static int[] of(int[] indices, int n) {
+        long[] keys = new long[indices.length];
+        for (int k = 0; k < indices.length; k++) {
+            if (indices[k] < 0 || indices[k] >= n)
+                throw new IndexOutOfBoundsException("Invalid index: " + indices[k]);
+            keys[k] = ((long) indices[k] << 32) | k;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0 && (keys[i] >>> 32) == (keys[i - 1] >>> 32))
+                throw new IllegalArgumentException("Repeated index: " + (keys[i] >>> 32));
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+}
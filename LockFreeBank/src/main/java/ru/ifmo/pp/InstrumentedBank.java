@@ -0,0 +1,186 @@
+package ru.ifmo.pp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decorator of a bank that records latencies of its operations in {@link LatencyHistogram histograms}.
+ * This class is thread-safe if the underlying bank is thread-safe.
+ *
+ * <p>It is an MXBean, so that latencies can be watched through JMX after it is registered in an MBean server:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(bank, new ObjectName("ru.ifmo.pp:type=Bank"));
+ * </pre>
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class InstrumentedBank implements Bank, InstrumentedBankMXBean {
+    private final Bank bank;
+
+    private final LatencyHistogram getAmountLatency = new LatencyHistogram();
+    private final LatencyHistogram getTotalAmountLatency = new LatencyHistogram();
+    private final LatencyHistogram snapshotLatency = new LatencyHistogram();
+    private final LatencyHistogram depositLatency = new LatencyHistogram();
+    private final LatencyHistogram withdrawLatency = new LatencyHistogram();
+    private final LatencyHistogram creditLatency = new LatencyHistogram();
+    private final LatencyHistogram debitLatency = new LatencyHistogram();
+    private final LatencyHistogram transferLatency = new LatencyHistogram();
+    private final LatencyHistogram transactLatency = new LatencyHistogram();
+
+    /**
+     * Creates new decorator of the specified bank.
+     */
+    public InstrumentedBank(Bank bank) {
+        this.bank = bank;
+    }
+
+    /**
+     * Returns the underlying bank.
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+        Map<String, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+        latencies.put("getAmount", getAmountLatency.snapshot());
+        latencies.put("getTotalAmount", getTotalAmountLatency.snapshot());
+        latencies.put("snapshot", snapshotLatency.snapshot());
+        latencies.put("deposit", depositLatency.snapshot());
+        latencies.put("withdraw", withdrawLatency.snapshot());
+        latencies.put("credit", creditLatency.snapshot());
+        latencies.put("debit", debitLatency.snapshot());
+        latencies.put("transfer", transferLatency.snapshot());
+        latencies.put("transact", transactLatency.snapshot());
+        return latencies;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        long start = System.nanoTime();
+        try {
+            return bank.getAmount(index);
+        } finally {
+            getAmountLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        long start = System.nanoTime();
+        try {
+            return bank.getTotalAmount();
+        } finally {
+            getTotalAmountLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long start = System.nanoTime();
+        try {
+            return bank.snapshot();
+        } finally {
+            snapshotLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long start = System.nanoTime();
+        try {
+            return bank.deposit(index, amount);
+        } finally {
+            depositLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long start = System.nanoTime();
+        try {
+            return bank.withdraw(index, amount);
+        } finally {
+            withdrawLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void credit(int index, long amount) {
+        long start = System.nanoTime();
+        try {
+            bank.credit(index, amount);
+        } finally {
+            creditLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void debit(int index, long amount) {
+        long start = System.nanoTime();
+        try {
+            bank.debit(index, amount);
+        } finally {
+            debitLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        long start = System.nanoTime();
+        try {
+            bank.transfer(fromIndex, toIndex, amount);
+        } finally {
+            transferLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        long start = System.nanoTime();
+        try {
+            bank.transact(indices, amounts);
+        } finally {
+            transactLatency.record(System.nanoTime() - start);
+        }
+    }
+}
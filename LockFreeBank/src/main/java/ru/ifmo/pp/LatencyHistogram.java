@@ -0,0 +1,139 @@
+package ru.ifmo.pp;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with logarithmic buckets.
+ *
+ * <p>Values below {@value #SUB_BUCKETS} have their own buckets, and every next power of two is divided into
+ * {@value #SUB_BUCKETS} buckets, so a percentile is reported with a relative error below 1/{@value #SUB_BUCKETS}.
+ * Each thread counts in its own copy of buckets, so that threads that record similar latencies do not
+ * contend, and the copies are summed when percentiles are read.
+ *
+ * @author Курбонзода Абдукодири
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets that covers all non-negative long values.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Counts by stripe and bucket, the copy of a stripe is {@link #BUCKETS} longs.
+     */
+    private final AtomicLongArray counts;
+    private final int mask;
+
+    /**
+     * Creates new empty histogram.
+     */
+    public LatencyHistogram() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        counts = new AtomicLongArray(stripes * BUCKETS);
+        mask = stripes - 1;
+    }
+
+    /**
+     * Records the latency, negative latencies are recorded as 0.
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        int stripe = (int) (Thread.currentThread().getId() & mask);
+        counts.getAndIncrement(stripe * BUCKETS + bucket(Math.max(0, nanos)));
+    }
+
+    /**
+     * Returns percentiles of the recorded latencies. Latencies that are recorded concurrently with this
+     * method may be missed.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            buckets[i % BUCKETS] += c;
+            count += c;
+        }
+        return new Snapshot(count, percentile(buckets, count, 0.5), percentile(buckets, count, 0.99),
+            percentile(buckets, count, 0.999), percentile(buckets, count, 1));
+    }
+
+    /**
+     * Returns the highest value of the bucket that has the value at the specified fraction of the sorted
+     * values, or 0 when there are no values.
+     */
+    private static long percentile(long[] buckets, long count, double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets[b];
+            if (seen >= rank)
+                return highestValue(b);
+        }
+        return 0;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Percentiles of a histogram at some instant, in nanoseconds.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"count", "p50", "p99", "p999", "max"})
+        public Snapshot(long count, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " p50=" + p50 + " p99=" + p99 + " p999=" + p999 + " max=" + max;
+        }
+    }
+}
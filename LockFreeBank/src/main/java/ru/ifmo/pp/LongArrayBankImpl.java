@@ -0,0 +1,527 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bank implementation that keeps balances in a primitive array.
+ * This class is thread-safe and lock-free using operation objects.
+ *
+ * <p>Unlike {@link BankImpl}, account amounts are not wrapped into immutable objects, so that
+ * {@link #getAmount(int) getAmount}, {@link #deposit(int, long) deposit} and {@link #withdraw(int, long) withdraw}
+ * do not allocate anything when the account is not held by a multi-account operation.
+ * An account that is held by an operation is marked with {@link #ACQUIRED} bit in {@link #amounts} array,
+ * the rest of the bits store a unique acquisition id, and the corresponding {@link AcquiredAccount}
+ * descriptor is published in {@link #acquired} side array before the account is tagged.
+ *
+ * <p>Primitive amounts do suffer from ABA problem, so the restricted DCSS from {@link BankImpl} cannot be used
+ * as is. Instead, every acquisition gets a fresh id, so tagged values are never reused, and an operation
+ * records the acquisitions that it owns. An acquisition that happens after its operation has completed is
+ * recognized by not being owned by the operation and is rolled back to its original amount.
+ * See {@link #acquire(int, Op, int)} method.
+ *
+ * @author Курбонзода
+ */
+public class LongArrayBankImpl implements Bank {
+    /**
+     * The bit that marks an account as acquired by a multi-account operation.
+     * Amounts are never negative, so it is the sign bit.
+     */
+    private static final long ACQUIRED = Long.MIN_VALUE;
+
+    /**
+     * An array of account amounts by index.
+     * When {@link #ACQUIRED} bit is set, the rest of the bits store an id of {@link AcquiredAccount}.
+     */
+    private final AtomicLongArray amounts;
+
+    /**
+     * An array of lists of descriptors for accounts by index. A descriptor is added to the list before
+     * the account is tagged with it and is removed only when the tag is gone, so the list always has
+     * the descriptor for the tag in {@link #amounts}. It also has descriptors of acquisitions in progress,
+     * which are never overwritten, as one of them may tag the account in a moment.
+     */
+    private final AtomicReferenceArray<Published> acquired;
+
+    /**
+     * The source of unique acquisition ids.
+     */
+    private final AtomicLong lastAcquisitionId = new AtomicLong();
+
+    /**
+     * Creates new bank instance.
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public LongArrayBankImpl(int n) {
+        amounts = new AtomicLongArray(n);
+        acquired = new AtomicReferenceArray<>(n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return amounts.length();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        while (true) {
+            long value = amounts.get(index);
+            if (!isAcquired(value))
+                return value;
+            AcquiredAccount account = acquiredAccount(index, value);
+            /*
+             * The account cannot change while it is acquired, thus its amount is known without
+             * helping: it is the old amount until the operation completes and the new amount after that.
+             */
+            if (account != null)
+                return account.currentAmount();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        TotalAmountOp op = new TotalAmountOp(false);
+        op.invokeOperation();
+        return op.sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The amounts are copied by the same operation as {@link #getTotalAmount()}.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        TotalAmountOp op = new TotalAmountOp(true);
+        op.invokeOperation();
+        return new ArrayBankSnapshot(op.collected);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Overflow");
+        while (true) {
+            long value = amounts.get(index);
+            if (isAcquired(value)) {
+                help(index, value);
+                continue;
+            }
+            if (value + amount > MAX_AMOUNT)
+                throw new IllegalStateException("Overflow");
+            if (amounts.compareAndSet(index, value, value + amount))
+                return value + amount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        while (true) {
+            long value = amounts.get(index);
+            if (isAcquired(value)) {
+                help(index, value);
+                continue;
+            }
+            if (value - amount < 0)
+                throw new IllegalStateException("Underflow");
+            if (amounts.compareAndSet(index, value, value - amount))
+                return value - amount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #deposit(int, long) deposit}.
+     */
+    @Override
+    public void credit(int index, long amount) {
+        deposit(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>This implementation has no split accounts, so it is the same as {@link #withdraw(int, long) withdraw}.
+     */
+    @Override
+    public void debit(int index, long amount) {
+        withdraw(index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow/overflow");
+        TransactionOp op = new TransactionOp(new int[] {fromIndex, toIndex}, new long[] {-amount, amount});
+        op.invokeOperation();
+        if (op.errorMessage != null)
+            throw new IllegalStateException(op.errorMessage);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        TransactionOp op = new TransactionOp(indices.clone(), amounts.clone());
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        op.invokeOperation();
+        if (op.errorMessage != null)
+            throw new IllegalStateException(op.errorMessage);
+    }
+
+    private static boolean isAcquired(long value) {
+        return (value & ACQUIRED) != 0;
+    }
+
+    /**
+     * Returns the descriptor for the tagged value that was read from amounts[index] or
+     * null if amounts[index] has changed and has to be reread.
+     */
+    private AcquiredAccount acquiredAccount(int index, long value) {
+        for (Published p = acquired.get(index); p != null; p = p.next) {
+            if (p.account.tag() == value)
+                return p.account;
+        }
+        // The descriptor is removed only after its tag is gone
+        return null;
+    }
+
+    /**
+     * Publishes the descriptor of an acquisition of account at index that is about to tag it.
+     * Descriptors that can no longer be in amounts[index] are removed from the list on the way.
+     * @return false if the list has been changed concurrently.
+     */
+    private boolean publish(int index, AcquiredAccount account) {
+        Published head = acquired.get(index);
+        return acquired.compareAndSet(index, head, new Published(account, live(index, head)));
+    }
+
+    /**
+     * Returns the list without descriptors that have tried to tag account at index and whose tag is not there.
+     * Tags are never reused, so such descriptors are never needed again.
+     */
+    private Published live(int index, Published p) {
+        if (p == null)
+            return null;
+        Published next = live(index, p.next);
+        if (p.account.tried && amounts.get(index) != p.account.tag())
+            return next;
+        return next == p.next ? p : new Published(p.account, next);
+    }
+
+    /**
+     * Helps to complete the operation that holds the account with the tagged value that was read
+     * from amounts[index], or rolls back the acquisition if it happened after the operation had completed.
+     */
+    private void help(int index, long value) {
+        AcquiredAccount account = acquiredAccount(index, value);
+        if (account == null)
+            return;
+        if (account.op.completed)
+            amounts.compareAndSet(index, value, account.currentAmount());
+        else
+            account.op.invokeOperation();
+    }
+
+    /**
+     * Acquires account at index for the op, where position is an index of the account
+     * among the accounts of this op. It returns an instance of AcquiredAccount owned by the op or
+     * null if op.completed is true.
+     *
+     * <p>Tagged values are never reused, so when account at index is tagged for this op, it was done before
+     * the op has completed if op.completed is still false after that. A thread that managed to tag the account
+     * when op has already been completed (the amount had changed and changed back while it was preempted)
+     * fails to become an owner and rolls its acquisition back.
+     */
+    private AcquiredAccount acquire(int index, Op op, int position) {
+        while (true) {
+            long value = amounts.get(index);
+            if (isAcquired(value)) {
+                AcquiredAccount account = acquiredAccount(index, value);
+                if (account == null)
+                    continue;
+                if (account.op != op) {
+                    help(index, value);
+                    continue;
+                }
+                if (op.completed)
+                    return null;
+                if (own(op, position, account))
+                    return account;
+                amounts.compareAndSet(index, value, account.amount);
+                return null;
+            }
+
+            if (op.completed)
+                return null;
+
+            AcquiredAccount account = new AcquiredAccount(lastAcquisitionId.incrementAndGet(), value, op, position);
+            if (!publish(index, account))
+                continue;
+            boolean tagged = amounts.compareAndSet(index, value, account.tag());
+            account.tried = true;
+            if (tagged) {
+                // A helper may have found the descriptor and recorded it before this thread did
+                if (own(op, position, account))
+                    return account;
+                amounts.compareAndSet(index, account.tag(), account.amount);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Records the acquisition as owned by the op at the position, it fails only when the op
+     * owns a different acquisition there, that is when the op has completed before this one.
+     */
+    private static boolean own(Op op, int position, AcquiredAccount account) {
+        return op.owned.compareAndSet(position, null, account) || op.owned.get(position) == account;
+    }
+
+    /**
+     * Releases an account that was previously acquired by {@link #acquire(int, Op, int)}.
+     * This method does nothing if the account at index is not currently acquired.
+     */
+    private void release(int index, Op op, int position) {
+        assert op.completed; // must be called only on operations that were already completed
+        AcquiredAccount account = op.owned.get(position);
+        if (account != null)
+            amounts.compareAndSet(index, account.tag(), account.newAmount);
+    }
+
+    /**
+     * Account that was acquired as a part of in-progress operation that spans multiple accounts.
+     * @see #acquire(int, Op, int)
+     */
+    private static class AcquiredAccount {
+        /**
+         * Unique id of this acquisition.
+         */
+        final long id;
+
+        /**
+         * Amount of funds in this account when it was acquired.
+         */
+        final long amount;
+
+        final Op op;
+
+        /**
+         * Index of this account among the accounts of {@link #op}.
+         */
+        final int position;
+
+        /**
+         * New amount of funds in this account when op completes.
+         */
+        long newAmount;
+
+        /**
+         * True when the thread that has created this descriptor has tried to tag the account with it.
+         */
+        volatile boolean tried;
+
+        AcquiredAccount(long id, long amount, Op op, int position) {
+            this.id = id;
+            this.amount = amount;
+            this.op = op;
+            this.position = position;
+            this.newAmount = amount;
+        }
+
+        /**
+         * Returns the value that marks the account as acquired with this descriptor.
+         */
+        long tag() {
+            return ACQUIRED | id;
+        }
+
+        /**
+         * Returns the amount of funds in this account as of now.
+         */
+        long currentAmount() {
+            return op.completed && op.owned.get(position) == this ? newAmount : amount;
+        }
+    }
+
+    /**
+     * Immutable list of descriptors in {@link #acquired} array.
+     */
+    private static class Published {
+        final AcquiredAccount account;
+        final Published next;
+
+        Published(AcquiredAccount account, Published next) {
+            this.account = account;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Abstract operation that acts on multiple accounts.
+     */
+    private abstract class Op {
+        /**
+         * Acquisitions of this operation by positions of the accounts.
+         */
+        final AtomicReferenceArray<AcquiredAccount> owned;
+
+        /**
+         * True when operation has completed.
+         */
+        volatile boolean completed;
+
+        Op(int numberOfAccounts) {
+            owned = new AtomicReferenceArray<>(numberOfAccounts);
+        }
+
+        abstract void invokeOperation();
+    }
+
+    /**
+     * Descriptor for {@link #getTotalAmount()} and {@link #snapshot()} operations.
+     * Accounts are owned at the positions equal to their indices.
+     */
+    private class TotalAmountOp extends Op {
+        /**
+         * The result of getTotalAmount operation is stored here before setting
+         * {@link #completed} to true.
+         */
+        long sum;
+
+        /**
+         * True when amounts of all accounts are copied to {@link #collected}.
+         */
+        final boolean collect;
+
+        /**
+         * The amounts of all accounts are stored here before setting {@link #completed} to true.
+         */
+        long[] collected;
+
+        TotalAmountOp(boolean collect) {
+            super(amounts.length());
+            this.collect = collect;
+        }
+
+        @Override
+        void invokeOperation() {
+            long sum = 0;
+            int i;
+            int n = amounts.length();
+            long[] collected = collect ? new long[n] : null;
+            for (i = 0; i < n; i++) {
+                AcquiredAccount account = acquire(i, this, i);
+                if (account == null)
+                    break;
+                sum += account.amount;
+                if (collect)
+                    collected[i] = account.amount;
+            }
+            if (i == n) {
+                // benign data race, see BankImpl.TotalAmountOp
+                this.sum = sum;
+                this.collected = collected;
+                this.completed = true;
+            }
+            for (; --i >= 0;) {
+                release(i, this, i);
+            }
+        }
+    }
+
+    /**
+     * Descriptor for {@link #transact(int[], long[]) transact(...)} and
+     * {@link #transfer(int, int, long) transfer(...)} operations.
+     * Accounts are owned at the positions of their indices in {@link #indices}.
+     */
+    private class TransactionOp extends Op {
+        final int[] indices;
+        final long[] amounts;
+
+        /**
+         * Positions of {@link #indices} in the order of increasing account indices.
+         */
+        final int[] order;
+
+        String errorMessage;
+
+        TransactionOp(int[] indices, long[] amounts) {
+            super(indices.length);
+            this.indices = indices;
+            this.amounts = amounts;
+            this.order = IndexOrder.of(indices, getNumberOfAccounts());
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = order.length;
+            AcquiredAccount[] acquired = new AcquiredAccount[n];
+            int i;
+            for (i = 0; i < n; i++) {
+                int k = order[i];
+                acquired[k] = acquire(indices[k], this, k);
+                if (acquired[k] == null)
+                    break;
+            }
+
+            if (i == n) {
+                String errorMessage = null;
+                for (int k = 0; k < n && errorMessage == null; k++) {
+                    long newAmount = acquired[k].amount + amounts[k];
+                    if (newAmount < 0)
+                        errorMessage = "Underflow";
+                    else if (newAmount > MAX_AMOUNT)
+                        errorMessage = "Overflow";
+                }
+                if (errorMessage == null) {
+                    for (int k = 0; k < n; k++) {
+                        acquired[k].newAmount = acquired[k].amount + amounts[k];
+                    }
+                }
+                this.errorMessage = errorMessage;
+                this.completed = true;
+            }
+
+            for (i = n; --i >= 0;) {
+                int k = order[i];
+                release(indices[k], this, k);
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bank decorator that replicates all changes of another bank to backups, it is the primary of
+ * {@link BankReplica BankReplicas}. This class is thread-safe when the underlying bank is thread-safe.
+ *
+ * <p>Every successful change is appended as a record with the amounts that were added to accounts, in the same
+ * format as in {@link DurableBank}: operations run on the underlying bank concurrently under the read lock of
+ * {@link #bankLock}, and only appending the record to an in-memory buffer is serialized by {@link #appendLock}.
+ * Buffered records are taken under the write lock of {@link #bankLock}, so a batch has the records of all
+ * operations whose changes its records have seen, and sent to all backups as a single batch over persistent
+ * connections. Each backup applies the batch atomically, since records in a batch may be in a different order
+ * than their operations, and acknowledges it. Each batch is stamped with the log sequence number of its last
+ * record, that is the number of bytes in all records so far.
+ *
+ * <p>In {@link Mode#SYNC SYNC} mode an operation returns when its record is acknowledged by all backups.
+ * The first waiting thread sends the batch and waits for acknowledgements, while the others wait on
+ * {@link #commitLock}, so that records appended in the meantime go with the next batch (group commit).
+ * In {@link Mode#ASYNC ASYNC} mode operations do not wait, and batches are sent by a shipper thread every
+ * {@link #FLUSH_INTERVAL_MILLIS}. In both modes the shipper sends an empty batch when there were no batches for
+ * {@link #HEARTBEAT_MILLIS}, so that backups can tell a failed primary from an idle one.
+ *
+ * <p>A backup starts with a snapshot of all amounts. A backup that fails is dropped, and the primary goes on
+ * with the others. The primary has an epoch, that is a Lamport clock of promotions: a replica accepts only
+ * a primary with an epoch not less than any it has seen, and a promoted replica takes the next epoch.
+ *
+ * @author Курбонзода
+ */
+public class ReplicatedBank implements Bank, Closeable {
+    /**
+     * When operations return relative to replication of their changes.
+     */
+    public enum Mode {
+        /**
+         * Operations return before their changes are replicated.
+         */
+        ASYNC,
+
+        /**
+         * Operations return when their changes are applied by all backups.
+         */
+        SYNC
+    }
+
+    /**
+     * The first int of a connection from a primary.
+     */
+    static final int MAGIC = 0x42414e4b;
+
+    /**
+     * Types of frames from a primary: a batch of records or a snapshot of all amounts.
+     * Each frame is followed by the log sequence number and the length of its payload in bytes.
+     */
+    static final byte BATCH = 1;
+    static final byte SNAPSHOT = 2;
+
+    /**
+     * The size of an account index and an amount in a record.
+     */
+    static final int LEG_SIZE = 12;
+
+    static final int HEARTBEAT_MILLIS = 250;
+    private static final int FLUSH_INTERVAL_MILLIS = 1;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The time for a backup to apply a snapshot, it is longer than the time for a batch, since a snapshot has
+     * all amounts.
+     */
+    private static final int SNAPSHOT_TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * Initial size of the buffer for records.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Bank bank;
+    private final Mode mode;
+    private final long epoch;
+
+    /**
+     * Its read lock is held by operations from the change of the underlying bank until their record is
+     * appended, and its write lock is held while {@link #pending} buffer is taken for sending and
+     * while the snapshot for a new backup is taken.
+     */
+    private final ReentrantReadWriteLock bankLock = new ReentrantReadWriteLock();
+
+    /**
+     * Guards appending to {@link #pending} buffer together with {@link #appendedLsn}.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Held by the thread that sends a batch and waits for acknowledgements, it guards {@link #backups}.
+     * It is acquired before {@link #bankLock}.
+     */
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    /**
+     * Records that are not sent yet.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Empty buffer to replace {@link #pending} when its records are sent, guarded by {@link #commitLock}.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The number of bytes in all records ever appended, it is the log sequence number of the last record.
+     */
+    private long appendedLsn;
+
+    /**
+     * The log sequence number of the last record that is acknowledged by all backups.
+     */
+    private volatile long replicatedLsn;
+
+    /**
+     * The time of the last batch, guarded by {@link #commitLock}.
+     */
+    private long lastBatchNanos;
+
+    private final List<Backup> backups = new ArrayList<>();
+    private final Thread shipper;
+    private volatile boolean closed;
+
+    /**
+     * Creates new primary with the first epoch and connects to backups.
+     * @param bank the bank with all amounts equal to 0, all changes go to this bank.
+     * @param mode when operations return relative to replication.
+     * @param backups addresses of backups, those that cannot be connected are skipped.
+     */
+    public ReplicatedBank(Bank bank, Mode mode, List<InetSocketAddress> backups) {
+        this(bank, mode, 1, 0, backups);
+    }
+
+    /**
+     * Creates new primary of the specified epoch that continues from the log sequence number,
+     * it is used by {@link BankReplica#promote(Mode, List)}.
+     */
+    ReplicatedBank(Bank bank, Mode mode, long epoch, long lsn, List<InetSocketAddress> backups) {
+        this.bank = bank;
+        this.mode = mode;
+        this.epoch = epoch;
+        appendedLsn = lsn;
+        replicatedLsn = lsn;
+        lastBatchNanos = System.nanoTime();
+        for (InetSocketAddress address : backups) {
+            addBackup(address);
+        }
+        shipper = new Thread("ReplicatedBank-shipper") {
+            @Override
+            public void run() {
+                ship();
+            }
+        };
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    /**
+     * Returns the epoch of this primary.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of backups that are connected.
+     */
+    public int getNumberOfBackups() {
+        commitLock.lock();
+        try {
+            return backups.size();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Connects to the backup and sends it a snapshot of all amounts, operations go on meanwhile.
+     * @return true if the backup was added, false if it cannot be connected or has seen a later epoch.
+     */
+    public boolean addBackup(InetSocketAddress address) {
+        Backup backup;
+        try {
+            backup = new Backup(address);
+        } catch (IOException e) {
+            return false;
+        }
+        commitLock.lock();
+        try {
+            // The snapshot is taken at a batch boundary, so that the backup gets all records after it
+            flush();
+            BankSnapshot snapshot;
+            long lsn;
+            bankLock.writeLock().lock();
+            try {
+                snapshot = bank.snapshot();
+                lsn = appendedLsn;
+            } finally {
+                bankLock.writeLock().unlock();
+            }
+            ByteBuffer amounts;
+            try {
+                amounts = ByteBuffer.allocate(snapshot.getNumberOfAccounts() * 8);
+                for (int i = 0; i < snapshot.getNumberOfAccounts(); i++) {
+                    amounts.putLong(snapshot.getAmount(i));
+                }
+            } finally {
+                snapshot.close();
+            }
+            amounts.flip();
+            try {
+                backup.send(SNAPSHOT, lsn, amounts);
+                backup.socket.setSoTimeout(SNAPSHOT_TIMEOUT_MILLIS);
+                backup.awaitAcknowledgement(lsn);
+                backup.socket.setSoTimeout(BankReplica.FAILURE_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                backup.close();
+                return false;
+            }
+            backups.add(backup);
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not replicated yet.
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not replicated yet.
+     */
+    @Override
+    public long getAmount(int index) {
+        return bank.getAmount(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not replicated yet.
+     */
+    @Override
+    public long getTotalAmount() {
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>The result may include changes that are not replicated yet.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        return bank.snapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result;
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            result = bank.deposit(index, amount);
+            lsn = append(index, amount);
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result;
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            result = bank.withdraw(index, amount);
+            lsn = append(index, -amount);
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void credit(int index, long amount) {
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            bank.credit(index, amount);
+            lsn = append(index, amount);
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void debit(int index, long amount) {
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            bank.debit(index, amount);
+            lsn = append(index, -amount);
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            bank.transfer(fromIndex, toIndex, amount);
+            appendLock.lock();
+            try {
+                beginRecord(2);
+                putLeg(fromIndex, -amount);
+                putLeg(toIndex, amount);
+                lsn = appendedLsn;
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        long lsn;
+        bankLock.readLock().lock();
+        try {
+            bank.transact(indices, amounts);
+            appendLock.lock();
+            try {
+                beginRecord(indices.length);
+                for (int k = 0; k < indices.length; k++) {
+                    putLeg(indices[k], amounts[k]);
+                }
+                lsn = appendedLsn;
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            bankLock.readLock().unlock();
+        }
+        awaitReplicated(lsn);
+    }
+
+    /**
+     * Sends all pending records to backups, waits for their acknowledgements, and closes connections to them.
+     * Backups see it as a failure of the primary.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        shipper.interrupt();
+        try {
+            shipper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitLock.lock();
+        try {
+            flush();
+            for (Backup backup : backups) {
+                backup.close();
+            }
+            backups.clear();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the specified log sequence number is acknowledged by all backups in
+     * {@link Mode#SYNC SYNC} mode. If there is no thread that sends a batch, then the current thread sends it.
+     */
+    private void awaitReplicated(long lsn) {
+        if (mode == Mode.ASYNC || replicatedLsn >= lsn)
+            return;
+        commitLock.lock();
+        try {
+            // Another thread could have sent this record while the current one waited for the lock
+            if (replicatedLsn < lsn)
+                flush();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Sends batches every {@link #FLUSH_INTERVAL_MILLIS} in {@link Mode#ASYNC ASYNC} mode,
+     * and heartbeats in both modes.
+     */
+    private void ship() {
+        long interval = mode == Mode.ASYNC ? FLUSH_INTERVAL_MILLIS : HEARTBEAT_MILLIS;
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            commitLock.lock();
+            try {
+                if (mode == Mode.ASYNC || System.nanoTime() - lastBatchNanos >=
+                        TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS))
+                    flush();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends all pending records to backups as a batch and waits until they acknowledge it, dropping backups
+     * that fail. An empty batch is sent only as a heartbeat. Must be called under {@link #commitLock}.
+     */
+    private void flush() {
+        ByteBuffer buffer;
+        long lsn;
+        bankLock.writeLock().lock();
+        try {
+            buffer = swapPending();
+            lsn = appendedLsn;
+        } finally {
+            bankLock.writeLock().unlock();
+        }
+        buffer.flip();
+        boolean heartbeat = System.nanoTime() - lastBatchNanos >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+        if (buffer.hasRemaining() || heartbeat) {
+            // All backups apply the batch at the same time, so the batch is sent to all of them first
+            for (Iterator<Backup> it = backups.iterator(); it.hasNext(); ) {
+                Backup backup = it.next();
+                try {
+                    backup.send(BATCH, lsn, buffer);
+                } catch (IOException e) {
+                    backup.close();
+                    it.remove();
+                }
+            }
+            for (Iterator<Backup> it = backups.iterator(); it.hasNext(); ) {
+                Backup backup = it.next();
+                try {
+                    backup.awaitAcknowledgement(lsn);
+                } catch (IOException e) {
+                    backup.close();
+                    it.remove();
+                }
+            }
+            lastBatchNanos = System.nanoTime();
+        }
+        buffer.clear();
+        spare = buffer;
+        replicatedLsn = lsn;
+    }
+
+    /**
+     * Replaces {@link #pending} with an empty buffer and returns the old one,
+     * must be called under {@link #commitLock} and the write lock of {@link #bankLock}.
+     */
+    private ByteBuffer swapPending() {
+        ByteBuffer buffer = pending;
+        pending = spare != null ? spare : ByteBuffer.allocate(BUFFER_SIZE);
+        spare = null;
+        return buffer;
+    }
+
+    /**
+     * Appends a record with a single leg and returns its log sequence number.
+     */
+    private long append(int index, long amount) {
+        appendLock.lock();
+        try {
+            beginRecord(1);
+            putLeg(index, amount);
+            return appendedLsn;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new record in {@link #pending} buffer and counts it in {@link #appendedLsn},
+     * must be called under {@link #appendLock}.
+     */
+    private void beginRecord(int legs) {
+        int size = 4 + legs * LEG_SIZE;
+        if (pending.remaining() < size) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + size));
+            pending.flip();
+            buffer.put(pending);
+            pending = buffer;
+        }
+        pending.putInt(legs);
+        appendedLsn += size;
+    }
+
+    private void putLeg(int index, long amount) {
+        pending.putInt(index);
+        pending.putLong(amount);
+    }
+
+    /**
+     * Connection to a backup.
+     */
+    private class Backup {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        /**
+         * Connects to the backup and introduces this primary with its epoch.
+         * @throws IOException when the backup cannot be connected or has seen a later epoch.
+         */
+        Backup(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(BankReplica.FAILURE_TIMEOUT_MILLIS);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeInt(MAGIC);
+                out.writeLong(epoch);
+                out.flush();
+                long backupEpoch = in.readLong();
+                if (backupEpoch != epoch)
+                    throw new IOException("Backup " + address + " has seen epoch " + backupEpoch);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void send(byte type, long lsn, ByteBuffer payload) throws IOException {
+            out.writeByte(type);
+            out.writeLong(lsn);
+            out.writeInt(payload.remaining());
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            out.flush();
+        }
+
+        void awaitAcknowledgement(long lsn) throws IOException {
+            long acknowledged = in.readLong();
+            if (acknowledged != lsn)
+                throw new IOException("Acknowledged " + acknowledged + " instead of " + lsn);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the backup is dropped anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,985 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bank that splits accounts across processes, each process is a shard that keeps its accounts in a local bank.
+ * Account i belongs to shard <code>i % shards</code> where it has local index <code>i / shards</code>.
+ * Shards are listed in the same order by all processes, for example in <code>process.cfg</code>,
+ * see {@link BankReplica#readProcesses(java.nio.file.Path)}. This class is thread-safe.
+ *
+ * <p>Each shard listens on its address and serves requests of other shards over persistent connections,
+ * one request at a time per connection, so callers take connections from a pool. Operations on accounts of
+ * a single shard go straight to its local bank. Operations on accounts of several shards use two-phase commit:
+ * the coordinator prepares every participant shard in the order of shards, and then commits all of them.
+ * A participant locks the accounts of the transaction and checks that the amounts stay within bounds.
+ *
+ * <p>Every message carries a Lamport clock, and every transaction has a timestamp of the clock of its
+ * coordinator with the number of the shard to break ties. Deadlocks are avoided by wait-die: a transaction
+ * that finds an account locked by a later transaction waits for it, while one that finds an account locked by
+ * an earlier transaction aborts and restarts with the same timestamp, so that it eventually becomes the earliest.
+ *
+ * <p>Each account has a guard word: a non-negative number of local operations in progress, or a negated
+ * timestamp of the prepared transaction that locks it. Local operations wait only for prepared transactions,
+ * and prepared transactions wait only for local operations that are already in progress.
+ *
+ * <p>Total amount and snapshots use a consistent cut: the coordinator of each transaction holds a read lock of
+ * its {@link #cutLock} until the transaction is committed or aborted everywhere, and the cut takes write locks of
+ * all shards in the order of shards, so that no transaction is in progress. Operations of a single shard go on,
+ * they do not send messages, so the cut of their local banks is consistent. A failure of a shard during
+ * a transaction is not recovered, the locks of a prepared transaction are kept.
+ *
+ * <p>The local bank is a {@link Bank} of this module. Banks of the fine-grained module cannot be shards,
+ * since that module declares its own <code>ru.ifmo.pp.Bank</code> and the two cannot be on one classpath.
+ * Instead, it has <code>ShardedBankImpl</code> that splits accounts across threads of one process.
+ *
+ * @author Курбонзода
+ */
+public class ShardedBank implements Bank, Closeable {
+    // Requests
+    private static final byte GET_AMOUNT = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte CREDIT = 4;
+    private static final byte DEBIT = 5;
+    private static final byte TRANSFER = 6;
+    private static final byte TRANSACT = 7;
+    private static final byte PREPARE = 8;
+    private static final byte COMMIT = 9;
+    private static final byte ABORT = 10;
+    private static final byte CUT_LOCK = 11;
+    private static final byte CUT_UNLOCK = 12;
+    private static final byte TOTAL = 13;
+    private static final byte SNAPSHOT = 14;
+
+    // Responses
+    private static final byte OK = 0;
+    private static final byte WAIT = 1;
+    private static final byte DIE = 2;
+    private static final byte ILLEGAL_ARGUMENT = 3;
+    private static final byte ILLEGAL_STATE = 4;
+    private static final byte INDEX_OUT_OF_BOUNDS = 5;
+
+    /**
+     * The number of low bits of a timestamp that keep the number of the shard.
+     */
+    private static final int SHARD_BITS = 16;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final int numberOfAccounts;
+    private final int shard;
+    private final InetSocketAddress[] shards;
+    private final Bank local;
+
+    /**
+     * Guard words of local accounts, see class comment.
+     */
+    private final AtomicLongArray guards;
+
+    /**
+     * Prepared transactions of this participant by their timestamps.
+     */
+    private final ConcurrentHashMap<Long, Legs> prepared = new ConcurrentHashMap<>();
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantReadWriteLock cutLock = new ReentrantReadWriteLock();
+
+    private final List<ConcurrentLinkedQueue<Connection>> pools = new ArrayList<>();
+    private final ServerSocket serverSocket;
+    private final Set<Socket> accepted = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile boolean closed;
+
+    /**
+     * Creates new shard and starts listening on its address. Other shards are connected on demand.
+     * @param numberOfAccounts the number of accounts in all shards.
+     * @param shards addresses of all shards in the same order for all of them.
+     * @param shard the number of this shard in the list.
+     * @param local the bank for the accounts of this shard with
+     *     {@link #getNumberOfLocalAccounts(int, int, int) getNumberOfLocalAccounts} accounts.
+     */
+    public ShardedBank(int numberOfAccounts, List<InetSocketAddress> shards, int shard, Bank local)
+            throws IOException {
+        if (shards.size() >= 1 << SHARD_BITS || shard < 0 || shard >= shards.size())
+            throw new IllegalArgumentException("Invalid shard: " + shard);
+        if (local.getNumberOfAccounts() != getNumberOfLocalAccounts(numberOfAccounts, shards.size(), shard))
+            throw new IllegalArgumentException("Invalid number of local accounts: " + local.getNumberOfAccounts());
+        this.numberOfAccounts = numberOfAccounts;
+        this.shard = shard;
+        this.shards = shards.toArray(new InetSocketAddress[shards.size()]);
+        this.local = local;
+        guards = new AtomicLongArray(local.getNumberOfAccounts());
+        for (int s = 0; s < shards.size(); s++) {
+            pools.add(new ConcurrentLinkedQueue<Connection>());
+        }
+        serverSocket = new ServerSocket(this.shards[shard].getPort());
+        Thread acceptor = new Thread("ShardedBank-acceptor-" + shard) {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the number of accounts of the specified shard.
+     */
+    public static int getNumberOfLocalAccounts(int numberOfAccounts, int shards, int shard) {
+        return (numberOfAccounts - shard + shards - 1) / shards;
+    }
+
+    /**
+     * Returns the number of this shard.
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Returns the number of the shard that keeps the specified account.
+     */
+    public int getShard(int index) {
+        return index % shards.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return numberOfAccounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        int s = getShard(index);
+        if (s == shard)
+            return local.getAmount(index / shards.length);
+        Connection c = borrow(s);
+        try {
+            c.begin(GET_AMOUNT);
+            c.out.writeInt(index / shards.length);
+            c.exchange();
+            return c.in.readLong();
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>It is the total amount as of a consistent cut of all shards.
+     */
+    @Override
+    public long getTotalAmount() {
+        Connection[] cut = lockCut();
+        try {
+            long total = 0;
+            for (int s = 0; s < shards.length; s++) {
+                if (s == shard) {
+                    total += local.getTotalAmount();
+                    continue;
+                }
+                Connection c = cut[s];
+                try {
+                    c.begin(TOTAL);
+                    c.exchange();
+                    total += c.in.readLong();
+                } catch (IOException e) {
+                    throw c.fail(e);
+                }
+            }
+            return total;
+        } finally {
+            unlockCut(cut);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>It is a copy of all amounts as of a consistent cut of all shards.
+     */
+    @Override
+    public BankSnapshot snapshot() {
+        long[] amounts = new long[numberOfAccounts];
+        Connection[] cut = lockCut();
+        try {
+            for (int s = 0; s < shards.length; s++) {
+                if (s == shard) {
+                    try (BankSnapshot snapshot = local.snapshot()) {
+                        for (int i = 0; i < snapshot.getNumberOfAccounts(); i++) {
+                            amounts[i * shards.length + s] = snapshot.getAmount(i);
+                        }
+                    }
+                    continue;
+                }
+                Connection c = cut[s];
+                try {
+                    c.begin(SNAPSHOT);
+                    c.exchange();
+                    int n = c.in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        amounts[i * shards.length + s] = c.in.readLong();
+                    }
+                } catch (IOException e) {
+                    throw c.fail(e);
+                }
+            }
+        } finally {
+            unlockCut(cut);
+        }
+        return new ArrayBankSnapshot(amounts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        return update(DEPOSIT, index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        return update(WITHDRAW, index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void credit(int index, long amount) {
+        update(CREDIT, index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void debit(int index, long amount) {
+        update(DEBIT, index, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        if (amount > MAX_AMOUNT)
+            throw new IllegalStateException("Underflow/overflow");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        int s = getShard(fromIndex);
+        if (s != getShard(toIndex)) {
+            transact(new int[] {fromIndex, toIndex}, new long[] {-amount, amount}, new int[] {0, 1});
+            return;
+        }
+        int localFrom = fromIndex / shards.length;
+        int localTo = toIndex / shards.length;
+        if (s == shard) {
+            localTransfer(localFrom, localTo, amount);
+            return;
+        }
+        Connection c = borrow(s);
+        try {
+            c.begin(TRANSFER);
+            c.out.writeInt(localFrom);
+            c.out.writeInt(localTo);
+            c.out.writeLong(amount);
+            c.exchange();
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transact(int[] indices, long[] amounts) {
+        if (indices.length != amounts.length)
+            throw new IllegalArgumentException("Different number of indices and amounts");
+        for (long amount : amounts) {
+            if (amount == 0)
+                throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        int[] order = IndexOrder.of(indices, numberOfAccounts);
+        for (long amount : amounts) {
+            if (amount < -MAX_AMOUNT || amount > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        transact(indices, amounts, order);
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Socket socket : accepted) {
+            closeQuietly(socket);
+        }
+        for (ConcurrentLinkedQueue<Connection> pool : pools) {
+            Connection c;
+            while ((c = pool.poll()) != null) {
+                closeQuietly(c.socket);
+            }
+        }
+    }
+
+    /**
+     * Deposits, withdraws, credits, or debits the account of any shard.
+     */
+    private long update(byte code, int index, long amount) {
+        checkIndex(index);
+        int s = getShard(index);
+        int localIndex = index / shards.length;
+        if (s == shard)
+            return localUpdate(code, localIndex, amount);
+        Connection c = borrow(s);
+        try {
+            c.begin(code);
+            c.out.writeInt(localIndex);
+            c.out.writeLong(amount);
+            c.exchange();
+            return code == DEPOSIT || code == WITHDRAW ? c.in.readLong() : 0;
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    /**
+     * Changes valid accounts in the specified order of their indices, either in a single shard
+     * or with two-phase commit.
+     */
+    private void transact(int[] indices, long[] amounts, int[] order) {
+        // Legs of each shard in the order of indices
+        int[] counts = new int[shards.length];
+        for (int index : indices) {
+            counts[getShard(index)]++;
+        }
+        Legs[] legs = new Legs[shards.length];
+        int participants = 0;
+        for (int s = 0; s < shards.length; s++) {
+            if (counts[s] != 0) {
+                legs[s] = new Legs(counts[s]);
+                participants++;
+            }
+        }
+        for (int k : order) {
+            Legs l = legs[getShard(indices[k])];
+            l.indices[l.size] = indices[k] / shards.length;
+            l.amounts[l.size++] = amounts[k];
+        }
+        if (participants == 1) {
+            for (int s = 0; s < shards.length; s++) {
+                if (legs[s] != null)
+                    transactAt(s, legs[s]);
+            }
+            return;
+        }
+        cutLock.readLock().lock();
+        try {
+            twoPhaseCommit(legs);
+        } finally {
+            cutLock.readLock().unlock();
+        }
+    }
+
+    private void twoPhaseCommit(Legs[] legs) {
+        long timestamp = (clock.incrementAndGet() << SHARD_BITS) | shard;
+        for (int attempt = 0; ; attempt++) {
+            int s = 0;
+            byte status = OK;
+            try {
+                for (; s < shards.length && status == OK; s++) {
+                    if (legs[s] == null)
+                        continue;
+                    // The participant is locked by a later transaction, it is going to commit or abort soon
+                    for (int wait = 0; (status = prepareAt(s, timestamp, legs[s])) == WAIT; wait++) {
+                        backoff(wait);
+                    }
+                }
+            } catch (RuntimeException e) {
+                abortBefore(s, timestamp, legs);
+                throw e;
+            }
+            if (status == OK) {
+                for (s = 0; s < shards.length; s++) {
+                    if (legs[s] != null)
+                        finishAt(s, COMMIT, timestamp);
+                }
+                return;
+            }
+            // The participant is locked by an earlier transaction, restart with the same timestamp
+            abortBefore(s - 1, timestamp, legs);
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Aborts the transaction at participants before the specified shard.
+     */
+    private void abortBefore(int end, long timestamp, Legs[] legs) {
+        for (int s = 0; s < end; s++) {
+            if (legs[s] != null)
+                finishAt(s, ABORT, timestamp);
+        }
+    }
+
+    private static void backoff(int attempt) {
+        if (attempt < 4)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(1000L << Math.min(attempt - 4, 10));
+    }
+
+    private void transactAt(int s, Legs legs) {
+        if (s == shard) {
+            localTransact(legs);
+            return;
+        }
+        Connection c = borrow(s);
+        try {
+            c.begin(TRANSACT);
+            legs.write(c.out);
+            c.exchange();
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    private byte prepareAt(int s, long timestamp, Legs legs) {
+        if (s == shard)
+            return prepare(timestamp, legs);
+        Connection c = borrow(s);
+        try {
+            c.begin(PREPARE);
+            c.out.writeLong(timestamp);
+            legs.write(c.out);
+            return c.exchange();
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    private void finishAt(int s, byte code, long timestamp) {
+        if (s == shard) {
+            finish(code, timestamp);
+            return;
+        }
+        Connection c = borrow(s);
+        try {
+            c.begin(code);
+            c.out.writeLong(timestamp);
+            c.exchange();
+        } catch (IOException e) {
+            throw c.fail(e);
+        } finally {
+            release(c);
+        }
+    }
+
+    /**
+     * Takes write locks of cuts of all shards in the order of shards.
+     * @return connections that hold the locks of other shards, they are used for the cut.
+     */
+    private Connection[] lockCut() {
+        Connection[] cut = new Connection[shards.length];
+        try {
+            for (int s = 0; s < shards.length; s++) {
+                if (s == shard) {
+                    cutLock.writeLock().lock();
+                    continue;
+                }
+                Connection c = borrow(s);
+                try {
+                    c.begin(CUT_LOCK);
+                    c.exchange();
+                } catch (IOException e) {
+                    throw c.fail(e);
+                }
+                cut[s] = c;
+            }
+        } catch (RuntimeException e) {
+            unlockCut(cut);
+            throw e;
+        }
+        return cut;
+    }
+
+    private void unlockCut(Connection[] cut) {
+        for (int s = shards.length - 1; s >= 0; s--) {
+            if (s == shard) {
+                if (cutLock.isWriteLockedByCurrentThread())
+                    cutLock.writeLock().unlock();
+                continue;
+            }
+            Connection c = cut[s];
+            if (c == null)
+                continue;
+            try {
+                c.begin(CUT_UNLOCK);
+                c.exchange();
+            } catch (IOException e) {
+                c.fail(e); // the lock is released when the connection is closed
+            } finally {
+                release(c);
+            }
+        }
+    }
+
+    // ---------------------------------------- Local operations ----------------------------------------
+
+    private long localUpdate(byte code, int index, long amount) {
+        enter(index);
+        try {
+            switch (code) {
+                case DEPOSIT:
+                    return local.deposit(index, amount);
+                case WITHDRAW:
+                    return local.withdraw(index, amount);
+                case CREDIT:
+                    local.credit(index, amount);
+                    return 0;
+                default:
+                    local.debit(index, amount);
+                    return 0;
+            }
+        } finally {
+            guards.decrementAndGet(index);
+        }
+    }
+
+    private void localTransfer(int fromIndex, int toIndex, long amount) {
+        int[] indices = fromIndex < toIndex ? new int[] {fromIndex, toIndex} : new int[] {toIndex, fromIndex};
+        enterAll(indices, indices.length);
+        try {
+            local.transfer(fromIndex, toIndex, amount);
+        } finally {
+            exitAll(indices, indices.length);
+        }
+    }
+
+    private void localTransact(Legs legs) {
+        enterAll(legs.indices, legs.size);
+        try {
+            if (legs.size == 1)
+                localApply(legs.indices[0], legs.amounts[0]);
+            else
+                local.transact(legs.indices, legs.amounts);
+        } finally {
+            exitAll(legs.indices, legs.size);
+        }
+    }
+
+    private void localApply(int index, long amount) {
+        if (amount > 0)
+            local.deposit(index, amount);
+        else
+            local.withdraw(index, -amount);
+    }
+
+    /**
+     * Enters local operation on the account, waiting while it is locked by a prepared transaction.
+     */
+    private void enter(int index) {
+        for (int attempt = 0; !tryEnter(index); attempt++) {
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Enters local operation on the account unless it is locked by a prepared transaction.
+     */
+    private boolean tryEnter(int index) {
+        while (true) {
+            long guard = guards.get(index);
+            if (guard < 0)
+                return false;
+            if (guards.compareAndSet(index, guard, guard + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Enters local operation on the accounts in the order of their indices. It does not wait for a prepared
+     * transaction while it holds other accounts, because the transaction may wait for them.
+     */
+    private void enterAll(int[] indices, int size) {
+        for (int attempt = 0; ; attempt++) {
+            int k = 0;
+            while (k < size && tryEnter(indices[k])) {
+                k++;
+            }
+            if (k == size)
+                return;
+            exitAll(indices, k);
+            backoff(attempt);
+        }
+    }
+
+    private void exitAll(int[] indices, int size) {
+        for (int k = 0; k < size; k++) {
+            guards.decrementAndGet(indices[k]);
+        }
+    }
+
+    /**
+     * Locks the accounts of the transaction in the order of their indices and checks that the amounts stay
+     * within bounds, as a participant of two-phase commit.
+     * @return {@link #OK} when the transaction is prepared, {@link #WAIT} or {@link #DIE} when some account
+     *     is locked by a later or an earlier transaction.
+     * @throws IllegalStateException when an amount would be out of bounds.
+     */
+    private byte prepare(long timestamp, Legs legs) {
+        for (int k = 0; k < legs.size; k++) {
+            int index = legs.indices[k];
+            while (true) {
+                long guard = guards.get(index);
+                if (guard == 0 && guards.compareAndSet(index, 0, -timestamp))
+                    break;
+                if (guard > 0) {
+                    Thread.yield(); // local operations in progress do not wait for this one
+                } else if (guard < 0) {
+                    unlock(legs, k);
+                    return timestamp < -guard ? WAIT : DIE;
+                }
+            }
+        }
+        for (int k = 0; k < legs.size; k++) {
+            long amount = local.getAmount(legs.indices[k]) + legs.amounts[k];
+            if (amount < 0 || amount > MAX_AMOUNT) {
+                unlock(legs, legs.size);
+                throw new IllegalStateException(amount < 0 ? "Underflow" : "Overflow");
+            }
+        }
+        prepared.put(timestamp, legs);
+        return OK;
+    }
+
+    /**
+     * Commits or aborts the prepared transaction as a participant and unlocks its accounts.
+     */
+    private void finish(byte code, long timestamp) {
+        Legs legs = prepared.remove(timestamp);
+        if (legs == null)
+            return;
+        if (code == COMMIT) {
+            // The accounts are locked since they were checked, so the changes are valid
+            if (legs.size == 1)
+                localApply(legs.indices[0], legs.amounts[0]);
+            else
+                local.transact(legs.indices, legs.amounts);
+        }
+        unlock(legs, legs.size);
+    }
+
+    private void unlock(Legs legs, int size) {
+        for (int k = 0; k < size; k++) {
+            guards.set(legs.indices[k], 0);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= numberOfAccounts)
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+    }
+
+    // ---------------------------------------- Server ----------------------------------------
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            accepted.add(socket);
+            Thread handler = new Thread("ShardedBank-" + shard + "-" + socket.getRemoteSocketAddress()) {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // the other shard has closed the connection
+                    } finally {
+                        // The cut is released when its shard fails
+                        while (cutLock.isWriteLockedByCurrentThread()) {
+                            cutLock.writeLock().unlock();
+                        }
+                        accepted.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Serves requests of another shard one at a time.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        while (true) {
+            receive(in.readLong());
+            byte code = in.readByte();
+            byte status = OK;
+            long result = 0;
+            String message = null;
+            long[] amounts = null;
+            try {
+                switch (code) {
+                    case GET_AMOUNT:
+                        result = local.getAmount(in.readInt());
+                        break;
+                    case DEPOSIT:
+                    case WITHDRAW:
+                    case CREDIT:
+                    case DEBIT:
+                        int index = in.readInt();
+                        result = localUpdate(code, index, in.readLong());
+                        break;
+                    case TRANSFER:
+                        int fromIndex = in.readInt();
+                        int toIndex = in.readInt();
+                        localTransfer(fromIndex, toIndex, in.readLong());
+                        break;
+                    case TRANSACT:
+                        localTransact(Legs.read(in));
+                        break;
+                    case PREPARE:
+                        long timestamp = in.readLong();
+                        status = prepare(timestamp, Legs.read(in));
+                        break;
+                    case COMMIT:
+                    case ABORT:
+                        finish(code, in.readLong());
+                        break;
+                    case CUT_LOCK:
+                        cutLock.writeLock().lock();
+                        break;
+                    case CUT_UNLOCK:
+                        cutLock.writeLock().unlock();
+                        break;
+                    case TOTAL:
+                        result = local.getTotalAmount();
+                        break;
+                    case SNAPSHOT:
+                        try (BankSnapshot snapshot = local.snapshot()) {
+                            amounts = new long[snapshot.getNumberOfAccounts()];
+                            for (int i = 0; i < amounts.length; i++) {
+                                amounts[i] = snapshot.getAmount(i);
+                            }
+                        }
+                        break;
+                    default:
+                        throw new IOException("Invalid request: " + code);
+                }
+            } catch (IllegalArgumentException e) {
+                status = ILLEGAL_ARGUMENT;
+                message = e.getMessage();
+            } catch (IllegalStateException e) {
+                status = ILLEGAL_STATE;
+                message = e.getMessage();
+            } catch (IndexOutOfBoundsException e) {
+                status = INDEX_OUT_OF_BOUNDS;
+                message = e.getMessage();
+            }
+            out.writeLong(clock.incrementAndGet());
+            out.writeByte(status);
+            if (message != null) {
+                out.writeUTF(message);
+            } else if (amounts != null) {
+                out.writeInt(amounts.length);
+                for (long amount : amounts) {
+                    out.writeLong(amount);
+                }
+            } else if (code == GET_AMOUNT || code == DEPOSIT || code == WITHDRAW || code == TOTAL) {
+                out.writeLong(result);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Advances Lamport clock past the time of a received message.
+     */
+    private void receive(long time) {
+        while (true) {
+            long current = clock.get();
+            if (current > time || clock.compareAndSet(current, time + 1))
+                return;
+        }
+    }
+
+    // ---------------------------------------- Client ----------------------------------------
+
+    private Connection borrow(int s) {
+        Connection c = pools.get(s).poll();
+        if (c != null)
+            return c;
+        try {
+            return new Connection(s);
+        } catch (IOException e) {
+            throw new IllegalStateException("Shard " + s + " is unavailable", e);
+        }
+    }
+
+    private void release(Connection c) {
+        if (!c.socket.isClosed())
+            pools.get(c.shard).offer(c);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Accounts of a shard with the amounts to change them by, in the order of indices.
+     */
+    private static class Legs {
+        final int[] indices;
+        final long[] amounts;
+        int size;
+
+        Legs(int capacity) {
+            indices = new int[capacity];
+            amounts = new long[capacity];
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (int k = 0; k < size; k++) {
+                out.writeInt(indices[k]);
+                out.writeLong(amounts[k]);
+            }
+        }
+
+        static Legs read(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            if (size <= 0)
+                throw new IOException("Invalid number of legs: " + size);
+            Legs legs = new Legs(size);
+            for (int k = 0; k < size; k++) {
+                legs.indices[k] = in.readInt();
+                legs.amounts[k] = in.readLong();
+            }
+            legs.size = size;
+            return legs;
+        }
+    }
+
+    /**
+     * Connection to another shard, it is used by one thread at a time.
+     */
+    private class Connection {
+        final int shard;
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Connection(int shard) throws IOException {
+            this.shard = shard;
+            socket = new Socket();
+            try {
+                socket.connect(shards[shard], CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Starts a request with the time of Lamport clock.
+         */
+        void begin(byte code) throws IOException {
+            out.writeLong(clock.incrementAndGet());
+            out.writeByte(code);
+        }
+
+        /**
+         * Sends the request and receives the status of the response, the rest of the response is left in the input.
+         * @throws IllegalArgumentException, IllegalStateException, or IndexOutOfBoundsException thrown by the shard.
+         */
+        byte exchange() throws IOException {
+            out.flush();
+            receive(in.readLong());
+            byte status = in.readByte();
+            switch (status) {
+                case ILLEGAL_ARGUMENT:
+                    throw new IllegalArgumentException(in.readUTF());
+                case ILLEGAL_STATE:
+                    throw new IllegalStateException(in.readUTF());
+                case INDEX_OUT_OF_BOUNDS:
+                    throw new IndexOutOfBoundsException(in.readUTF());
+                default:
+                    return status;
+            }
+        }
+
+        /**
+         * Closes the connection after a failure and returns the exception to throw.
+         */
+        IllegalStateException fail(IOException e) {
+            closeQuietly(socket);
+            return new IllegalStateException("Shard " + shard + " is unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads additions over cells by thread, so that threads rarely contend on the same cell.
+ * Cells are padded to separate cache lines.
+ *
+ * @author Курбонзода Абдукодири
+ */
+class StripedCounter {
+    /**
+     * The distance between cells in longs, it is two cache lines.
+     */
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        cells = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    /**
+     * Adds the delta to the cell of the current thread.
+     */
+    void add(long delta) {
+        cells.getAndAdd((int) (Thread.currentThread().getId() & mask) * PADDING, delta);
+    }
+
+    /**
+     * Returns the sum of all cells. Additions that are concurrent with this method may be missed.
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,177 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Test for {@link BankImpl#applyToAll(LongUnaryOperator)} and
+ * {@link BankImpl#applyToRange(int, int, LongUnaryOperator)}.
+ */
+public class ApplyToAllTest extends TestCase {
+    private static final int N = 10_000;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 100_000;
+    private static final int APPLIES = 20;
+
+    private static final LongUnaryOperator INCREMENT = amount -> amount + 1;
+    private static final LongUnaryOperator DOUBLE = amount -> 2 * amount;
+
+    private final BankImpl bank = new BankImpl(N);
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN + i);
+        }
+    }
+
+    public void testApplyToAll() {
+        bank.applyToAll(DOUBLE);
+        for (int i = 0; i < N; i++) {
+            assertEquals(2 * (MEAN + i), bank.getAmount(i));
+        }
+    }
+
+    public void testApplyToRange() {
+        bank.applyToRange(10, 20, INCREMENT);
+        bank.applyToRange(N, N, DOUBLE);
+        for (int i = 0; i < N; i++) {
+            assertEquals(MEAN + i + (i >= 10 && i < 20 ? 1 : 0), bank.getAmount(i));
+        }
+        try {
+            bank.applyToRange(N - 1, N + 1, INCREMENT);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            bank.applyToRange(20, 10, INCREMENT);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testUnderflowChangesNothing() {
+        try {
+            bank.applyToAll(amount -> amount - MEAN - 1);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            assertEquals("Underflow", e.getMessage());
+        }
+        try {
+            bank.applyToRange(N - 1, N, amount -> Bank.MAX_AMOUNT + 1);
+            fail("Overflow expected");
+        } catch (IllegalStateException e) {
+            assertEquals("Overflow", e.getMessage());
+        }
+        for (int i = 0; i < N; i++) {
+            assertEquals(MEAN + i, bank.getAmount(i));
+        }
+    }
+
+    /**
+     * Accounts of a successful apply stay in the bank with their new amounts until other operations replace them.
+     */
+    public void testAppliedAccountsAreUpdated() {
+        bank.applyToAll(DOUBLE);
+        try (BankSnapshot snapshot = bank.snapshot()) {
+            bank.applyToAll(INCREMENT);
+            assertEquals(2 * MEAN, snapshot.getAmount(0));
+        }
+        assertEquals(2 * MEAN + 1, bank.getAmount(0));
+        assertEquals(2 * MEAN + 1 + MEAN, bank.deposit(0, MEAN));
+        bank.transfer(1, 2, 10);
+        assertEquals(2 * (MEAN + 1) + 1 - 10 - 1, bank.withdraw(1, 1));
+        assertEquals(2 * (MEAN + 2) + 1 + 10, bank.getAmount(2));
+        long total = 0;
+        for (int i = 0; i < N; i++) {
+            total += 2 * (MEAN + i) + 1;
+        }
+        assertEquals(total + MEAN - 1, bank.getTotalAmount());
+    }
+
+    public void testOpenedAccountIsIncluded() {
+        int index = bank.openAccount();
+        bank.applyToAll(INCREMENT);
+        assertEquals(1, bank.getAmount(index));
+        assertEquals(MEAN + 1, bank.getAmount(0));
+    }
+
+    public void testSnapshotIsNotChanged() {
+        try (BankSnapshot snapshot = bank.snapshot()) {
+            bank.applyToAll(DOUBLE);
+            assertEquals(MEAN, snapshot.getAmount(0));
+            assertEquals(2 * MEAN, bank.getAmount(0));
+        }
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final long initialTotal = bank.getTotalAmount();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPERATIONS; k++) {
+                            int from = rnd.nextInt(N);
+                            int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                            bank.transfer(from, to, 1 + rnd.nextInt(100));
+                            // Each applyToAll adds N to the total, and transfers do not change it
+                            if (k % 100 == 0 && (bank.getTotalAmount() - initialTotal) % N != 0)
+                                failed.set(true);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (int k = 0; k < APPLIES; k++) {
+            bank.applyToAll(INCREMENT);
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(initialTotal + APPLIES * N, bank.getTotalAmount());
+    }
+
+    /**
+     * Applies that run into each other's accounts abort each other until they acquire accounts in order.
+     */
+    public void testConcurrentApplies() throws InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final long initialTotal = bank.getTotalAmount();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < APPLIES; k++) {
+                            bank.applyToAll(INCREMENT);
+                            bank.transfer(k % N, (k + 1) % N, 1);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(initialTotal + THREADS * APPLIES * N, bank.getTotalAmount());
+    }
+}
@@ -0,0 +1,53 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Test for contention counters of {@link BankImpl} exported through JMX.
+ */
+public class BankImplMXBeanTest extends TestCase {
+    private static final int N = 10;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 20_000;
+
+    public void testCounters() throws Exception {
+        final BankImpl bank = new BankImpl(N);
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, 1_000_000);
+        }
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        bank.transfer((first + k) % N, (first + k + 1) % N, 1);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ru.ifmo.pp:type=BankImpl,name=test");
+        server.registerMBean(bank, name);
+        try {
+            // Every thread allocates a descriptor, and allocates another one only when its descriptor was helped
+            long descriptors = (Long) server.getAttribute(name, "Descriptors");
+            assertTrue(descriptors >= THREADS && descriptors <= THREADS * OPERATIONS);
+            assertEquals(bank.getHelps(), server.getAttribute(name, "Helps"));
+            assertTrue((Long) server.getAttribute(name, "AcquireRetries") >= 0);
+            assertEquals(0L, server.getAttribute(name, "UpdateRetries")); // deposits were not concurrent
+        } finally {
+            server.unregisterMBean(name);
+        }
+        assertEquals(N * 1_000_000L, bank.getTotalAmount());
+    }
+}
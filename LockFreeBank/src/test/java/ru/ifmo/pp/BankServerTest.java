@@ -0,0 +1,173 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link BankServer} and {@link BankClient} over loopback.
+ */
+public class BankServerTest extends TestCase {
+    private static final int N = 100;
+    private static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+    private static final int BATCH = 1000;
+    private static final int WINDOW = 16;
+
+    private final BankImpl bank = new BankImpl(N);
+    private BankServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        server = new BankServer(bank, 0, 2);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    private BankClient connect() throws IOException {
+        return new BankClient(new InetSocketAddress("127.0.0.1", server.getPort()));
+    }
+
+    public void testOperations() throws IOException {
+        try (BankClient client = connect()) {
+            assertEquals(N, client.getNumberOfAccounts());
+            assertEquals(1000, client.deposit(1, 1000));
+            assertEquals(900, client.withdraw(1, 100));
+            client.credit(2, 50);
+            client.debit(2, 20);
+            client.transfer(1, 2, 300);
+            client.transact(new int[] {2, 3}, new long[] {-30, 30});
+            assertEquals(600, client.getAmount(1));
+            assertEquals(300, bank.getAmount(2));
+            assertEquals(930, client.getTotalAmount());
+            try (BankSnapshot snapshot = client.snapshot()) {
+                assertEquals(N, snapshot.getNumberOfAccounts());
+                assertEquals(30, snapshot.getAmount(3));
+            }
+            try {
+                client.withdraw(3, 31);
+                fail("Underflow expected");
+            } catch (IllegalStateException e) {
+                assertEquals("Underflow", e.getMessage());
+            }
+            try {
+                client.deposit(1, 0);
+                fail("Invalid amount expected");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Invalid amount: 0", e.getMessage());
+            }
+            try {
+                client.getAmount(N);
+                fail("Invalid index expected");
+            } catch (IndexOutOfBoundsException e) {
+                assertEquals("Invalid index: " + N, e.getMessage());
+            }
+            assertEquals(600, client.getAmount(1));
+        }
+    }
+
+    public void testPipelinedBatches() throws IOException {
+        try (BankClient client = connect()) {
+            BankClient.Batch batch = new BankClient.Batch();
+            int deposit = batch.deposit(1, 100);
+            int failed = batch.withdraw(2, 1);
+            int transfer = batch.transfer(1, 2, 40);
+            int amount = batch.getAmount(2);
+            BankClient.Response first = client.send(batch);
+            batch.clear();
+            int total = batch.getTotalAmount();
+            int snapshot = batch.snapshot();
+            BankClient.Response second = client.send(batch);
+            // The second response comes after the first one, so it receives both
+            assertEquals(100, second.get(total));
+            assertTrue(first.isDone());
+            assertEquals(4, first.size());
+            assertEquals(100, first.get(deposit));
+            try {
+                first.get(failed);
+                fail("Underflow expected");
+            } catch (IllegalStateException e) {
+                assertEquals("Underflow", e.getMessage());
+            }
+            assertEquals(0, first.get(transfer));
+            assertEquals(40, first.get(amount));
+            try (BankSnapshot s = second.getSnapshot(snapshot)) {
+                assertEquals(60, s.getAmount(1));
+            }
+        }
+    }
+
+    public void testLargeFrames() throws IOException {
+        BankImpl large = new BankImpl(100_000);
+        try (BankServer largeServer = new BankServer(large, 0, 1);
+             BankClient client = new BankClient(new InetSocketAddress("127.0.0.1", largeServer.getPort()))) {
+            BankClient.Batch batch = new BankClient.Batch();
+            for (int i = 0; i < large.getNumberOfAccounts(); i++) {
+                batch.deposit(i, i + 1);
+            }
+            int snapshot = batch.snapshot();
+            BankClient.Response response = client.execute(batch);
+            try (BankSnapshot s = response.getSnapshot(snapshot)) {
+                for (int i = 0; i < large.getNumberOfAccounts(); i++) {
+                    assertEquals(i + 1, s.getAmount(i));
+                }
+            }
+        }
+    }
+
+    public void testConcurrentClients() throws Exception {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try (BankClient client = connect()) {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        ArrayDeque<BankClient.Response> window = new ArrayDeque<>();
+                        BankClient.Batch batch = new BankClient.Batch();
+                        for (int b = 0; b < 100; b++) {
+                            batch.clear();
+                            for (int k = 0; k < BATCH; k++) {
+                                int from = rnd.nextInt(N);
+                                int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                                batch.transfer(from, to, 1 + rnd.nextInt(100));
+                            }
+                            window.add(client.send(batch));
+                            if (window.size() == WINDOW)
+                                checkTransfers(window.poll());
+                        }
+                        while (!window.isEmpty()) {
+                            checkTransfers(window.poll());
+                        }
+                        assertEquals(N * MEAN, client.getTotalAmount());
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    private static void checkTransfers(BankClient.Response response) {
+        for (int k = 0; k < response.size(); k++) {
+            assertEquals(0, response.get(k));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link BankImpl} with a {@link BackoffContentionManager}.
+ */
+public class ContentionManagerMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new BankImpl(n, BackoffContentionManager.helpFirst(100, 100_000, 4));
+    }
+}
@@ -0,0 +1,233 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link DurableBank} recovery, checkpoints, failures, and concurrent group commit.
+ */
+public class DurableBankTest extends TestCase {
+    private static final int N = 10;
+    private static final int THREADS = 16;
+    private static final int TRANSFERS_PER_THREAD = 5_000;
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("bank");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private DurableBank open() throws IOException {
+        return new DurableBank(new BankImpl(N), directory);
+    }
+
+    public void testRecovery() throws IOException {
+        try (DurableBank bank = open()) {
+            bank.deposit(1, 1000);
+            bank.withdraw(1, 100);
+            bank.transfer(1, 2, 300);
+            bank.transact(new int[] {2, 3}, new long[] {-50, 50});
+            try {
+                bank.withdraw(3, 51);
+                fail("Underflow expected");
+            } catch (IllegalStateException e) {
+                // expected, must not be logged
+            }
+        }
+        try (DurableBank bank = open()) {
+            assertEquals(600, bank.getAmount(1));
+            assertEquals(250, bank.getAmount(2));
+            assertEquals(50, bank.getAmount(3));
+            assertEquals(900, bank.getTotalAmount());
+        }
+    }
+
+    public void testCheckpoint() throws IOException {
+        try (DurableBank bank = open()) {
+            bank.deposit(1, 1000);
+            bank.checkpoint();
+            bank.transfer(1, 2, 400);
+            bank.checkpoint();
+            bank.deposit(3, 100);
+        }
+        assertEquals(2, countFiles()); // the snapshot and the last log
+        try (DurableBank bank = open()) {
+            assertEquals(600, bank.getAmount(1));
+            assertEquals(400, bank.getAmount(2));
+            assertEquals(100, bank.getAmount(3));
+        }
+    }
+
+    public void testIncompleteRecord() throws IOException {
+        try (DurableBank bank = open()) {
+            bank.deposit(1, 1000);
+            bank.deposit(2, 2000);
+        }
+        Path log = directory.resolve("log.0");
+        long length = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(length - 1); // the last record is not completely written
+        }
+        try (DurableBank bank = open()) {
+            assertEquals(1000, bank.getAmount(1));
+            assertEquals(0, bank.getAmount(2));
+            bank.deposit(3, 3000);
+        }
+        try (DurableBank bank = open()) {
+            assertEquals(4000, bank.getTotalAmount());
+        }
+    }
+
+    public void testCorruptedRecord() throws IOException {
+        try (DurableBank bank = open()) {
+            bank.deposit(1, 1000);
+            bank.deposit(2, 2000);
+        }
+        Path log = directory.resolve("log.0");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1}), Files.size(log) - 10);
+        }
+        try (DurableBank bank = open()) {
+            assertEquals(1000, bank.getTotalAmount());
+        }
+    }
+
+    public void testConcurrentTransfers() throws Exception {
+        final AtomicBoolean failed = new AtomicBoolean();
+        long[] amounts = new long[N];
+        try (final DurableBank bank = open()) {
+            for (int i = 0; i < N; i++)
+                bank.deposit(i, 1_000_000_000);
+            Thread[] ts = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                ts[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                            for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                                int i = rnd.nextInt(N);
+                                int j = rnd.nextInt(N - 1);
+                                if (j >= i)
+                                    j++;
+                                bank.transfer(i, j, rnd.nextInt(1000) + 1);
+                            }
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                            failed.set(true);
+                        }
+                    }
+                };
+            }
+            for (Thread t : ts)
+                t.start();
+            // Checkpoints hold back transfers while they take snapshots, and must not lose any of them
+            while (ts[0].isAlive()) {
+                bank.checkpoint();
+                Thread.sleep(10);
+            }
+            for (Thread t : ts)
+                t.join();
+            assertFalse(failed.get());
+            for (int i = 0; i < N; i++)
+                amounts[i] = bank.getAmount(i);
+        }
+        try (DurableBank bank = open()) {
+            for (int i = 0; i < N; i++)
+                assertEquals(amounts[i], bank.getAmount(i));
+            assertEquals(N * 1_000_000_000L, bank.getTotalAmount());
+        }
+    }
+
+    public void testClose() throws IOException {
+        DurableBank bank = open();
+        bank.deposit(1, 1000);
+        bank.close();
+        try {
+            bank.deposit(1, 100);
+            fail("Closed bank expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.getAmount(1);
+            fail("Closed bank expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        bank.close();
+        try (DurableBank reopened = open()) {
+            assertEquals(1000, reopened.getAmount(1));
+        }
+    }
+
+    public void testWriteFailure() throws Exception {
+        try (DurableBank bank = open()) {
+            bank.deposit(1, 1000);
+            closeLog(bank);
+            try {
+                bank.deposit(1, 100);
+                fail("Write failure expected");
+            } catch (IllegalStateException e) {
+                // expected, the change is made in memory but not logged
+            }
+            assertEquals(1100, bank.getAmount(1));
+            try {
+                bank.deposit(2, 100);
+                fail("Failed bank expected");
+            } catch (IllegalStateException e) {
+                // expected, the bank is not changed
+            }
+            assertEquals(0, bank.getAmount(2));
+            try {
+                bank.checkpoint();
+                fail("Failed bank expected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try (DurableBank bank = open()) {
+            assertEquals(1000, bank.getTotalAmount());
+        }
+    }
+
+    /*
+     * Closes the channel of the log, so that writes to it fail.
+     */
+    private static void closeLog(DurableBank bank) throws Exception {
+        Field log = DurableBank.class.getDeclaredField("log");
+        log.setAccessible(true);
+        ((FileChannel) log.get(bank)).close();
+    }
+
+    private int countFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
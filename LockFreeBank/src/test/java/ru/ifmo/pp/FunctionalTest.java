@@ -12,7 +12,14 @@ import ru.ifmo.pp.BankImpl;
 public class FunctionalTest extends TestCase {
     private static final int N = 10;
 
-    private final Bank bank = new BankImpl(N);
+    private final Bank bank = createBank(N);
+
+    /**
+     * Creates an instance of the bank implementation under test.
+     */
+    protected Bank createBank(int n) {
+        return new BankImpl(n);
+    }
 
     public void testEmptyBank() {
         assertEquals(N, bank.getNumberOfAccounts());
@@ -66,4 +73,57 @@ public class FunctionalTest extends TestCase {
         assertEquals(transferAmount, bank.getAmount(2));
         assertEquals(depositAmount, bank.getTotalAmount());
     }
+
+    public void testTransact() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 500);
+        bank.transact(new int[] {2, 1, 3}, new long[] {-300, -700, 1000});
+        assertEquals(300, bank.getAmount(1));
+        assertEquals(200, bank.getAmount(2));
+        assertEquals(1000, bank.getAmount(3));
+        assertEquals(1500, bank.getTotalAmount());
+    }
+
+    public void testTransactUnderflow() {
+        bank.deposit(1, 1000);
+        bank.deposit(2, 500);
+        try {
+            bank.transact(new int[] {1, 2, 3}, new long[] {-700, -600, 1300});
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getAmount(1));
+        assertEquals(500, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(1500, bank.getTotalAmount());
+    }
+
+    public void testCreditDebit() {
+        bank.credit(0, 1000);
+        bank.credit(0, 234);
+        assertEquals(1234, bank.getAmount(0));
+        bank.debit(0, 1000);
+        assertEquals(234, bank.getAmount(0));
+        try {
+            bank.debit(0, 235);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(234, bank.getAmount(0));
+        assertEquals(234, bank.getTotalAmount());
+    }
+
+    public void testCreditOverflow() {
+        bank.credit(0, Bank.MAX_AMOUNT);
+        try {
+            bank.credit(0, 1);
+            fail("Overflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Bank.MAX_AMOUNT, bank.getAmount(0));
+        assertEquals(Bank.MAX_AMOUNT, bank.getTotalAmount());
+    }
 }
@@ -0,0 +1,71 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Test for {@link InstrumentedBank} and its latencies exported through JMX.
+ */
+public class InstrumentedBankTest extends TestCase {
+    private static final int N = 10;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 20_000;
+
+    public void testLatencies() {
+        InstrumentedBank bank = new InstrumentedBank(new BankImpl(N));
+        bank.deposit(0, 100);
+        bank.transfer(0, 1, 30);
+        try {
+            bank.withdraw(2, 1);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(100, bank.getTotalAmount());
+        assertEquals(1, bank.getLatencies().get("deposit").getCount());
+        assertEquals(1, bank.getLatencies().get("transfer").getCount());
+        assertEquals(1, bank.getLatencies().get("withdraw").getCount());
+        assertEquals(0, bank.getLatencies().get("transact").getCount());
+        assertTrue(bank.getLatencies().get("transfer").getMax() > 0);
+    }
+
+    public void testJmx() throws Exception {
+        final InstrumentedBank bank = new InstrumentedBank(new BankImpl(N));
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, 1_000_000);
+        }
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < OPERATIONS; k++) {
+                        bank.transfer((first + k) % N, (first + k + 1) % N, 1);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName bankName = new ObjectName("ru.ifmo.pp:type=InstrumentedBank,name=test");
+        server.registerMBean(bank, bankName);
+        try {
+            TabularData latencies = (TabularData) server.getAttribute(bankName, "Latencies");
+            CompositeData transfer = (CompositeData) latencies.get(new Object[] {"transfer"}).get("value");
+            assertEquals((long) THREADS * OPERATIONS, transfer.get("count"));
+            assertTrue((Long) transfer.get("p50") <= (Long) transfer.get("p999"));
+        } finally {
+            server.unregisterMBean(bankName);
+        }
+        assertEquals(N * 1_000_000L, bank.getTotalAmount());
+    }
+}
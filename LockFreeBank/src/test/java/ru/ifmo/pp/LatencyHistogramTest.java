@@ -0,0 +1,42 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+/**
+ * Test for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+    public void testBuckets() {
+        for (long value = 0; value < 100_000; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.highestValue(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+        }
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(last));
+        assertTrue(LatencyHistogram.highestValue(last - 1) < Long.MAX_VALUE);
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getP50());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertWithin(500_000, snapshot.getP50());
+        assertWithin(990_000, snapshot.getP99());
+        assertWithin(999_000, snapshot.getP999());
+        assertWithin(1_000_000, snapshot.getMax());
+    }
+
+    /**
+     * Checks that the reported value is not below the expected one and exceeds it by less than a bucket.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " <= " + actual, expected <= actual);
+        assertTrue(actual + " < " + expected + " * 9 / 8", actual < expected * 9 / 8);
+    }
+}
@@ -53,6 +53,13 @@ public class LinearizabilityTest extends TestCase {
     private int sumTotalResults;
     private int sumSeenResults;
 
+    /**
+     * Creates an instance of the bank implementation under test.
+     */
+    protected Bank createBank(int n) {
+        return new BankImpl(n);
+    }
+
     public void testLinearizability() {
         for (nThreads = 1; nThreads <= MAX_THREADS; nThreads++) {
             phaser.register();
@@ -222,7 +229,7 @@ public class LinearizabilityTest extends TestCase {
     }
 
     private void doOneExecution() {
-        initBank(new BankImpl(N));
+        initBank(createBank(N));
         phaser.arriveAndAwaitAdvance();
         phaser.arriveAndAwaitAdvance();
     }
@@ -303,4 +310,4 @@ public class LinearizabilityTest extends TestCase {
             cpuConsumer.incrementAndGet();
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Functional single-threaded test-suite for {@link LongArrayBankImpl}.
+ */
+public class LongArrayBankFunctionalTest extends FunctionalTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new LongArrayBankImpl(n);
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Automated test of linearizability of {@link LongArrayBankImpl}.
+ */
+public class LongArrayBankLinearizabilityTest extends LinearizabilityTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new LongArrayBankImpl(n);
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Multi-threaded stress test for {@link LongArrayBankImpl}.
+ */
+public class LongArrayBankMTStressTest extends MTStressTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new LongArrayBankImpl(n);
+    }
+}
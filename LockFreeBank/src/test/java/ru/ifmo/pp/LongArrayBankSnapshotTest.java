@@ -0,0 +1,11 @@
+package ru.ifmo.pp;
+
+/**
+ * Test for {@link Bank#snapshot()} of {@link LongArrayBankImpl}.
+ */
+public class LongArrayBankSnapshotTest extends SnapshotTest {
+    @Override
+    protected Bank createBank(int n) {
+        return new LongArrayBankImpl(n);
+    }
+}
@@ -0,0 +1,102 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test that {@link BankImpl#getAmount(int)} never helps pending operations, but still reads amounts
+ * in the order they change.
+ */
+public class NonHelpingReadTest extends TestCase {
+    private static final int N = 3;
+    private static final long MEAN = 1_000_000_000;
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int OPERATIONS = 100_000;
+
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    /**
+     * Fails when a reader is asked whether to help, that is when it runs into a pending operation
+     * on its way to help it.
+     */
+    private final ContentionManager contentionManager = new ContentionManager() {
+        @Override
+        public void onUpdateFailed(int attempt) {}
+
+        @Override
+        public boolean shouldHelp(int attempt) {
+            if (Thread.currentThread() instanceof Reader)
+                failed.set(true);
+            return true;
+        }
+    };
+
+    private final BankImpl bank = new BankImpl(N, contentionManager);
+
+    public void testReadersDoNotHelp() throws InterruptedException {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+        Thread[] ws = new Thread[WRITERS];
+        for (int t = 0; t < WRITERS; t++) {
+            final int from = t % 2 == 0 ? 0 : 2;
+            ws[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // Account 1 only grows and the others only shrink
+                        for (int k = 0; k < OPERATIONS; k++) {
+                            bank.transfer(from, 1, 1);
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+        Reader[] rs = new Reader[READERS];
+        for (int t = 0; t < READERS; t++) {
+            rs[t] = new Reader();
+            rs[t].start();
+        }
+        for (Thread t : ws)
+            t.start();
+        for (Thread t : ws)
+            t.join();
+        done.set(true);
+        for (Thread t : rs)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(MEAN + WRITERS * OPERATIONS, bank.getAmount(1));
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    private class Reader extends Thread {
+        @Override
+        public void run() {
+            try {
+                long last0 = MEAN;
+                long last1 = MEAN;
+                long last2 = MEAN;
+                while (!done.get()) {
+                    long amount0 = bank.getAmount(0);
+                    long amount1 = bank.getAmount(1);
+                    long amount2 = bank.getAmount(2);
+                    assertTrue(amount0 <= last0);
+                    assertTrue(amount1 >= last1);
+                    assertTrue(amount2 <= last2);
+                    last0 = amount0;
+                    last1 = amount1;
+                    last2 = amount2;
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                failed.set(true);
+            }
+        }
+    }
+}
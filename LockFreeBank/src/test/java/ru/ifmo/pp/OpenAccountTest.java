@@ -0,0 +1,113 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Test for {@link BankImpl#openAccount()} concurrently with transfers and getTotalAmount.
+ */
+public class OpenAccountTest extends TestCase {
+    private static final int N = 10;
+    private static final long MEAN = 1_000_000_000;
+    private static final int AMT = 1_000;
+    private static final int OPENERS = 4;
+    private static final int OPENS_PER_THREAD = 5_000; // several segments of accounts
+    private static final int TRANSFER_THREADS = 4;
+
+    private final BankImpl bank = new BankImpl(N);
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean failed;
+
+    public void testOpenAccount() {
+        assertEquals(N, bank.openAccount());
+        assertEquals(N + 1, bank.getNumberOfAccounts());
+        assertEquals(0, bank.getAmount(N));
+        bank.deposit(N, 1000);
+        bank.transfer(N, 0, 400);
+        assertEquals(600, bank.getAmount(N));
+        assertEquals(1000, bank.getTotalAmount());
+        try {
+            bank.getAmount(N + 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testConcurrentOpenAccount() throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final AtomicIntegerArray opened = new AtomicIntegerArray(N + OPENERS * OPENS_PER_THREAD);
+        Thread[] openers = new Thread[OPENERS];
+        for (int t = 0; t < OPENERS; t++) {
+            openers[t] = new TestThread() {
+                @Override
+                void runTest() {
+                    for (int k = 0; k < OPENS_PER_THREAD; k++) {
+                        int index = bank.openAccount();
+                        assertEquals(0, opened.getAndIncrement(index)); // every index is returned once
+                    }
+                }
+            };
+        }
+        Thread[] others = new Thread[TRANSFER_THREADS + 1];
+        for (int t = 0; t < TRANSFER_THREADS; t++) {
+            others[t] = new TestThread() {
+                @Override
+                void runTest() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (!done.get()) {
+                        int n = bank.getNumberOfAccounts();
+                        int i = rnd.nextInt(n);
+                        int j = rnd.nextInt(n - 1);
+                        if (j >= i)
+                            j++;
+                        try {
+                            bank.transfer(i, j, rnd.nextInt(AMT) + 1);
+                        } catch (IllegalStateException e) {
+                            // new accounts have no funds
+                        }
+                    }
+                }
+            };
+        }
+        others[TRANSFER_THREADS] = new TestThread() {
+            @Override
+            void runTest() {
+                while (!done.get()) {
+                    assertEquals(N * MEAN, bank.getTotalAmount());
+                }
+            }
+        };
+        for (Thread t : others)
+            t.start();
+        for (Thread t : openers)
+            t.start();
+        for (Thread t : openers)
+            t.join();
+        done.set(true);
+        for (Thread t : others)
+            t.join();
+        assertFalse(failed);
+        assertEquals(N + OPENERS * OPENS_PER_THREAD, bank.getNumberOfAccounts());
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    private abstract class TestThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                runTest();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                failed = true;
+                done.set(true);
+            }
+        }
+
+        abstract void runTest();
+    }
+}
@@ -0,0 +1,230 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test for {@link ReplicatedBank} with {@link BankReplica BankReplicas} over loopback.
+ */
+public class ReplicatedBankTest extends TestCase {
+    private static final int N = 100;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 20_000;
+
+    private final List<BankReplica> replicas = new ArrayList<>();
+
+    @Override
+    protected void tearDown() {
+        for (BankReplica replica : replicas) {
+            replica.close();
+        }
+    }
+
+    private BankReplica startReplica() throws IOException {
+        BankReplica replica = new BankReplica(new BankImpl(N), 0);
+        replicas.add(replica);
+        return replica;
+    }
+
+    private static InetSocketAddress address(BankReplica replica) {
+        return new InetSocketAddress("127.0.0.1", replica.getPort());
+    }
+
+    private static void assertSameAmounts(Bank expected, Bank actual) {
+        for (int i = 0; i < N; i++) {
+            assertEquals("Account " + i, expected.getAmount(i), actual.getAmount(i));
+        }
+    }
+
+    public void testSyncReplication() throws IOException {
+        BankReplica r1 = startReplica();
+        BankReplica r2 = startReplica();
+        try (ReplicatedBank bank = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.SYNC,
+                Arrays.asList(address(r1), address(r2)))) {
+            assertEquals(2, bank.getNumberOfBackups());
+            bank.deposit(1, 1000);
+            assertEquals(1000, r1.getBank().getAmount(1));
+            bank.withdraw(1, 100);
+            bank.transfer(1, 2, 300);
+            bank.transact(new int[] {2, 3}, new long[] {-50, 50});
+            try {
+                bank.withdraw(3, 51);
+                fail("Underflow expected");
+            } catch (IllegalStateException e) {
+                // expected, must not be replicated
+            }
+            assertEquals(600, r2.getBank().getAmount(1));
+            assertEquals(250, r2.getBank().getAmount(2));
+            assertEquals(50, r2.getBank().getAmount(3));
+            assertEquals(r1.getAppliedLsn(), r2.getAppliedLsn());
+            assertEquals(1, r1.getEpoch());
+        }
+    }
+
+    public void testConcurrentAsyncReplication() throws Exception {
+        BankReplica r1 = startReplica();
+        BankReplica r2 = startReplica();
+        ReplicatedBank bank = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.ASYNC,
+            Arrays.asList(address(r1), address(r2)));
+        runOperations(bank);
+        bank.close();
+        assertEquals(N * MEAN, r1.getBank().getTotalAmount());
+        assertSameAmounts(bank, r1.getBank());
+        assertSameAmounts(bank, r2.getBank());
+    }
+
+    public void testAddedBackupGetsSnapshot() throws Exception {
+        BankReplica r1 = startReplica();
+        try (ReplicatedBank bank = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.SYNC,
+                Collections.<InetSocketAddress>emptyList())) {
+            runOperations(bank);
+            assertTrue(bank.addBackup(address(r1)));
+            bank.transfer(0, 1, 1);
+            assertSameAmounts(bank, r1.getBank());
+        }
+    }
+
+    public void testFailover() throws Exception {
+        final BankReplica r1 = startReplica();
+        final BankReplica r2 = startReplica();
+        final AtomicReference<ReplicatedBank> promoted = new AtomicReference<>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        // Replicas take over in the order of their delays, r1 is the first
+        Thread t1 = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    promoted.set(r1.awaitFailover(100, ReplicatedBank.Mode.SYNC,
+                        Collections.singletonList(address(r2))));
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        Thread t2 = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    r2.awaitFailover(10_000, ReplicatedBank.Mode.SYNC, Collections.singletonList(address(r1)));
+                    failed.set(true);
+                } catch (IllegalStateException e) {
+                    // closed by tearDown
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        t1.start();
+        t2.start();
+        ReplicatedBank primary = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.ASYNC,
+            Arrays.asList(address(r1), address(r2)));
+        runOperations(primary);
+        primary.close();
+        t1.join();
+        assertFalse(failed.get());
+        try (ReplicatedBank bank = promoted.get()) {
+            assertEquals(2, bank.getEpoch());
+            assertEquals(1, bank.getNumberOfBackups());
+            assertSameAmounts(primary, bank);
+            bank.transfer(0, 1, 1);
+            assertEquals(2, r2.getEpoch());
+            assertSameAmounts(bank, r2.getBank());
+            // The old primary is rejected, it has an earlier epoch
+            try (ReplicatedBank stale = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.SYNC,
+                    Collections.singletonList(address(r2)))) {
+                assertEquals(0, stale.getNumberOfBackups());
+            }
+            assertTrue(r2.hasPrimary());
+        }
+        r2.close();
+        t2.join();
+        assertFalse(failed.get());
+    }
+
+    public void testReadProcesses() throws IOException {
+        Path config = Files.createTempFile("process", ".cfg");
+        try {
+            Files.write(config, Arrays.asList("process.1=127.0.0.1:5001", "process.2=127.0.0.1:5002"),
+                StandardCharsets.UTF_8);
+            Map<String, InetSocketAddress> processes = BankReplica.readProcesses(config);
+            assertEquals(Arrays.asList("1", "2"), new ArrayList<>(processes.keySet()));
+            assertEquals(5002, processes.get("2").getPort());
+        } finally {
+            Files.delete(config);
+        }
+    }
+
+    public void testThroughput() throws Exception {
+        long single = measure(new BankImpl(N));
+        BankReplica r1 = startReplica();
+        ReplicatedBank async = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.ASYNC,
+            Collections.singletonList(address(r1)));
+        long asyncTime = measure(async);
+        async.close();
+        assertSameAmounts(async, r1.getBank());
+        BankReplica r2 = startReplica();
+        ReplicatedBank sync = new ReplicatedBank(new BankImpl(N), ReplicatedBank.Mode.SYNC,
+            Collections.singletonList(address(r2)));
+        long syncTime = measure(sync);
+        sync.close();
+        System.out.printf(Locale.US, "%d transfers: single node %d ms, async replication %d ms, sync %d ms%n",
+            THREADS * OPERATIONS, single, asyncTime, syncTime);
+    }
+
+    private static long measure(Bank bank) throws InterruptedException {
+        long start = System.nanoTime();
+        runOperations(bank);
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * Deposits {@link #MEAN} to every account and runs random transfers from many threads.
+     */
+    private static void runOperations(final Bank bank) throws InterruptedException {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPERATIONS; k++) {
+                            int from = rnd.nextInt(N);
+                            int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                            bank.transfer(from, to, 1 + rnd.nextInt(100));
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertFalse(failed.get());
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+}
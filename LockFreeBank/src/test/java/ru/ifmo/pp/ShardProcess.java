@@ -0,0 +1,79 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shard of {@link ShardedBank} in its own process for {@link ShardScaling}.
+ * It is run as <code>ShardProcess &lt;shard&gt; &lt;process.cfg&gt; &lt;accounts&gt; &lt;millis&gt;
+ * &lt;cross&gt;</code> and talks to it over standard input and output:
+ * it prints <code>ready</code> when its accounts are deposited, runs transfers for the specified time after
+ * <code>go</code>, prints the number of transfers, prints the total amount after <code>total</code>,
+ * and exits when the input is closed.
+ */
+public class ShardProcess {
+    static final long MEAN = 1_000_000_000;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int shard = Integer.parseInt(args[0]);
+        List<InetSocketAddress> shards = new ArrayList<>(BankReplica.readProcesses(Paths.get(args[1])).values());
+        final int n = Integer.parseInt(args[2]);
+        final long millis = Long.parseLong(args[3]);
+        final boolean cross = Boolean.parseBoolean(args[4]);
+        final int numberOfShards = shards.size();
+        final ShardedBank bank = new ShardedBank(n, shards, shard,
+            new BankImpl(ShardedBank.getNumberOfLocalAccounts(n, numberOfShards, shard)));
+        for (int i = shard; i < n; i += numberOfShards) {
+            bank.deposit(i, MEAN);
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        System.out.println("ready");
+        System.out.flush();
+        if (!"go".equals(in.readLine()))
+            return;
+        final AtomicLong operations = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + millis;
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int local = ShardedBank.getNumberOfLocalAccounts(n, numberOfShards, shard);
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        // Transfers from accounts of this shard, to any account or to accounts of this shard
+                        int from = shard + rnd.nextInt(local) * numberOfShards;
+                        int to = cross ? rnd.nextInt(n) : shard + rnd.nextInt(local) * numberOfShards;
+                        if (from == to)
+                            continue;
+                        bank.transfer(from, to, 1 + rnd.nextInt(100));
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        System.out.println(operations.get());
+        System.out.flush();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("total")) {
+                System.out.println(bank.getTotalAmount());
+                System.out.flush();
+            }
+        }
+        bank.close();
+    }
+}
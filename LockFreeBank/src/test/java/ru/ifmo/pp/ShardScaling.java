@@ -0,0 +1,92 @@
+package ru.ifmo.pp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Throughput of {@link ShardedBank} in processes of 1, 2, and 4 shards with transfers within shards and across
+ * them. Every shard is a {@link ShardProcess}, so this is not a unit test, it is run from the test classpath as
+ * <code>ShardScaling [&lt;millis&gt;]</code> and prints transfers per second of all shards.
+ */
+public class ShardScaling {
+    private static final int N = 1000;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        for (boolean cross : new boolean[] {false, true}) {
+            for (int shards = 1; shards <= 4; shards *= 2) {
+                long operations = runShardProcesses(shards, cross, millis);
+                System.out.printf(Locale.US, "%d shards, %s transfers: %,d ops/s%n",
+                    shards, cross ? "cross-shard" : "local", operations);
+            }
+        }
+    }
+
+    private static long runShardProcesses(int shards, boolean cross, long millis) throws Exception {
+        Path config = Files.createTempFile("process", ".cfg");
+        List<Process> processes = new ArrayList<>();
+        try {
+            List<String> lines = new ArrayList<>();
+            List<InetSocketAddress> addresses = ShardedBankTest.freeAddresses(shards);
+            for (int s = 0; s < shards; s++) {
+                lines.add("process." + (s + 1) + "=127.0.0.1:" + addresses.get(s).getPort());
+            }
+            Files.write(config, lines, StandardCharsets.UTF_8);
+            String java = System.getProperty("java.home") + "/bin/java";
+            List<BufferedReader> outputs = new ArrayList<>();
+            for (int s = 0; s < shards; s++) {
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardProcess.class.getName(), String.valueOf(s), config.toString(), String.valueOf(N),
+                    String.valueOf(millis), String.valueOf(cross))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                processes.add(process);
+                outputs.add(new BufferedReader(new InputStreamReader(process.getInputStream())));
+            }
+            for (BufferedReader output : outputs) {
+                expect("ready", output.readLine());
+            }
+            for (Process process : processes) {
+                send(process, "go");
+            }
+            long operations = 0;
+            for (BufferedReader output : outputs) {
+                operations += Long.parseLong(output.readLine());
+            }
+            send(processes.get(0), "total");
+            expect(String.valueOf(N * ShardProcess.MEAN), outputs.get(0).readLine());
+            for (Process process : processes) {
+                process.getOutputStream().close();
+            }
+            for (Process process : processes) {
+                if (process.waitFor() != 0)
+                    throw new IllegalStateException("Shard process failed");
+            }
+            return operations * 1000 / millis;
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            Files.delete(config);
+        }
+    }
+
+    private static void expect(String expected, String line) {
+        if (!expected.equals(line))
+            throw new IllegalStateException("Expected " + expected + " from shard process instead of " + line);
+    }
+
+    private static void send(Process process, String line) throws IOException {
+        OutputStream in = process.getOutputStream();
+        in.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        in.flush();
+    }
+}
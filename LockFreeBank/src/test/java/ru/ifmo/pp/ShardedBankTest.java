@@ -0,0 +1,162 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for {@link ShardedBank} with shards in this process over loopback. Throughput of shards in separate
+ * processes is measured by {@link ShardScaling}.
+ */
+public class ShardedBankTest extends TestCase {
+    private static final int N = 30;
+    private static final int SHARDS = 3;
+    private static final long MEAN = 1_000_000;
+    private static final int OPERATIONS = 5_000;
+
+    private final List<ShardedBank> banks = new ArrayList<>();
+
+    @Override
+    protected void tearDown() {
+        for (ShardedBank bank : banks) {
+            bank.close();
+        }
+    }
+
+    static List<InetSocketAddress> freeAddresses(int count) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int s = 0; s < count; s++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                addresses.add(new InetSocketAddress("127.0.0.1", socket.getLocalPort()));
+            }
+        }
+        return addresses;
+    }
+
+    private void startShards(int n) throws IOException {
+        List<InetSocketAddress> shards = freeAddresses(SHARDS);
+        for (int s = 0; s < SHARDS; s++) {
+            banks.add(new ShardedBank(n, shards, s, new BankImpl(ShardedBank.getNumberOfLocalAccounts(n, SHARDS, s))));
+        }
+    }
+
+    public void testOperations() throws IOException {
+        startShards(N);
+        ShardedBank bank = banks.get(0);
+        assertEquals(N, bank.getNumberOfAccounts());
+        assertEquals(1, bank.getShard(4));
+        assertEquals(1000, bank.deposit(4, 1000));
+        assertEquals(1000, banks.get(1).getAmount(4));
+        assertEquals(900, banks.get(2).withdraw(4, 100));
+        bank.transfer(4, 5, 300); // accounts of other shards
+        bank.transfer(5, 8, 100); // a single other shard
+        bank.transact(new int[] {4, 5, 6}, new long[] {-100, -50, 150});
+        assertEquals(500, bank.getAmount(4));
+        assertEquals(150, bank.getAmount(5));
+        assertEquals(150, banks.get(2).getAmount(6));
+        assertEquals(100, bank.getAmount(8));
+        try {
+            bank.transact(new int[] {4, 5, 6}, new long[] {-100, -151, 251});
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected, nothing is changed
+        }
+        try {
+            banks.get(1).withdraw(5, 151);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            assertEquals("Underflow", e.getMessage());
+        }
+        try {
+            bank.transact(new int[] {4, 4}, new long[] {-1, 1});
+            fail("Repeated index expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.getAmount(N);
+            fail("Invalid index expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(500, bank.getAmount(4));
+        assertEquals(900, banks.get(1).getTotalAmount());
+        try (BankSnapshot snapshot = banks.get(2).snapshot()) {
+            assertEquals(150, snapshot.getAmount(5));
+            assertEquals(900, snapshot.getTotalAmount());
+        }
+    }
+
+    public void testConcurrentTransfersAndCuts() throws Exception {
+        startShards(N);
+        for (int i = 0; i < N; i++) {
+            banks.get(i % SHARDS).deposit(i, MEAN);
+        }
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> ts = new ArrayList<>();
+        for (final ShardedBank bank : banks) {
+            for (int t = 0; t < 2; t++) {
+                ts.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                            for (int k = 0; k < OPERATIONS; k++) {
+                                int from = rnd.nextInt(N);
+                                int to = (from + 1 + rnd.nextInt(N - 1)) % N;
+                                if (rnd.nextBoolean()) {
+                                    bank.transfer(from, to, 1 + rnd.nextInt(100));
+                                } else {
+                                    int third = (to + 1 + rnd.nextInt(N - 2)) % N;
+                                    if (third == from)
+                                        third = (third + 1) % N;
+                                    bank.transact(new int[] {from, to, third}, new long[] {-20, 10, 10});
+                                }
+                            }
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                            failed.set(true);
+                        }
+                    }
+                });
+            }
+        }
+        // Totals as of consistent cuts do not include transfers that are committed only in some shards
+        Thread checker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        ShardedBank bank = banks.get(ThreadLocalRandom.current().nextInt(SHARDS));
+                        if (bank.getTotalAmount() != N * MEAN)
+                            failed.set(true);
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        for (Thread t : ts)
+            t.start();
+        checker.start();
+        for (Thread t : ts)
+            t.join();
+        done.set(true);
+        checker.join();
+        assertFalse(failed.get());
+        try (BankSnapshot snapshot = banks.get(1).snapshot()) {
+            assertEquals(N * MEAN, snapshot.getTotalAmount());
+            for (int i = 0; i < N; i++) {
+                assertEquals(banks.get(0).getAmount(i), snapshot.getAmount(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test for reuse of transfer descriptors in {@link BankImpl}.
+ */
+public class TransferRecyclingTest extends TestCase {
+    private static final int N = 1000;
+    private static final int HOT = 4; // concurrent transfers go between these accounts only
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 100_000;
+
+    private final BankImpl bank = new BankImpl(N);
+
+    @Override
+    protected void setUp() {
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+        }
+    }
+
+    public void testDescriptorIsReused() {
+        bank.transfer(0, 1, 10);
+        long descriptors = bank.getDescriptors();
+        bank.transfer(1, 0, 20);
+        try {
+            bank.transfer(2, 3, MEAN + 1);
+            fail("Underflow expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.transfer(2, N, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        bank.transfer(3, 2, 30);
+        assertEquals(descriptors, bank.getDescriptors());
+        assertEquals(MEAN + 10, bank.getAmount(0));
+        assertEquals(MEAN - 10, bank.getAmount(1));
+        assertEquals(MEAN + 30, bank.getAmount(2));
+        assertEquals(MEAN - 30, bank.getAmount(3));
+    }
+
+    public void testOpenSnapshotPreventsReuse() {
+        bank.transfer(0, 1, 10);
+        long descriptors = bank.getDescriptors();
+        try (BankSnapshot snapshot = bank.snapshot()) {
+            bank.transfer(0, 1, 10); // reuses the descriptor, but drops it then
+            bank.transfer(0, 1, 10);
+            assertEquals(descriptors + 1, bank.getDescriptors());
+            assertEquals(MEAN - 10, snapshot.getAmount(0));
+            assertEquals(MEAN + 10, snapshot.getAmount(1));
+        }
+        bank.transfer(0, 1, 10);
+        bank.transfer(0, 1, 10);
+        assertEquals(descriptors + 2, bank.getDescriptors());
+        assertEquals(MEAN - 50, bank.getAmount(0));
+    }
+
+    public void testTransferAllocation() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+            return;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        int[] indices = new int[OPERATIONS];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int k = 0; k < OPERATIONS; k++) {
+            indices[k] = rnd.nextInt(N);
+        }
+        runTransfers(indices); // warm up
+        long thread = Thread.currentThread().getId();
+        long descriptors = bank.getDescriptors();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        runTransfers(indices);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        // Only the two released accounts are allocated, a descriptor with its acquired accounts is several times more
+        assertTrue("Allocated " + allocated / OPERATIONS + " bytes per transfer", allocated < OPERATIONS * 100L);
+        assertEquals(descriptors, bank.getDescriptors());
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    private void runTransfers(int[] indices) {
+        for (int k = 1; k < indices.length; k++) {
+            if (indices[k - 1] != indices[k])
+                bank.transfer(indices[k - 1], indices[k], 1 + k % 10);
+        }
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] ts = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPERATIONS; k++) {
+                            int from = rnd.nextInt(HOT);
+                            int to = (from + 1 + rnd.nextInt(HOT - 1)) % HOT;
+                            bank.transfer(from, to, 1 + rnd.nextInt(100));
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+        // Totals and snapshots are taken concurrently, so some descriptors are dropped and some are reused
+        Thread checker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int k = 0; !done.get(); k++) {
+                        assertEquals(N * MEAN, bank.getTotalAmount());
+                        if (k % 16 == 0) {
+                            try (BankSnapshot snapshot = bank.snapshot()) {
+                                assertEquals(N * MEAN, snapshot.getTotalAmount());
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        checker.start();
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        done.set(true);
+        checker.join();
+        assertFalse(failed.get());
+        assertEquals(N * MEAN, bank.getTotalAmount());
+        assertTrue(bank.getDescriptors() < THREADS * OPERATIONS);
+    }
+}